@@ -0,0 +1,110 @@
+package com.example.demo.controller;
+
+import com.example.demo.FinalApplication;
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.User;
+import com.example.demo.service.AccountService;
+import com.example.demo.service.ChatService;
+import com.example.demo.service.FriendService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what one poll of a private conversation costs a running server with an embedded H2 database,
+ * for clients that poll /friend/messages/{id} instead of receiving pushed notifications:
+ * the whole history (all=true), the latest page, and a "since" poll with nothing new, answered with 304.
+ * Every poll a pushed client no longer makes saves one of these; a client that still polls with since
+ * and has nothing new costs the last one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 3)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrivateMessagePollingBenchmark {
+    private static final int CONVERSATIONS = 50;
+    private static final int HISTORY = 200;
+
+    private ConfigurableApplicationContext context;
+    private HttpClient httpClient;
+    private HttpRequest[] fullHistoryPolls;
+    private HttpRequest[] pagePolls;
+    private HttpRequest[] sincePolls;
+    private int next;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(FinalApplication.class)
+                .properties("server.port=0", "chat.search.rebuild-on-startup=false",
+                        "spring.datasource.url=jdbc:h2:mem:polling;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE")
+                .run();
+        int port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+        AccountService accountService = context.getBean(AccountService.class);
+        FriendService friendService = context.getBean(FriendService.class);
+        ChatService chatService = context.getBean(ChatService.class);
+
+        httpClient = HttpClient.newHttpClient();
+        fullHistoryPolls = new HttpRequest[CONVERSATIONS];
+        pagePolls = new HttpRequest[CONVERSATIONS];
+        sincePolls = new HttpRequest[CONVERSATIONS];
+        for (int i = 0; i < CONVERSATIONS; i++) {
+            User sender = new User("sender-" + i, "Sender " + i, "secret1", "sender" + i + "@example.com", null);
+            User reader = new User("reader-" + i, "Reader " + i, "secret1", "reader" + i + "@example.com", null);
+            accountService.createUser(sender);
+            accountService.createUser(reader);
+            friendService.addFriend(sender, reader);
+            Chatroom room = chatService.getOrCreatePrivateChatroom(sender, reader);
+            List<String> contents = new ArrayList<>(Collections.nCopies(HISTORY, "a message of an ordinary length in a private chat"));
+            chatService.sendMessages(sender, Collections.nCopies(HISTORY, room), contents);
+            String token = accountService.login(reader.getId());
+            String base = "http://localhost:" + port + "/friend/messages/" + reader.getId() + "?friendId=" + sender.getId();
+            fullHistoryPolls[i] = get(base + "&all=true", token);
+            pagePolls[i] = get(base, token);
+            sincePolls[i] = get(base + "&since=" + chatService.findChatroom(room.getId()).getLastMessageId(), token);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int fullHistoryPoll() throws Exception {
+        return send(fullHistoryPolls, 200);
+    }
+
+    @Benchmark
+    public int latestPagePoll() throws Exception {
+        return send(pagePolls, 200);
+    }
+
+    @Benchmark
+    public int sincePollNotModified() throws Exception {
+        return send(sincePolls, 304);
+    }
+
+    private int send(HttpRequest[] requests, int expectedStatus) throws Exception {
+        next = (next + 1) % CONVERSATIONS;
+        HttpResponse<byte[]> response = httpClient.send(requests[next], HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != expectedStatus) {
+            throw new IllegalStateException("Poll answered " + response.statusCode() + " instead of " + expectedStatus);
+        }
+        return response.body().length;
+    }
+
+    private static HttpRequest get(String uri, String token) {
+        return HttpRequest.newBuilder(URI.create(uri)).header("Authorization", token).GET().build();
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.demo.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures AccountService.isAuthenticated while other threads check tokens and log users in and out,
+ * as request threads do on a busy server.
+ * Readers check random logged-in users; the writer logs a separate set of users out and back in,
+ * so the token map is modified while it is read. Compare with TokenVerificationBenchmark.mapLookup,
+ * the same check on a single thread.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthenticationContentionBenchmark {
+    private static final int USERS = 100_000;
+    private static final int CHURNING_USERS = 1_000;
+
+    private AccountService accountService;
+    private String[] userIds;
+    private String[] tokens;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        accountService = new AccountService();
+        userIds = new String[USERS];
+        tokens = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            userIds[i] = "user-" + i;
+            tokens[i] = accountService.login(userIds[i]);
+        }
+    }
+
+    /**
+     * The position of one thread in the user list, so threads do not share a counter.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            next = ThreadLocalRandom.current().nextInt(USERS);
+        }
+
+        private int next(int bound) {
+            int i = next + 1;
+            next = i >= bound ? 0 : i;
+            return next;
+        }
+    }
+
+    @Benchmark
+    @Group("readers")
+    @GroupThreads(4)
+    public boolean isAuthenticated(Cursor cursor) {
+        int i = cursor.next(USERS);
+        return accountService.isAuthenticated(userIds[i], tokens[i]);
+    }
+
+    @Benchmark
+    @Group("readersAndWriter")
+    @GroupThreads(3)
+    public boolean isAuthenticatedWhileChurning(Cursor cursor) {
+        int i = cursor.next(USERS);
+        return accountService.isAuthenticated(userIds[i], tokens[i]);
+    }
+
+    @Benchmark
+    @Group("readersAndWriter")
+    @GroupThreads(1)
+    public String loginLogout(Cursor cursor) {
+        String userId = "churn-" + cursor.next(CHURNING_USERS);
+        accountService.logout(userId);
+        return accountService.login(userId);
+    }
+}
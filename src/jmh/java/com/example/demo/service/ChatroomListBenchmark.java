@@ -0,0 +1,91 @@
+package com.example.demo.service;
+
+import com.example.demo.FinalApplication;
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.ChatroomSummary;
+import com.example.demo.model.Participant;
+import com.example.demo.model.User;
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.ChatroomRepository;
+import com.example.demo.repository.ParticipantRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ChatService.viewAllChatroom, the chatroom list of a user sorted by last activity,
+ * on an embedded H2 database in MySQL mode.
+ * The user is a member of a growing number of group chatrooms, active in random order,
+ * each with an unread message from another member, so every page also counts unread messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatroomListBenchmark {
+    @Param({"100", "1000"})
+    private int rooms;
+
+    private ConfigurableApplicationContext context;
+    private ChatService chatService;
+    private User user;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(FinalApplication.class)
+                .properties("server.port=0", "chat.search.rebuild-on-startup=false",
+                        "spring.datasource.url=jdbc:h2:mem:chatrooms-" + rooms + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE")
+                .run();
+        chatService = context.getBean(ChatService.class);
+        AccountService accountService = context.getBean(AccountService.class);
+        ChatroomRepository chatroomRepo = context.getBean(ChatroomRepository.class);
+        ParticipantRepository participantRepo = context.getBean(ParticipantRepository.class);
+
+        user = new User("list-user", "Reader", "secret1", "reader@example.com", null);
+        User other = new User("list-other", "Writer", "secret1", "writer@example.com", null);
+        accountService.createUser(user);
+        accountService.createUser(other);
+        Random random = new Random(42);
+        List<Chatroom> chatrooms = new ArrayList<>();
+        for (int i = 0; i < rooms; i++) {
+            Chatroom room = new Chatroom();
+            room.setGroup(true);
+            room.setRoomName("room-" + i);
+            room.setLastModified(LocalDateTime.now());
+            chatroomRepo.save(room);
+            participantRepo.save(new Participant(null, room, new UserDTO(user.getId(), user.getName())));
+            participantRepo.save(new Participant(null, room, new UserDTO(other.getId(), other.getName())));
+            chatrooms.add(room);
+        }
+        chatService.sendMessages(other, chatrooms, Collections.nCopies(rooms, "an unread message"));
+        // The batch stamps every room with the same time; spread their last activity so the list has to be sorted
+        List<Long> ids = new ArrayList<>();
+        for (Chatroom room : chatrooms) {
+            ids.add(room.getId());
+        }
+        List<Chatroom> sent = chatroomRepo.findAllByIdIn(ids);
+        for (Chatroom room : sent) {
+            room.setLastModified(LocalDateTime.now().minusMinutes(random.nextInt(100_000)));
+        }
+        chatroomRepo.saveAll(sent);
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public List<ChatroomSummary> firstPage() {
+        return chatService.viewAllChatroom(user, null, 0, ChatService.DEFAULT_PAGE_SIZE);
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.demo.service;
+
+import com.example.demo.FinalApplication;
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.User;
+import com.example.demo.repository.ChatroomRepository;
+import com.example.demo.repository.MessageRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading and serializing the whole history of a 10k-message chatroom from an embedded H2 database:
+ * as Message entities in a read-write transaction, like a repository call inside a request,
+ * against the MessageView projection that ChatService.getAllMessage reads in a read-only transaction.
+ * Run with the gc profiler (the default of the benchmark profile) to compare the heap allocated per read.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryReadBenchmark {
+    private static final int MESSAGES = 10_000;
+
+    private ConfigurableApplicationContext context;
+    private ChatService chatService;
+    private MessageRepository messageRepo;
+    private TransactionTemplate transactionTemplate;
+    private ObjectMapper objectMapper;
+    private Chatroom room;
+
+    @Setup
+    public void setup() {
+        context = new SpringApplicationBuilder(FinalApplication.class)
+                .properties("server.port=0", "chat.search.rebuild-on-startup=false",
+                        "spring.datasource.url=jdbc:h2:mem:history;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE")
+                .run();
+        chatService = context.getBean(ChatService.class);
+        messageRepo = context.getBean(MessageRepository.class);
+        transactionTemplate = new TransactionTemplate(context.getBean(org.springframework.transaction.PlatformTransactionManager.class));
+        objectMapper = context.getBean(ObjectMapper.class);
+
+        User sender = new User("history-user", "History", "secret1", "history@example.com", null);
+        context.getBean(AccountService.class).createUser(sender);
+        room = new Chatroom();
+        room.setGroup(true);
+        room.setRoomName("history");
+        room.setLastModified(LocalDateTime.now());
+        context.getBean(ChatroomRepository.class).save(room);
+        for (int i = 0; i < MESSAGES; i += 1000) {
+            chatService.sendMessages(sender, Collections.nCopies(1000, room),
+                    Collections.nCopies(1000, "a message of an ordinary length in a busy chatroom"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public int entityRead() {
+        return transactionTemplate.execute(status -> serialize(messageRepo.findAllByRoom(room)));
+    }
+
+    @Benchmark
+    public int viewRead() {
+        return serialize(chatService.getAllMessage(room));
+    }
+
+    private int serialize(Object messages) {
+        try {
+            return objectMapper.writeValueAsBytes(messages).length;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.UserDTO;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Measures MessageSearchIndex: indexing a corpus of chat messages into an empty index, per message,
+ * and a two-term query scoped to a user's rooms once the corpus is indexed.
+ * Words follow a skewed distribution over a fixed vocabulary, so some terms are common and most are rare.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageSearchIndexBenchmark {
+    private static final int MESSAGES = 100_000;
+    private static final int ROOMS = 1000;
+    private static final int VOCABULARY = 20_000;
+
+    private List<Message> corpus;
+    private MessageSearchIndex emptyIndex;
+    private MessageSearchIndex fullIndex;
+    private Set<Long> userRooms;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        List<Chatroom> rooms = new ArrayList<>(ROOMS);
+        for (long i = 0; i < ROOMS; i++) {
+            Chatroom room = new Chatroom();
+            room.setId(i);
+            rooms.add(room);
+        }
+        UserDTO sender = new UserDTO("sender", "Sender");
+        corpus = new ArrayList<>(MESSAGES);
+        for (long id = 1; id <= MESSAGES; id++) {
+            StringBuilder content = new StringBuilder();
+            int words = 4 + random.nextInt(12);
+            for (int w = 0; w < words; w++) {
+                // Squaring a uniform value skews picks towards the low, common word numbers
+                double skewed = random.nextDouble();
+                content.append("word").append((int) (skewed * skewed * VOCABULARY)).append(' ');
+            }
+            corpus.add(new Message(id, rooms.get(random.nextInt(ROOMS)), content.toString(), LocalDateTime.now(), sender));
+        }
+        fullIndex = new MessageSearchIndex();
+        fullIndex.index(corpus);
+        // A user in 50 rooms
+        userRooms = LongStream.range(0, 50).boxed().collect(Collectors.toSet());
+    }
+
+    @Setup(Level.Invocation)
+    public void resetIndex() {
+        emptyIndex = new MessageSearchIndex();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int indexCorpus() {
+        emptyIndex.index(corpus);
+        return emptyIndex.size();
+    }
+
+    @Benchmark
+    public int searchTwoTerms() {
+        return fullIndex.search("word1 word2", userRooms, 0, 50).size();
+    }
+}
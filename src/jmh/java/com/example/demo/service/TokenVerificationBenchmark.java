@@ -0,0 +1,68 @@
+package com.example.demo.service;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-request token check of AccountService.isAuthenticated:
+ * the default lookup of a UUID token in the token map against verifying a signed token with SignedTokenService.
+ * Both run on a population of logged-in users, so the map is of realistic size
+ * and the signed tokens come from different users.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenVerificationBenchmark {
+    private static final int USERS = 100_000;
+
+    private AccountService mapTokens;
+    private SignedTokenService signedTokens;
+    private String[] userIds;
+    private String[] uuidTokens;
+    private String[] signed;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mapTokens = new AccountService();
+        signedTokens = new SignedTokenService("k1:" + Base64.getEncoder().encodeToString(
+                "benchmark-secret-of-32-bytes-abc".getBytes(StandardCharsets.UTF_8)), "", Duration.ofHours(1), 1 << 20);
+        userIds = new String[USERS];
+        uuidTokens = new String[USERS];
+        signed = new String[USERS];
+        for (int i = 0; i < USERS; i++) {
+            userIds[i] = "user-" + i;
+            uuidTokens[i] = mapTokens.login(userIds[i]);
+            signed[i] = signedTokens.issue(userIds[i]);
+        }
+        // Some revocations, so verification also probes a non-empty filter
+        for (int i = 0; i < 1000; i++) {
+            signedTokens.revoke("revoked-" + i, signedTokens.issue("revoked-" + i));
+        }
+    }
+
+    @Benchmark
+    public boolean mapLookup() {
+        int i = next();
+        return mapTokens.isAuthenticated(userIds[i], uuidTokens[i]);
+    }
+
+    @Benchmark
+    public boolean signedVerify() {
+        int i = next();
+        return signedTokens.verify(userIds[i], signed[i]);
+    }
+
+    private int next() {
+        int i = next + 1;
+        next = i == USERS ? 0 : i;
+        return next;
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.demo.websocket;
+
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.broker.SimpleBrokerMessageHandler;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.messaging.DefaultSimpUserRegistry;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of delivering one notification while the number of subscribed sessions grows:
+ * a legacy per-token topic routed by the simple broker, against a /user/queue/notifications subscription
+ * delivered by NotificationDispatcher through the user registry.
+ * The broker has to scan every subscription the first time it sees a destination (and again after cache eviction),
+ * which is what makes the topic path grow with the subscription count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BrokerDispatchBenchmark {
+    @Param({"1000", "10000", "100000"})
+    private int subscriptions;
+
+    private SimpleBrokerMessageHandler broker;
+    private NotificationDispatcher dispatcher;
+    private Message<?>[] topicMessages;
+    private Message<byte[]> frame;
+    private int next;
+
+    @Setup
+    public void setup() {
+        ExecutorSubscribableChannel clientInboundChannel = new ExecutorSubscribableChannel();
+        ExecutorSubscribableChannel brokerChannel = new ExecutorSubscribableChannel();
+        MessageChannel clientOutboundChannel = (message, timeout) -> true;
+        broker = new SimpleBrokerMessageHandler(clientInboundChannel, clientOutboundChannel, brokerChannel, List.of("/topic", "/queue"));
+        broker.setCacheLimit(65536);
+        broker.start();
+
+        DefaultSimpUserRegistry userRegistry = new DefaultSimpUserRegistry();
+        dispatcher = new NotificationDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "simpUserRegistry", userRegistry);
+        ReflectionTestUtils.setField(dispatcher, "clientOutboundChannel", clientOutboundChannel);
+        ReflectionTestUtils.setField(dispatcher, "messagingTemplate", new SimpMessagingTemplate(brokerChannel));
+
+        topicMessages = new Message<?>[subscriptions];
+        for (int i = 0; i < subscriptions; i++) {
+            String sessionId = "session-" + i;
+            StompPrincipal user = new StompPrincipal("user-" + i);
+            userRegistry.onApplicationEvent(new SessionConnectedEvent(this, headers(SimpMessageType.CONNECT_ACK, sessionId, null), user));
+            userRegistry.onApplicationEvent(new SessionSubscribeEvent(this,
+                    headers(SimpMessageType.SUBSCRIBE, sessionId, NotificationDispatcher.USER_NOTIFICATION_DESTINATION), user));
+            // Legacy clients subscribe to their token topic, and the user destination also lands in the broker
+            broker.handleMessage(headers(SimpMessageType.SUBSCRIBE, sessionId, "/topic/notifications/token-" + i));
+            broker.handleMessage(headers(SimpMessageType.SUBSCRIBE, sessionId, "/queue/notifications-user" + sessionId));
+            topicMessages[i] = headers(SimpMessageType.MESSAGE, null, "/topic/notifications/token-" + i);
+        }
+        frame = MessageBuilder.withPayload("{\"roomId\":1,\"senderName\":\"a\",\"content\":\"b\"}".getBytes())
+                .setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON)
+                .build();
+    }
+
+    @Benchmark
+    public void tokenTopic() {
+        broker.handleMessage(topicMessages[nextIndex()]);
+    }
+
+    @Benchmark
+    public void userDestination() {
+        dispatcher.deliver("user-" + nextIndex(), frame);
+    }
+
+    private int nextIndex() {
+        next = (next + 7919) % subscriptions;
+        return next;
+    }
+
+    private Message<byte[]> headers(SimpMessageType type, String sessionId, String destination) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(type);
+        accessor.setSessionId(sessionId);
+        accessor.setDestination(destination);
+        if (type == SimpMessageType.SUBSCRIBE) {
+            accessor.setSubscriptionId("sub-" + destination);
+        }
+        return MessageBuilder.createMessage(new byte[0], accessor.getMessageHeaders());
+    }
+}
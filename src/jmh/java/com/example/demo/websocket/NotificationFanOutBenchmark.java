@@ -0,0 +1,71 @@
+package com.example.demo.websocket;
+
+import com.example.demo.controller.ChatController.Notification;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares converting a notification once per recipient with encoding it once and sending the same frame.
+ * Run with the gc profiler (the default in the benchmark profile) to see allocations per send.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationFanOutBenchmark {
+    @Param({"10", "100", "1000"})
+    private int recipients;
+
+    private SimpMessagingTemplate messagingTemplate;
+    private NotificationDispatcher dispatcher;
+    private String[] destinations;
+    private long sent;
+
+    @Setup
+    public void setup() {
+        // Discards every message, so only conversion and header handling are measured
+        MessageChannel channel = (message, timeout) -> {
+            sent++;
+            return true;
+        };
+        messagingTemplate = new SimpMessagingTemplate(channel);
+        messagingTemplate.setMessageConverter(new CompositeMessageConverter(List.of(
+                new StringMessageConverter(), new ByteArrayMessageConverter(), new MappingJackson2MessageConverter())));
+        dispatcher = new NotificationDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "messagingTemplate", messagingTemplate);
+        destinations = new String[recipients];
+        for (int i = 0; i < recipients; i++) {
+            destinations[i] = "/topic/notifications/token-" + i;
+        }
+    }
+
+    @Benchmark
+    public long convertPerRecipient() {
+        Notification notification = new Notification(42L, "sender", "a message of typical length for a chat room", 4242L);
+        for (String destination : destinations) {
+            messagingTemplate.convertAndSend(destination, notification);
+        }
+        return sent;
+    }
+
+    @Benchmark
+    public long encodeOnce() {
+        Message<?> frame = dispatcher.encode(new Notification(42L, "sender", "a message of typical length for a chat room", 4242L));
+        for (String destination : destinations) {
+            messagingTemplate.send(destination, frame);
+        }
+        return sent;
+    }
+}
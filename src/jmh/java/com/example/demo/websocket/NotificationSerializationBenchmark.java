@@ -0,0 +1,60 @@
+package com.example.demo.websocket;
+
+import com.example.demo.controller.ChatController.Notification;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures NotificationDispatcher.encode, the one JSON conversion done per fan-out:
+ * a single notification, and the array of notifications a recipient of a batch of messages receives in one frame.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationSerializationBenchmark {
+    @Param({"10", "100"})
+    private int batchSize;
+
+    private NotificationDispatcher dispatcher;
+    private Notification notification;
+    private List<Notification> batch;
+
+    @Setup
+    public void setup() {
+        MessageChannel channel = (message, timeout) -> true;
+        SimpMessagingTemplate messagingTemplate = new SimpMessagingTemplate(channel);
+        messagingTemplate.setMessageConverter(new CompositeMessageConverter(List.of(
+                new StringMessageConverter(), new ByteArrayMessageConverter(), new MappingJackson2MessageConverter())));
+        dispatcher = new NotificationDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "messagingTemplate", messagingTemplate);
+        notification = new Notification(42L, "sender", "a message of typical length for a chat room", 4242L);
+        batch = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new Notification(42L + i, "sender", "a message of typical length for a chat room", 4242L + i));
+        }
+    }
+
+    @Benchmark
+    public Message<?> encodeOne() {
+        return dispatcher.encode(notification);
+    }
+
+    @Benchmark
+    public Message<?> encodeBatch() {
+        return dispatcher.encode(batch);
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.demo.websocket;
+
+import com.example.demo.FinalApplication;
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Participant;
+import com.example.demo.model.User;
+import com.example.demo.repository.ChatroomRepository;
+import com.example.demo.repository.ParticipantRepository;
+import com.example.demo.service.AccountService;
+import com.example.demo.websocket.WebsocketController.SendAck;
+import com.example.demo.websocket.WebsocketController.SendForm;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.LocalDateTime;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the round trip of sending one chat message on a running server with an embedded H2 database:
+ * an HTTP POST to /room/message/{id} against a "send" frame on an open STOMP connection, answered on /user/queue/acks.
+ * Both paths persist the message and queue its notification the same way,
+ * so the difference is the per-request cost of HTTP, JSON request parsing and the token check.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendLatencyBenchmark {
+    private static final String USER_ID = "latency-user";
+
+    private ConfigurableApplicationContext context;
+    private HttpClient httpClient;
+    private HttpRequest httpSend;
+    private WebSocketStompClient stompClient;
+    private StompSession stompSession;
+    private final BlockingQueue<SendAck> acks = new LinkedBlockingQueue<>();
+    private Long roomId;
+    private long nextMessageId;
+
+    @Setup
+    public void setup() throws Exception {
+        context = new SpringApplicationBuilder(FinalApplication.class)
+                .properties("server.port=0",
+                        "spring.datasource.url=jdbc:h2:mem:latency;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1")
+                .run();
+        int port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+
+        AccountService accountService = context.getBean(AccountService.class);
+        User user = new User(USER_ID, "Latency", "secret1", "latency@example.com", null);
+        accountService.createUser(user);
+        Chatroom room = new Chatroom();
+        room.setGroup(true);
+        room.setRoomName("latency");
+        room.setLastModified(LocalDateTime.now());
+        context.getBean(ChatroomRepository.class).save(room);
+        context.getBean(ParticipantRepository.class).save(new Participant(null, room, user.toDTO()));
+        roomId = room.getId();
+        String token = accountService.login(USER_ID);
+
+        httpClient = HttpClient.newHttpClient();
+        httpSend = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/room/message/" + USER_ID))
+                .header("Authorization", token)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"roomId\":" + roomId + ",\"content\":\"hello\"}"))
+                .build();
+
+        stompClient = new WebSocketStompClient(new StandardWebSocketClient());
+        stompClient.setMessageConverter(new MappingJackson2MessageConverter());
+        StompHeaders connectHeaders = new StompHeaders();
+        connectHeaders.add("id", USER_ID);
+        connectHeaders.add("token", token);
+        stompSession = stompClient.connectAsync("ws://localhost:" + port + "/ws", new WebSocketHttpHeaders(), connectHeaders,
+                new StompSessionHandlerAdapter() { }).get(10, TimeUnit.SECONDS);
+        stompSession.subscribe("/user/queue/acks", new StompFrameHandler() {
+            @Override
+            public Type getPayloadType(StompHeaders headers) {
+                return SendAck.class;
+            }
+
+            @Override
+            public void handleFrame(StompHeaders headers, Object payload) {
+                acks.add((SendAck) payload);
+            }
+        });
+        // The simple broker does not send receipts, so wait until a first message is acked
+        for (int attempt = 0; acks.poll(200, TimeUnit.MILLISECONDS) == null; attempt++) {
+            if (attempt == 50) {
+                throw new IllegalStateException("No ack received on /user/queue/acks");
+            }
+            stompSession.send("/app/send", newSendForm());
+        }
+        acks.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        stompSession.disconnect();
+        stompClient.stop();
+        context.close();
+    }
+
+    @Benchmark
+    public int httpPost() throws Exception {
+        HttpResponse<Void> response = httpClient.send(httpSend, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("HTTP send failed with status " + response.statusCode());
+        }
+        return response.statusCode();
+    }
+
+    @Benchmark
+    public int stompSend() throws Exception {
+        stompSession.send("/app/send", newSendForm());
+        SendAck ack = acks.poll(5, TimeUnit.SECONDS);
+        if (ack == null || ack.getStatus() != 200) {
+            throw new IllegalStateException("STOMP send failed: " + ack);
+        }
+        return ack.getStatus();
+    }
+
+    private SendForm newSendForm() {
+        SendForm form = new SendForm();
+        form.setClientMessageId(Long.toString(nextMessageId++));
+        form.setRoomId(roomId);
+        form.setContent("hello");
+        return form;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.UserDTO;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures online-presence checks for one message fan-out against a large number of connected sessions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebsocketSessionManagerBenchmark {
+    @Param({"1000", "100000"})
+    private int sessions;
+
+    @Param({"2000"})
+    private int participants;
+
+    private WebsocketSessionManager sessionManager;
+    private List<UserDTO> users;
+    private List<String> userIds;
+
+    @Setup
+    public void setup() {
+        sessionManager = new WebsocketSessionManager();
+        for (int i = 0; i < sessions; i++) {
+            // Every tenth session is a second device of the previous user
+            int user = i % 10 == 9 ? i - 1 : i;
+            sessionManager.addSession("session-" + i, "user-" + user);
+        }
+        users = new ArrayList<>();
+        userIds = new ArrayList<>();
+        for (int i = 0; i < participants; i++) {
+            // Roughly half of the participants are online
+            String userId = "user-" + (i % 2 == 0 ? i : sessions + i);
+            users.add(new UserDTO(userId, "name"));
+            userIds.add(userId);
+        }
+    }
+
+    @Benchmark
+    public List<UserDTO> filterOnlineUser() {
+        return sessionManager.filterOnlineUser(users);
+    }
+
+    @Benchmark
+    public Set<String> onlineSubset() {
+        return sessionManager.onlineSubset(userIds);
+    }
+}
@@ -84,7 +84,7 @@ public class AccountController {
             return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
         }
 
-        if (accountService.logout(id)) {
+        if (accountService.logout(id, token)) {
             return ResponseEntity.status(200).body(util.EMPTY_RESPONSE);
         } else {
             return ResponseEntity.status(403).body(new ErrorResponse("Not logged in"));
@@ -5,43 +5,47 @@
 package com.example.demo.controller;
 
 import com.example.demo.model.Chatroom;
+import com.example.demo.model.ChatroomSummary;
 import com.example.demo.model.Message;
+import com.example.demo.model.MessageView;
+import com.example.demo.model.UnreadCount;
 import com.example.demo.model.User;
 import com.example.demo.model.UserDTO;
+import com.example.demo.response.BatchSendResult;
 import com.example.demo.response.ErrorResponse;
+import com.example.demo.response.MessagePage;
+import com.example.demo.response.SearchPage;
 import com.example.demo.response.util;
 import com.example.demo.service.AccountService;
 import com.example.demo.service.ChatService;
-import com.example.demo.websocket.WebsocketSessionManager;
+import com.example.demo.websocket.NotificationDispatcher;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.aspectj.weaver.ast.Not;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/room")
 public class ChatController {
+    public static final int MAX_BATCH_SIZE = 1000;
+
     @Autowired
     private AccountService accountService;
     @Autowired
     private ChatService chatService;
 
-    private WebsocketSessionManager websocketSessionManager;
-
-    private final SimpMessagingTemplate messagingTemplate;
-
     @Autowired
-    public ChatController(WebsocketSessionManager sessionManager, SimpMessagingTemplate messagingTemplate) {
-        this.websocketSessionManager = sessionManager;
-        this.messagingTemplate = messagingTemplate;
-    }
+    private NotificationDispatcher notificationDispatcher;
 
     /**
      * Sends a message to a chat room.
@@ -61,27 +65,96 @@ public class ChatController {
             return ResponseEntity.status(404).body(new ErrorResponse("Chatroom not found"));
         }
         User user = accountService.findUser(id);
-        chatService.sendMessage(user, room, messageForm.getContent());
-        // Push notification
-        List<UserDTO> onlineUsers = websocketSessionManager.filterOnlineUser(chatService.getAllParticipantExceptSender(room, user));
-        for (UserDTO onlineUser : onlineUsers) {
-            String destination = accountService.getNotificationTopic(onlineUser.getId());
-            System.out.println(destination);
-            messagingTemplate.convertAndSend(destination, new Notification(room.getId(), user.getName(), messageForm.getContent())); // Send the notification
+        Message message = chatService.sendMessage(user, room, messageForm.getContent());
+        if (message == null) {
+            return ResponseEntity.status(503).body(new ErrorResponse("Server busy"));
         }
+        // Push notification
+        notificationDispatcher.publish(room, user, message);
         return ResponseEntity.status(200).body(util.EMPTY_RESPONSE);
     }
 
+    /**
+     * Sends many messages, possibly to different chat rooms, in one request.
+     * Each message is validated on its own; the others are still sent when one of them fails.
+     *
+     * @param id        The user ID.
+     * @param token     The authorization token.
+     * @param batchForm The batch form containing the room ID and content of each message.
+     * @return The ResponseEntity containing the result of each message, in request order, or an error response.
+     */
+    @PostMapping("/message/batch/{id}")
+    public ResponseEntity<?> sendMessagesToRooms(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestBody BatchMessageForm batchForm) {
+        if (!accountService.isAuthenticated(id, token)) {
+            return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
+        }
+        List<MessageRoomForm> items = batchForm.getMessages();
+        if (items == null || items.isEmpty()) {
+            return ResponseEntity.status(400).body(new ErrorResponse("No messages"));
+        }
+        if (items.size() > MAX_BATCH_SIZE) {
+            return ResponseEntity.status(400).body(new ErrorResponse("Too many messages"));
+        }
+        User user = accountService.findUser(id);
+        Set<Long> roomIds = new HashSet<>();
+        for (MessageRoomForm item : items) {
+            if (item != null && item.getRoomId() != null) {
+                roomIds.add(item.getRoomId());
+            }
+        }
+        Map<Long, Chatroom> rooms = new HashMap<>();
+        for (Chatroom room : chatService.findChatrooms(roomIds)) {
+            rooms.put(room.getId(), room);
+        }
+        Set<Long> memberRooms = chatService.filterMemberRooms(rooms.values(), user);
+
+        List<BatchSendResult> results = new ArrayList<>(items.size());
+        List<Integer> accepted = new ArrayList<>();
+        List<Chatroom> targetRooms = new ArrayList<>();
+        List<String> contents = new ArrayList<>();
+        for (MessageRoomForm item : items) {
+            Long roomId = item == null ? null : item.getRoomId();
+            if (item == null || item.getContent() == null) {
+                results.add(new BatchSendResult(roomId, 400, null, "Missing content"));
+            } else if (!rooms.containsKey(roomId)) {
+                results.add(new BatchSendResult(roomId, 404, null, "Chatroom not found"));
+            } else if (!memberRooms.contains(roomId)) {
+                results.add(new BatchSendResult(roomId, 403, null, "Not your chatroom"));
+            } else {
+                accepted.add(results.size());
+                results.add(null);
+                targetRooms.add(rooms.get(roomId));
+                contents.add(item.getContent());
+            }
+        }
+        if (!accepted.isEmpty()) {
+            List<Message> messages = chatService.sendMessages(user, targetRooms, contents);
+            for (int i = 0; i < messages.size(); i++) {
+                Message message = messages.get(i);
+                results.set(accepted.get(i), new BatchSendResult(message.getRoom().getId(), 200, message.getId(), null));
+            }
+            // Push notifications
+            notificationDispatcher.publishAll(user, messages);
+        }
+        return ResponseEntity.status(200).body(results);
+    }
+
     /**
      * Retrieves the chat history of a chat room.
      *
      * @param id      The user ID.
      * @param token   The authorization token.
      * @param roomId  The ID of the chat room.
+     * @param before  Only return messages older than this message ID (optional).
+     * @param after   Only return messages newer than this message ID (optional).
+     * @param limit   The maximum number of messages to return (optional).
+     * @param all     Whether to return the whole history instead of a page (optional, defaults to false).
      * @return The ResponseEntity containing the chat history or an error response.
      */
     @GetMapping("/messages/{id}")
-    public ResponseEntity<?> viewChatHistory(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestParam Long roomId) {
+    public ResponseEntity<?> viewChatHistory(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestParam Long roomId,
+                                             @RequestParam(required = false) Long before, @RequestParam(required = false) Long after,
+                                             @RequestParam(required = false) Integer limit, @RequestParam(defaultValue = "false") boolean all) {
         if (!accountService.isAuthenticated(id, token)) {
             return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
         }
@@ -93,25 +166,100 @@ public class ChatController {
         if (!chatService.inChatroom(room, user)) {
             return ResponseEntity.status(403).body(new ErrorResponse("Not your chatroom"));
         }
-        List<Message> messages = chatService.getAllMessage(room);
+        if (all) {
+            List<MessageView> messages = chatService.getAllMessage(room);
+            return ResponseEntity.status(200).body(messages);
+        }
+        MessagePage page = chatService.getMessages(room, before, after, limit);
+        return ResponseEntity.status(200).body(page);
+    }
 
-        return ResponseEntity.status(200).body(messages);
+    /**
+     * Searches the messages of all chat rooms of a user.
+     *
+     * @param id    The user ID.
+     * @param token The authorization token.
+     * @param q     The search query; every word must occur in a matching message.
+     * @param page  The zero-based page number (optional, defaults to 0).
+     * @param size  The page size (optional).
+     * @return The ResponseEntity containing the page of matching messages or an error response.
+     */
+    @GetMapping("/search/{id}")
+    public ResponseEntity<?> searchMessages(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestParam String q,
+                                            @RequestParam(defaultValue = "0") int page, @RequestParam(required = false) Integer size) {
+        if (!accountService.isAuthenticated(id, token)) {
+            return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
+        }
+        User user = accountService.findUser(id);
+        SearchPage results = chatService.searchMessages(user, q, page, size);
+        return ResponseEntity.status(200).body(results);
     }
 
     /**
-     * Retrieves all chat rooms associated with a user.
+     * Marks a chat room as read up to a message.
+     * Acks are buffered and written in batches, so clients may ack as often as they like.
+     *
+     * @param id       The user ID.
+     * @param token    The authorization token.
+     * @param readForm The read form containing the room ID and the ID of the last read message.
+     * @return The ResponseEntity indicating the success or failure of the ack.
+     */
+    @PostMapping("/read/{id}")
+    public ResponseEntity<?> markRead(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestBody ReadForm readForm) {
+        if (!accountService.isAuthenticated(id, token)) {
+            return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
+        }
+        if (readForm.getMessageId() == null) {
+            return ResponseEntity.status(400).body(new ErrorResponse("Missing message ID"));
+        }
+        Chatroom room = chatService.findChatroom(readForm.getRoomId());
+        User user = accountService.findUser(id);
+        if (room == null) {
+            return ResponseEntity.status(404).body(new ErrorResponse("Chatroom not found"));
+        }
+        if (!chatService.inChatroom(room, user)) {
+            return ResponseEntity.status(403).body(new ErrorResponse("Not your chatroom"));
+        }
+        chatService.markRead(user, room, readForm.getMessageId());
+        return ResponseEntity.status(200).body(util.EMPTY_RESPONSE);
+    }
+
+    /**
+     * Retrieves the number of unread messages in each chat room of a user that has any.
      *
      * @param id    The user ID.
      * @param token The authorization token.
+     * @return The ResponseEntity containing the unread counts or an error response.
+     */
+    @GetMapping("/unread/{id}")
+    public ResponseEntity<?> viewUnreadCounts(@PathVariable String id, @RequestHeader("Authorization") String token) {
+        if (!accountService.isAuthenticated(id, token)) {
+            return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
+        }
+        User user = accountService.findUser(id);
+        List<UnreadCount> unreadCounts = chatService.getUnreadCounts(user);
+        return ResponseEntity.status(200).body(unreadCounts);
+    }
+
+    /**
+     * Retrieves all chat rooms associated with a user.
+     *
+     * @param id     The user ID.
+     * @param token  The authorization token.
+     * @param before The ID of the last chat room of the previous page, to continue after it (optional).
+     * @param page   The zero-based page number (optional, defaults to 0), counted from before when it is given.
+     * @param size   The page size (optional).
      * @return The ResponseEntity containing the list of chat rooms or an error response.
      */
     @GetMapping("/all/{id}")
-    public ResponseEntity<?> viewChatRoom(@PathVariable String id, @RequestHeader("Authorization") String token) {
+    public ResponseEntity<?> viewChatRoom(@PathVariable String id, @RequestHeader("Authorization") String token,
+                                          @RequestParam(required = false) Long before,
+                                          @RequestParam(defaultValue = "0") int page, @RequestParam(required = false) Integer size) {
         if (!accountService.isAuthenticated(id, token)) {
             return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
         }
         User user = accountService.findUser(id);
-        List<Chatroom> chatrooms = chatService.viewAllChatroom(user);
+        List<ChatroomSummary> chatrooms = chatService.viewAllChatroom(user, before, page, size);
         return ResponseEntity.status(200).body(chatrooms);
     }
 
@@ -171,9 +319,31 @@ public class ChatController {
         private String content;
     }
 
+    /**
+     * The ReadForm class represents the form data for marking a chat room as read.
+     * It contains the room ID and the ID of the last read message.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class ReadForm {
+        private Long roomId;
+        private Long messageId;
+    }
+
+    /**
+     * The BatchMessageForm class represents the form data for sending many messages at once.
+     * It contains the room ID and content of each message.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class BatchMessageForm {
+        private List<MessageRoomForm> messages;
+    }
+
     /**
      * The Notification class represents a chat notification.
-     * It contains the room ID, sender's name, and message content.
+     * It contains the room ID, sender's name, message content and message ID.
+     * The message ID lets clients drop notifications they have already seen when missed messages are replayed.
      */
     @Data
     @NoArgsConstructor
@@ -182,5 +352,6 @@ public class ChatController {
         private Long roomId;
         private String senderName;
         private String content;
+        private Long messageId;
     }
 }
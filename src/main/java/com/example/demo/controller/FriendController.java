@@ -2,13 +2,16 @@ package com.example.demo.controller;
 
 import com.example.demo.model.Chatroom;
 import com.example.demo.model.Message;
+import com.example.demo.model.MessageView;
 import com.example.demo.model.User;
 import com.example.demo.model.UserDTO;
 import com.example.demo.response.ErrorResponse;
+import com.example.demo.response.MessagePage;
 import com.example.demo.response.util;
 import com.example.demo.service.AccountService;
 import com.example.demo.service.ChatService;
 import com.example.demo.service.FriendService;
+import com.example.demo.websocket.NotificationDispatcher;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -33,6 +36,9 @@ public class FriendController {
     @Autowired
     private ChatService chatService;
 
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
     /**
      * Retrieves information about the friends of a user.
      *
@@ -97,16 +103,67 @@ public class FriendController {
         return ResponseEntity.status(200).body(friend.toDTO());
     }
 
+    /**
+     * Retrieves the friends that a user has in common with another user.
+     *
+     * @param id      The user ID.
+     * @param token   The authorization token.
+     * @param otherId The ID of the other user.
+     * @return The ResponseEntity containing the list of mutual friends or an error response.
+     */
+    @GetMapping("/mutual/{id}")
+    public ResponseEntity<?> getMutualFriends(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestParam String otherId) {
+        if(!accountService.isAuthenticated(id, token)){
+            return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
+        }
+        if(!accountService.checkUserExist(otherId)){
+            return ResponseEntity.status(404).body(new ErrorResponse("User does not exist"));
+        }
+        User user = accountService.findUser(id);
+        User other = accountService.findUser(otherId);
+        List<UserDTO> friends = friendService.getMutualFriends(user, other);
+        return ResponseEntity.status(200).body(friends);
+    }
+
+    /**
+     * Suggests friends of the user's friends, most connected first.
+     *
+     * @param id    The user ID.
+     * @param token The authorization token.
+     * @param limit The maximum number of suggestions.
+     * @return The ResponseEntity containing the list of suggested users or an error response.
+     */
+    @GetMapping("/suggest/{id}")
+    public ResponseEntity<?> suggestFriends(@PathVariable String id, @RequestHeader("Authorization") String token,
+                                            @RequestParam(defaultValue = "20") int limit) {
+        if(!accountService.isAuthenticated(id, token)){
+            return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
+        }
+        User user = accountService.findUser(id);
+        List<UserDTO> suggestions = friendService.getFriendSuggestions(user, Math.max(0, limit));
+        return ResponseEntity.status(200).body(suggestions);
+    }
+
     /**
      * Retrieves the chat history between a user and a friend.
+     * With since, only messages newer than that message ID are returned, or 304 Not Modified if there are none;
+     * this is answered from the chatroom row alone, so clients that still poll do not read the message table.
      *
      * @param id        The user ID.
      * @param token     The authorization token.
      * @param friendId  The ID of the friend.
+     * @param before    Only return messages older than this message ID (optional).
+     * @param after     Only return messages newer than this message ID (optional).
+     * @param limit     The maximum number of messages to return (optional).
+     * @param since     Only return messages newer than this message ID, or 304 if there are none (optional).
+     * @param all       Whether to return the whole history instead of a page (optional, defaults to false).
      * @return The ResponseEntity containing the list of messages or an error response.
      */
     @GetMapping("/messages/{id}")
-    public ResponseEntity<?> viewChatHistory(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestParam String friendId) {
+    public ResponseEntity<?> viewChatHistory(@PathVariable String id, @RequestHeader("Authorization") String token, @RequestParam String friendId,
+                                             @RequestParam(required = false) Long before, @RequestParam(required = false) Long after,
+                                             @RequestParam(required = false) Integer limit, @RequestParam(required = false) Long since,
+                                             @RequestParam(defaultValue = "false") boolean all) {
         if(!accountService.isAuthenticated(id, token)){
             return ResponseEntity.status(401).body(new ErrorResponse("Authentication failed"));
         }
@@ -116,12 +173,22 @@ public class FriendController {
         if(room == null){
             return ResponseEntity.status(404).body(new ErrorResponse("Chatroom not found"));
         }
-        List<Message> messages = chatService.getAllMessage(room);
-        return ResponseEntity.status(200).body(messages);
+        if(since != null){
+            if(!chatService.hasMessagesAfter(room, since)){
+                return ResponseEntity.status(304).build();
+            }
+            return ResponseEntity.status(200).body(chatService.getMessages(room, null, since, limit));
+        }
+        if(all){
+            List<MessageView> messages = chatService.getAllMessage(room);
+            return ResponseEntity.status(200).body(messages);
+        }
+        MessagePage page = chatService.getMessages(room, before, after, limit);
+        return ResponseEntity.status(200).body(page);
     }
 
     /**
-     * Sends a message from a user to a friend.
+     * Sends a message from a user to a friend and pushes it to the friend if they are online.
      *
      * @param id           The user ID.
      * @param token        The authorization token.
@@ -138,11 +205,13 @@ public class FriendController {
         if(!friendService.isYourFriend(user, friend)){
             return ResponseEntity.status(403).body(new ErrorResponse("Not your friend"));
         }
-        Chatroom ourRoom = chatService.findOurChatroom(user, friend);
-        if(ourRoom==null){
-            ourRoom = chatService.createPrivateChatroom(user, friend);
+        Chatroom ourRoom = chatService.getOrCreatePrivateChatroom(user, friend);
+        Message message = chatService.sendMessage(user, ourRoom, messageForm.getContent());
+        if(message == null){
+            return ResponseEntity.status(503).body(new ErrorResponse("Server busy"));
         }
-        chatService.sendMessage(user, ourRoom, messageForm.getContent());
+        // Push notification
+        notificationDispatcher.publish(ourRoom, user, message);
         return ResponseEntity.status(200).body(util.EMPTY_RESPONSE);
     }
 
@@ -0,0 +1,56 @@
+package com.example.demo.metrics;
+
+import com.example.demo.service.AccountService;
+import com.example.demo.service.MessageWriteBehindQueue;
+import com.example.demo.websocket.NotificationDispatcher;
+import com.example.demo.websocket.WebsocketSessionManager;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registers gauges for the in-memory state of the chat server: STOMP sessions, logged-in tokens,
+ * and the depths of the queues between receiving a message and pushing it to its recipients.
+ * Gauges are read when the registry is scraped, so they cost nothing on the hot paths.
+ * The STOMP channel queues are published by Spring Boot, as executor.queued tagged with
+ * name=clientInboundChannelExecutor and name=clientOutboundChannelExecutor.
+ */
+@Component
+public class ChatMetrics implements MeterBinder {
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private AccountService accountService;
+
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
+    @Autowired
+    private MessageWriteBehindQueue writeBehindQueue;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("chat.stomp.sessions", websocketSessionManager, WebsocketSessionManager::getSessionCount)
+                .description("Logged-in STOMP sessions on this node, across all users")
+                .register(registry);
+        Gauge.builder("chat.stomp.online.users", websocketSessionManager, WebsocketSessionManager::getOnlineUserCount)
+                .description("Users with at least one STOMP session on this node")
+                .register(registry);
+        Gauge.builder("chat.tokens", accountService, AccountService::getLoggedInCount)
+                .description("Users holding a login token")
+                .register(registry);
+        Gauge.builder("chat.fanout.queue", notificationDispatcher, NotificationDispatcher::getQueueDepth)
+                .description("Fan-outs waiting across all notification stripes")
+                .register(registry);
+        Gauge.builder("chat.write-behind.queue", writeBehindQueue, MessageWriteBehindQueue::getQueueDepth)
+                .description("Messages waiting to be written to the database")
+                .register(registry);
+        FunctionCounter.builder("chat.write-behind.dead-letters", writeBehindQueue, MessageWriteBehindQueue::getDeadLetterCount)
+                .description("Queued messages that could not be written and were moved to the dead-letter file")
+                .register(registry);
+    }
+}
@@ -0,0 +1,45 @@
+package com.example.demo.metrics;
+
+import io.micrometer.core.aop.TimedAspect;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.hibernate.cfg.AvailableSettings;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Wires the metrics that Spring Boot does not record on its own.
+ * HTTP endpoints are timed by Spring Boot as http.server.requests, per URI pattern;
+ * classes annotated with @Timed, such as ChatService, get a timer per method through the TimedAspect;
+ * and every Hibernate statement is counted against the HTTP request that issued it.
+ * Everything is scraped from /actuator/prometheus.
+ */
+@Configuration
+public class MetricsConfiguration implements WebMvcConfigurer {
+    @Autowired
+    private RequestQueryCounter requestQueryCounter;
+
+    /**
+     * Times the methods of classes and methods annotated with @Timed.
+     */
+    @Bean
+    public TimedAspect timedAspect(MeterRegistry meterRegistry) {
+        return new TimedAspect(meterRegistry);
+    }
+
+    /**
+     * Lets the query counter see every SQL statement Hibernate prepares.
+     */
+    @Bean
+    public HibernatePropertiesCustomizer queryCountingCustomizer() {
+        return properties -> properties.put(AvailableSettings.STATEMENT_INSPECTOR, requestQueryCounter);
+    }
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        registry.addInterceptor(requestQueryCounter);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.demo.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts the Hibernate statements issued while an HTTP request is handled, and records the count per request
+ * in the chat.http.queries histogram, tagged with the request's method and URI pattern.
+ * Statements are counted on the request thread only: writes done later by MessageBatchWriter,
+ * and statements outside of HTTP requests, are not counted.
+ * There is one summary per method and URI pattern; each is registered on first use and then reused.
+ */
+@Component
+public class RequestQueryCounter implements StatementInspector, HandlerInterceptor {
+    private static final ThreadLocal<int[]> QUERIES = new ThreadLocal<>(); // Statement count of the current request
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private final Map<String, DistributionSummary> summaries = new ConcurrentHashMap<>(); // Keyed by method and URI pattern
+
+    /**
+     * Counts a statement if the current thread is handling a request, leaving the SQL untouched.
+     *
+     * @param sql The SQL Hibernate is about to prepare.
+     * @return The same SQL.
+     */
+    @Override
+    public String inspect(String sql) {
+        int[] queries = QUERIES.get();
+        if (queries != null) {
+            queries[0]++;
+        }
+        return sql;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        QUERIES.set(new int[1]);
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        int[] queries = QUERIES.get();
+        QUERIES.remove();
+        if (queries == null) {
+            return;
+        }
+        Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        summary(request.getMethod(), pattern == null ? "UNKNOWN" : pattern.toString()).record(queries[0]);
+    }
+
+    /**
+     * Returns the summary for a method and URI pattern, registering it the first time.
+     */
+    DistributionSummary summary(String method, String uri) {
+        return summaries.computeIfAbsent(method + " " + uri, key -> DistributionSummary.builder("chat.http.queries")
+                .description("Hibernate statements issued per HTTP request")
+                .tag("method", method)
+                .tag("uri", uri)
+                .serviceLevelObjectives(1, 2, 3, 5, 10, 20, 50, 100)
+                .register(meterRegistry));
+    }
+}
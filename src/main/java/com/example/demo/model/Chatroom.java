@@ -12,6 +12,49 @@ import java.time.LocalDateTime;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
+@NamedNativeQuery(name = "Chatroom.inbox", resultSetMapping = "ChatroomSummary", query = """
+        SELECT r.id AS id,
+               CASE WHEN r.is_group = TRUE THEN r.room_name
+                    WHEN r.participant1_id = :userId THEN r.participant2_name
+                    ELSE r.participant1_name END AS room_name,
+               r.is_group AS is_group,
+               r.last_message AS last_message,
+               r.last_modified AS last_modified,
+               (SELECT COUNT(*) FROM message m
+                WHERE m.room_id = r.id AND m.id > COALESCE(c.last_read_message_id, 0) AND m.sender_id <> :userId) AS unread_count
+        FROM (SELECT id, last_modified FROM (
+                  (SELECT r1.id, r1.last_modified FROM chatroom r1
+                   WHERE r1.participant1_id = :userId
+                     AND (r1.last_modified < :beforeTime OR (r1.last_modified = :beforeTime AND r1.id < :beforeId))
+                   ORDER BY r1.last_modified DESC, r1.id DESC LIMIT :rows)
+                  UNION
+                  (SELECT r2.id, r2.last_modified FROM chatroom r2
+                   WHERE r2.participant2_id = :userId
+                     AND (r2.last_modified < :beforeTime OR (r2.last_modified = :beforeTime AND r2.id < :beforeId))
+                   ORDER BY r2.last_modified DESC, r2.id DESC LIMIT :rows)
+                  UNION
+                  (SELECT r3.id, r3.last_modified FROM participant p JOIN chatroom r3 ON r3.id = p.room_id
+                   WHERE p.participant_id = :userId
+                     AND (r3.last_modified < :beforeTime OR (r3.last_modified = :beforeTime AND r3.id < :beforeId))
+                   ORDER BY r3.last_modified DESC, r3.id DESC LIMIT :rows)
+              ) inbox
+              ORDER BY last_modified DESC, id DESC LIMIT :limit OFFSET :offset) page
+        JOIN chatroom r ON r.id = page.id
+        LEFT JOIN room_cursor c ON c.room_id = r.id AND c.user_id = :userId
+        ORDER BY page.last_modified DESC, page.id DESC
+        """)
+@SqlResultSetMapping(name = "ChatroomSummary", classes = @ConstructorResult(targetClass = ChatroomSummary.class, columns = {
+        @ColumnResult(name = "id", type = Long.class),
+        @ColumnResult(name = "room_name", type = String.class),
+        @ColumnResult(name = "is_group", type = boolean.class),
+        @ColumnResult(name = "last_message", type = String.class),
+        @ColumnResult(name = "last_modified", type = LocalDateTime.class),
+        @ColumnResult(name = "unread_count", type = long.class)
+}))
+@Table(indexes = {
+        @Index(name = "idx_chatroom_participant1", columnList = "participant1_id, lastModified"),
+        @Index(name = "idx_chatroom_participant2", columnList = "participant2_id, lastModified")
+}, uniqueConstraints = @UniqueConstraint(name = "uk_chatroom_pair", columnNames = {"pairLow", "pairHigh"}))
 public class Chatroom {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -34,5 +77,13 @@ public class Chatroom {
     private LocalDateTime lastModified;
 
     private String lastMessage;
+    // Only ever raised, by ChatroomRepository.advanceLastMessageId and MessageBatchWriter, so a stale entity cannot lower it
+    @Column(insertable = false, updatable = false)
+    private Long lastMessageId;
+    // Private chatrooms only: the lower and higher of the two participant IDs
+    @JsonIgnore
+    private String pairLow;
+    @JsonIgnore
+    private String pairHigh;
 
 }
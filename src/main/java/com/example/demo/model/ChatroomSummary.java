@@ -0,0 +1,23 @@
+package com.example.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * One row of a user's chatroom list, as read by ChatroomRepository.findInbox.
+ * For private chatrooms the room name is the other participant's name.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatroomSummary {
+    private Long id;
+    private String roomName;
+    private boolean group;
+    private String lastMessage;
+    private LocalDateTime lastModified;
+    private long unreadCount;
+}
@@ -0,0 +1,18 @@
+package com.example.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The ID, chatroom and content of a message, as read by MessageRepository to rebuild the search index.
+ * Unlike Message it is not an entity, so reading it loads neither the chatroom nor the sender.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageText {
+    private Long id;
+    private Long roomId;
+    private String content;
+}
@@ -0,0 +1,44 @@
+package com.example.demo.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * A read-only row of chat history, as read by the MessageRepository view queries.
+ * Unlike Message it is not an entity, so reading it neither loads the chatroom nor is tracked by the persistence context.
+ * It is serialized like Message, with the sender as a nested object.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageView {
+    private Long id;
+    @JsonIgnore
+    private String senderId;
+    @JsonIgnore
+    private String senderName;
+    private String content;
+    private LocalDateTime time;
+
+    /**
+     * Creates the view of a message entity.
+     *
+     * @param message The message.
+     * @return The view of the message.
+     */
+    public static MessageView of(Message message) {
+        UserDTO sender = message.getSender();
+        return new MessageView(message.getId(), sender == null ? null : sender.getId(), sender == null ? null : sender.getName(),
+                message.getContent(), message.getTime());
+    }
+
+    @JsonProperty("sender")
+    public UserDTO getSender() {
+        return new UserDTO(senderId, senderName);
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.demo.model;
 
+import com.example.demo.service.ParticipantListener;
 import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -9,6 +10,8 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 @Entity
+@EntityListeners(ParticipantListener.class)
+@Table(indexes = @Index(name = "idx_participant_user_room", columnList = "participant_id, room_id"))
 public class Participant {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
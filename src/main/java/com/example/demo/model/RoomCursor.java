@@ -0,0 +1,27 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A user's position in one chatroom: the last message they have read,
+ * the last message that was delivered to them as a notification,
+ * and the position just before the first message they missed while offline and have not had replayed yet.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Entity
+@Table(uniqueConstraints = @UniqueConstraint(name = "uk_room_cursor_user_room", columnNames = {"userId", "roomId"}))
+public class RoomCursor {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    private String userId;
+    private Long roomId;
+    private Long lastReadMessageId;
+    private Long lastDeliveredMessageId;
+    private Long missedFromMessageId;
+}
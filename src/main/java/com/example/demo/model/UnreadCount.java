@@ -0,0 +1,17 @@
+package com.example.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The number of messages from others after a user's read cursor in one chatroom,
+ * as read by ChatroomRepository.findUnreadCounts.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UnreadCount {
+    private Long roomId;
+    private long unreadCount;
+}
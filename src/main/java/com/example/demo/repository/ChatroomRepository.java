@@ -1,14 +1,74 @@
 package com.example.demo.repository;
 import com.example.demo.model.Chatroom;
+import com.example.demo.model.UnreadCount;
 import com.example.demo.model.UserDTO;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
-public interface ChatroomRepository extends JpaRepository<Chatroom, Integer> {
+public interface ChatroomRepository extends JpaRepository<Chatroom, Integer>, ChatroomRepositoryCustom {
     Chatroom findById(Long id);
 
+    List<Chatroom> findAllByIdIn(Collection<Long> ids);
+
     List<Chatroom> findAllByParticipant1OrParticipant2(UserDTO user1, UserDTO user2);
 
     Chatroom findByParticipant1AndParticipant2(UserDTO user1, UserDTO user2);
+
+    Chatroom findByPairLowAndPairHigh(String pairLow, String pairHigh);
+
+    List<Chatroom> findAllByIsGroupFalseAndPairLowIsNull();
+
+    /**
+     * Lists the IDs of the group and private chatrooms of a user.
+     */
+    @Query("""
+            SELECT r.id FROM Chatroom r
+            WHERE r.participant1.id = :userId OR r.participant2.id = :userId
+               OR r.id IN (SELECT p.room.id FROM Participant p WHERE p.participant.id = :userId)
+            """)
+    List<Long> findRoomIdsByUserId(@Param("userId") String userId);
+
+    /**
+     * Counts the messages from others after the user's read cursor in each of their chatrooms that has any.
+     */
+    @Query("""
+            SELECT new com.example.demo.model.UnreadCount(r.id,
+                (SELECT COUNT(m) FROM Message m
+                 WHERE m.room.id = r.id AND m.id > COALESCE(c.lastReadMessageId, 0) AND m.sender.id <> :userId))
+            FROM Chatroom r
+            LEFT JOIN RoomCursor c ON c.roomId = r.id AND c.userId = :userId
+            WHERE (r.participant1.id = :userId OR r.participant2.id = :userId
+                   OR r.id IN (SELECT p.room.id FROM Participant p WHERE p.participant.id = :userId))
+              AND EXISTS (SELECT m.id FROM Message m
+                          WHERE m.room.id = r.id AND m.id > COALESCE(c.lastReadMessageId, 0) AND m.sender.id <> :userId)
+            """)
+    List<UnreadCount> findUnreadCounts(@Param("userId") String userId);
+
+    /**
+     * Records a message as the latest of its chatroom, unless a newer one is already recorded.
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            UPDATE Chatroom r SET r.lastMessageId = :messageId
+            WHERE r.id = :roomId AND (r.lastMessageId IS NULL OR r.lastMessageId < :messageId)
+            """)
+    int advanceLastMessageId(@Param("roomId") Long roomId, @Param("messageId") Long messageId);
+
+    /**
+     * Fills in the latest message ID of chatrooms that have messages but none recorded.
+     */
+    @Modifying
+    @Transactional
+    @Query("""
+            UPDATE Chatroom r SET r.lastMessageId = (SELECT MAX(m.id) FROM Message m WHERE m.room.id = r.id)
+            WHERE r.lastMessageId IS NULL AND EXISTS (SELECT m.id FROM Message m WHERE m.room.id = r.id)
+            """)
+    int backfillLastMessageIds();
 }
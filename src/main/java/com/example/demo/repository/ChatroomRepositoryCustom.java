@@ -0,0 +1,25 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.ChatroomSummary;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Chatroom queries that Spring Data cannot derive or declare with @Query.
+ */
+public interface ChatroomRepositoryCustom {
+    /**
+     * Lists one page of a user's group and private chatrooms, most recently active first,
+     * with the number of messages from others after the user's read cursor.
+     * With a cursor, only the chatrooms that come after it in that order are listed.
+     *
+     * @param userId     The ID of the user.
+     * @param beforeTime The last modified time of the chatroom the page starts after, or null from the top.
+     * @param beforeId   The ID of the chatroom the page starts after, or null from the top.
+     * @param limit      The page size.
+     * @param offset     The number of chatrooms to skip after the cursor.
+     * @return The page of chatroom summaries.
+     */
+    List<ChatroomSummary> findInbox(String userId, LocalDateTime beforeTime, Long beforeId, int limit, int offset);
+}
@@ -0,0 +1,38 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.ChatroomSummary;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.PersistenceContext;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Runs the Chatroom.inbox native query declared on Chatroom.
+ * Each way of being in a chatroom is read by its own select, so the private chatrooms walk the
+ * (participantN_id, lastModified) indexes in order and stop after offset + limit rows,
+ * only the user's group chatrooms are sorted, and unread messages are only counted for the page.
+ * Every select starts after the (lastModified, id) keyset cursor, so with a cursor no select reads the chatrooms
+ * of earlier pages; without one the cursor is past every chatroom.
+ * Spring Data maps native results to DTOs by column alias, which does not work with the constructor mapping,
+ * so the query is run through the EntityManager.
+ */
+public class ChatroomRepositoryCustomImpl implements ChatroomRepositoryCustom {
+    private static final LocalDateTime END_OF_TIME = LocalDateTime.of(9999, 12, 31, 23, 59, 59);
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<ChatroomSummary> findInbox(String userId, LocalDateTime beforeTime, Long beforeId, int limit, int offset) {
+        boolean fromTop = beforeTime == null || beforeId == null;
+        return entityManager.createNamedQuery("Chatroom.inbox", ChatroomSummary.class)
+                .setParameter("userId", userId)
+                .setParameter("beforeTime", fromTop ? END_OF_TIME : beforeTime)
+                .setParameter("beforeId", fromTop ? Long.MAX_VALUE : beforeId)
+                .setParameter("rows", offset + limit)
+                .setParameter("limit", limit)
+                .setParameter("offset", offset)
+                .getResultList();
+    }
+}
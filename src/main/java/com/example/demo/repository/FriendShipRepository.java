@@ -2,11 +2,19 @@ package com.example.demo.repository;
 import com.example.demo.model.Friendship;
 import com.example.demo.model.UserDTO;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface FriendShipRepository extends JpaRepository<Friendship, Integer> {
     List<Friendship> findAllByUser(UserDTO user);
 
     Friendship findByUserAndFriend(UserDTO user, UserDTO friend);
+
+    @Query("SELECT f.friend FROM Friendship f WHERE f.user.id = ?1")
+    List<UserDTO> findFriendsByUserId(String userId);
+
+    @Query("SELECT f FROM Friendship f WHERE f.user.id IN ?1")
+    List<Friendship> findAllByUserIds(Collection<String> userIds);
 }
@@ -1,11 +1,70 @@
 package com.example.demo.repository;
 import com.example.demo.model.Chatroom;
 import com.example.demo.model.Message;
-import com.example.demo.model.User;
+import com.example.demo.model.MessageText;
+import com.example.demo.model.MessageView;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface MessageRepository extends JpaRepository<Message, Integer> {
+    String SELECT_VIEW = "SELECT new com.example.demo.model.MessageView(m.id, m.sender.id, m.sender.name, m.content, m.time) FROM Message m ";
+
     List<Message> findAllByRoom(Chatroom room);
+
+    /**
+     * Lists the text of the messages after a message, oldest first.
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT new com.example.demo.model.MessageText(m.id, m.room.id, m.content) FROM Message m WHERE m.id > :after ORDER BY m.id")
+    List<MessageText> findTextsAfter(@Param("after") Long after, Pageable pageable);
+
+    /**
+     * Lists message IDs, newest first.
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT m.id FROM Message m ORDER BY m.id DESC")
+    List<Long> findIdsNewestFirst(Pageable pageable);
+
+    List<Message> findAllByIdIn(Collection<Long> ids);
+
+    /**
+     * Lists the whole history of a chatroom, oldest first.
+     */
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE m.room.id = :roomId ORDER BY m.id")
+    List<MessageView> findViewsByRoomId(@Param("roomId") Long roomId);
+
+    /**
+     * Lists the latest messages of a chatroom, newest first.
+     */
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE m.room.id = :roomId ORDER BY m.id DESC")
+    List<MessageView> findLatestViewsByRoomId(@Param("roomId") Long roomId, Pageable pageable);
+
+    /**
+     * Lists the messages of a chatroom older than a message, newest first.
+     */
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE m.room.id = :roomId AND m.id < :before ORDER BY m.id DESC")
+    List<MessageView> findViewsByRoomIdBefore(@Param("roomId") Long roomId, @Param("before") Long before, Pageable pageable);
+
+    /**
+     * Lists the messages of a chatroom newer than a message, oldest first.
+     */
+    @Transactional(readOnly = true)
+    @Query(SELECT_VIEW + "WHERE m.room.id = :roomId AND m.id > :after ORDER BY m.id")
+    List<MessageView> findViewsByRoomIdAfter(@Param("roomId") Long roomId, @Param("after") Long after, Pageable pageable);
+
+    /**
+     * Counts the messages from others in a chatroom after a message.
+     */
+    @Transactional(readOnly = true)
+    @Query("SELECT COUNT(m) FROM Message m WHERE m.room.id = :roomId AND m.id > :after AND m.sender.id <> :userId")
+    long countFromOthersAfter(@Param("roomId") Long roomId, @Param("userId") String userId, @Param("after") Long after);
 }
@@ -3,7 +3,9 @@ import com.example.demo.model.Chatroom;
 import com.example.demo.model.Participant;
 import com.example.demo.model.UserDTO;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 
+import java.util.Collection;
 import java.util.List;
 
 public interface ParticipantRepository extends JpaRepository<Participant, Integer> {
@@ -11,4 +13,13 @@ public interface ParticipantRepository extends JpaRepository<Participant, Intege
 
     List<Participant> findAllByRoom(Chatroom room);
     List<Participant> findAllByParticipant(UserDTO participant);
+
+    @Query("SELECT p.participant FROM Participant p WHERE p.room.id = ?1")
+    List<UserDTO> findParticipantsByRoomId(Long roomId);
+
+    @Query("SELECT p.room.id, p.participant FROM Participant p WHERE p.room.id IN ?1")
+    List<Object[]> findParticipantsByRoomIdIn(Collection<? extends Long> roomIds);
+
+    @Query("SELECT p.room.id FROM Participant p WHERE p.participant.id = ?1")
+    List<Long> findRoomIdsByUserId(String userId);
 }
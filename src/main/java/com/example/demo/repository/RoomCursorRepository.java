@@ -0,0 +1,16 @@
+package com.example.demo.repository;
+import com.example.demo.model.RoomCursor;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+
+import java.util.List;
+
+public interface RoomCursorRepository extends JpaRepository<RoomCursor, Long> {
+    RoomCursor findByUserIdAndRoomId(String userId, Long roomId);
+
+    /**
+     * Lists the cursors of a user's rooms with messages they missed and have not had replayed.
+     */
+    @Query("SELECT c FROM RoomCursor c WHERE c.userId = ?1 AND c.missedFromMessageId IS NOT NULL")
+    List<RoomCursor> findMissed(String userId);
+}
@@ -0,0 +1,20 @@
+package com.example.demo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * The outcome of one message of a batch send.
+ * status uses the HTTP status the single-message endpoint would have returned;
+ * messageId is set only when the message was sent, and error only when it was not.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+public class BatchSendResult {
+    private Long roomId;
+    private int status;
+    private Long messageId;
+    private String error;
+}
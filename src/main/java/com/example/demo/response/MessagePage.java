@@ -0,0 +1,22 @@
+package com.example.demo.response;
+
+import com.example.demo.model.MessageView;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of chat history, newest message first.
+ * nextCursor is the message ID to pass back as "before" (or "after" when paging forward)
+ * to continue; it is null when there are no more messages in that direction.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+public class MessagePage {
+    private List<MessageView> messages;
+    private Long nextCursor;
+    private boolean hasMore;
+}
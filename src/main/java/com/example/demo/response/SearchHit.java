@@ -0,0 +1,23 @@
+package com.example.demo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * One message matching a search, with its relevance score.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+public class SearchHit {
+    private Long messageId;
+    private Long roomId;
+    private String senderId;
+    private String senderName;
+    private String content;
+    private LocalDateTime time;
+    private double score;
+}
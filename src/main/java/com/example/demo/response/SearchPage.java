@@ -0,0 +1,20 @@
+package com.example.demo.response;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One page of search results, best match first.
+ * hasMore tells whether the next page number returns more results.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+@Data
+public class SearchPage {
+    private List<SearchHit> hits;
+    private int page;
+    private boolean hasMore;
+}
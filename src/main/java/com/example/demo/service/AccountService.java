@@ -3,24 +3,77 @@ package com.example.demo.service;
 import com.example.demo.controller.AccountController;
 import com.example.demo.model.User;
 import com.example.demo.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
+import java.time.Duration;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The AccountService class provides various operations related to user accounts.
  * It interacts with the UserRepository to access and manipulate user data.
+ * Login tokens are kept in a concurrent map because HTTP and STOMP threads update them at the same time.
+ * With chat.token.mode=signed, tokens are issued and verified by SignedTokenService instead, without a lookup;
+ * the map then only remembers each user's current token for their legacy notification topic.
+ * User lookups go through a bounded cache that also remembers unknown IDs for a shorter time.
  */
 @Service
 public class AccountService {
-    private final Map<String, String> userMap = new HashMap<>();
+    private final Map<String, String> userMap = new ConcurrentHashMap<>(); // Map of user ID to token
 
     @Autowired
     private UserRepository userRepo;
 
+    @Autowired(required = false)
+    private SignedTokenService signedTokenService;
+
+    @Value("${chat.user-cache.maximum-size:10000}")
+    private long userCacheMaximumSize;
+
+    @Value("${chat.user-cache.ttl:10m}")
+    private Duration userCacheTtl;
+
+    @Value("${chat.user-cache.negative-ttl:30s}")
+    private Duration userCacheNegativeTtl;
+
+    private Cache<String, Optional<User>> userCache; // Map of user ID to user, empty if the user does not exist
+
+    /**
+     * Builds the user cache. Found users expire after the TTL, unknown IDs after the negative TTL.
+     */
+    @PostConstruct
+    public void initUserCache() {
+        userCache = Caffeine.newBuilder()
+                .maximumSize(userCacheMaximumSize)
+                .expireAfter(new Expiry<String, Optional<User>>() {
+                    @Override
+                    public long expireAfterCreate(String id, Optional<User> user, long currentTime) {
+                        return (user.isPresent() ? userCacheTtl : userCacheNegativeTtl).toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String id, Optional<User> user, long currentTime, long currentDuration) {
+                        return expireAfterCreate(id, user, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String id, Optional<User> user, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
     /**
      * Creates a new user by saving the user object in the UserRepository.
      *
@@ -28,6 +81,7 @@ public class AccountService {
      */
     public void createUser(User user){
         userRepo.save(user);
+        userCache.invalidate(user.getId());
     }
 
     /**
@@ -37,7 +91,7 @@ public class AccountService {
      * @return true if the user exists, false otherwise.
      */
     public boolean checkUserExist(String id){
-        return userRepo.existsById(id);
+        return findUser(id) != null;
     }
 
     /**
@@ -47,7 +101,19 @@ public class AccountService {
      * @return The User object if found, null otherwise.
      */
     public User findUser(String id){
-        return userRepo.findById(id);
+        if (id == null) {
+            return null;
+        }
+        return userCache.get(id, key -> Optional.ofNullable(userRepo.findById(key))).orElse(null);
+    }
+
+    /**
+     * Returns the hit, miss and eviction counters of the user cache.
+     *
+     * @return A snapshot of the user cache statistics.
+     */
+    public CacheStats getUserCacheStats(){
+        return userCache.stats();
     }
 
     /**
@@ -70,6 +136,9 @@ public class AccountService {
      * @return true if the user is authenticated, false otherwise.
      */
     public boolean isAuthenticated(String userID, String token) {
+        if (signedTokenService != null) {
+            return signedTokenService.verify(userID, token);
+        }
         // Check if the provided user number and token match the stored values
         String storedToken = userMap.get(userID);
         return storedToken != null && storedToken.equals(token);
@@ -95,12 +164,13 @@ public class AccountService {
      * @return The authentication token.
      */
     public String login(String userID) {
-        String token = userMap.get(userID);
-        if(token == null){
-            token = UUID.randomUUID().toString();
-            userMap.put(userID, token);
+        if (signedTokenService != null) {
+            // Keep the current token while it is valid, so every session of the user shares one notification topic
+            return userMap.compute(userID, (key, token) ->
+                    token != null && signedTokenService.verify(key, token) ? token : signedTokenService.issue(key));
         }
-        return token;
+        // Atomic login-if-absent, so concurrent logins of one user all receive the same token
+        return userMap.computeIfAbsent(userID, key -> UUID.randomUUID().toString());
     }
 
     /**
@@ -110,12 +180,37 @@ public class AccountService {
      * @return true if the user was successfully logged out, false otherwise.
      */
     public boolean logout(String userID) {
-        String token = userMap.get(userID);
-        if(token == null){
-            return false;
+        String token = userMap.remove(userID);
+        if (token != null && signedTokenService != null) {
+            signedTokenService.revoke(userID, token);
         }
-        userMap.remove(userID);
-        return true;
+        return token != null;
+    }
+
+    /**
+     * Logs out a user by invalidating the given authentication token.
+     * Signed tokens are revoked even when this node did not issue them.
+     *
+     * @param userID The user ID.
+     * @param token  The authentication token to invalidate.
+     * @return true if the token was valid and the user was logged out, false otherwise.
+     */
+    public boolean logout(String userID, String token) {
+        if (signedTokenService == null) {
+            return token != null && userMap.remove(userID, token);
+        }
+        userMap.remove(userID, token);
+        return signedTokenService.revoke(userID, token);
+    }
+
+    /**
+     * Returns the number of users holding a token issued by this node.
+     * In signed mode, tokens issued by other nodes are valid here but not counted.
+     *
+     * @return The logged-in user count.
+     */
+    public int getLoggedInCount() {
+        return userMap.size();
     }
 
     /**
@@ -127,5 +222,6 @@ public class AccountService {
     public void setAPIKey(User user, String key){
         user.setAPIKey(key);
         userRepo.save(user);
+        userCache.invalidate(user.getId());
     }
 }
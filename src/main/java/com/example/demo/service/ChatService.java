@@ -4,22 +4,47 @@ import com.example.demo.model.*;
 import com.example.demo.repository.ChatroomRepository;
 import com.example.demo.repository.MessageRepository;
 import com.example.demo.repository.ParticipantRepository;
+import com.example.demo.response.MessagePage;
+import com.example.demo.response.SearchHit;
+import com.example.demo.response.SearchPage;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.annotation.Timed;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The ChatService class provides various operations related to chatrooms and messages.
  * It interacts with the ChatroomRepository, ParticipantRepository, and MessageRepository
  * to access and manipulate chatroom and message data.
+ * Private chatrooms are keyed by the ordered pair of their participant IDs, which is unique in the database
+ * and cached in memory.
+ * Every public method is timed in the chat.service timer, tagged with the method name.
  */
+@Slf4j
 @Service
+@Timed("chat.service")
 public class ChatService {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 200;
+
     @Autowired
     ChatroomRepository chatroomRepo;
 
@@ -29,40 +54,66 @@ public class ChatService {
     @Autowired
     MessageRepository messageRepo;
 
+    @Autowired
+    MessageWriteBehindQueue writeBehindQueue;
+
+    @Autowired
+    RoomMembershipCache membershipCache;
+
+    @Autowired
+    MessageBatchWriter batchWriter;
+
+    @Autowired
+    RoomCursorBuffer roomCursorBuffer;
+
+    @Autowired
+    MessageSearchIndex searchIndex;
+
+    @Autowired
+    RecentMessageCache recentMessageCache;
+
+    @Autowired
+    ApplicationEventPublisher eventPublisher;
+
+    private final Cache<String, Long> privateRoomIds = Caffeine.newBuilder().maximumSize(100_000).build(); // Map of user pair to room ID
+
     /**
-     * Retrieves all chatrooms associated with a user.
-     * This includes both group chatrooms and private chatrooms.
-     *
-     * @param user The user for whom to retrieve the chatrooms.
-     * @return A list of chatrooms associated with the user.
-     */
-    public List<Chatroom> viewAllChatroom(User user){
-        // Group chatrooms
-        List<Participant> groupRooms = participantRepo.findAllByParticipant(user.toDTO());
-        List<Chatroom> chatrooms = new ArrayList<>();
-        for (Participant participant: groupRooms) {
-            chatrooms.add(participant.getRoom());
-        }
-        // Private chatrooms
-        List<Chatroom> privateRooms = chatroomRepo.findAllByParticipant1OrParticipant2(user.toDTO(), user.toDTO());
-        for (Chatroom room: privateRooms) {
-            if (!room.isGroup()) {
-                UserDTO participant1 = room.getParticipant1();
-                UserDTO participant2 = room.getParticipant2();
-                if (!participant1.getId().equals(user.getId())) {
-                    room.setRoomName(participant1.getName());
-                } else {
-                    room.setRoomName(participant2.getName());
-                }
+     * Retrieves one page of the chatrooms associated with a user, most recently active first.
+     * This includes both group chatrooms and private chatrooms, each with its unread message count.
+     * Pages are either numbered, or start after a chatroom of the previous page; the latter stays cheap on deep pages.
+     *
+     * @param user   The user for whom to retrieve the chatrooms.
+     * @param before The ID of the last chatroom of the previous page, or null to start from the top.
+     * @param page   The zero-based page number, counted from before when it is given.
+     * @param size   The page size, clamped to MAX_PAGE_SIZE; null for DEFAULT_PAGE_SIZE.
+     * @return A list of chatroom summaries associated with the user.
+     */
+    public List<ChatroomSummary> viewAllChatroom(User user, Long before, int page, Integer size){
+        int pageSize = size == null || size <= 0 ? DEFAULT_PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+        int offset = (int) Math.min((long) Math.max(page, 0) * pageSize, Integer.MAX_VALUE - pageSize);
+        List<ChatroomSummary> rooms;
+        if (before == null) {
+            rooms = chatroomRepo.findInbox(user.getId(), null, null, pageSize, offset);
+        } else {
+            Chatroom cursor = chatroomRepo.findById(before);
+            if (cursor == null) {
+                return new ArrayList<>();
+            }
+            rooms = chatroomRepo.findInbox(user.getId(), cursor.getLastModified(), cursor.getId(), pageSize, offset);
+        }
+        Map<Long, Long> bufferedReads = roomCursorBuffer.getBufferedReads(user.getId());
+        for (ChatroomSummary room : rooms) {
+            Long readUpTo = bufferedReads.get(room.getId());
+            if (readUpTo != null && room.getUnreadCount() > 0) {
+                room.setUnreadCount(unreadAfter(room.getId(), user, readUpTo, room.getUnreadCount()));
             }
-            chatrooms.add(room);
         }
-        Collections.sort(chatrooms, Comparator.comparing(Chatroom::getLastModified).reversed());
-        return chatrooms;
+        return rooms;
     }
 
     /**
      * Creates a new private chatroom between two users.
+     * Fails with a DataIntegrityViolationException if the two users already have one.
      *
      * @param user1 The first user.
      * @param user2 The second user.
@@ -73,11 +124,71 @@ public class ChatService {
         room.setGroup(false);
         room.setParticipant1(user1.toDTO());
         room.setParticipant2(user2.toDTO());
+        setPair(room);
         room.setLastModified(LocalDateTime.now());
-        chatroomRepo.save(room);
+        chatroomRepo.saveAndFlush(room);
+        privateRoomIds.put(pairKey(room.getPairLow(), room.getPairHigh()), room.getId());
         return room;
     }
 
+    /**
+     * Finds the private chatroom between two users, creating it if it does not exist yet.
+     * If another request creates the same chatroom concurrently, that chatroom is returned.
+     *
+     * @param user1 The first user.
+     * @param user2 The second user.
+     * @return The chatroom between the two users.
+     */
+    public Chatroom getOrCreatePrivateChatroom(User user1, User user2){
+        Chatroom room = findOurChatroom(user1, user2);
+        if (room != null) {
+            return room;
+        }
+        try {
+            return createPrivateChatroom(user1, user2);
+        } catch (DataIntegrityViolationException e) {
+            // Lost the race against another request for the same pair
+            return findOurChatroom(user1, user2);
+        }
+    }
+
+    /**
+     * Fills in the participant pair of private chatrooms created before the pair columns existed.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillPrivateRoomPairs(){
+        for (Chatroom room : chatroomRepo.findAllByIsGroupFalseAndPairLowIsNull()) {
+            setPair(room);
+            try {
+                chatroomRepo.save(room);
+            } catch (DataIntegrityViolationException e) {
+                log.warn("Private chatroom {} duplicates another chatroom of {} and {}", room.getId(), room.getPairLow(), room.getPairHigh());
+            }
+        }
+    }
+
+    /**
+     * Fills in the latest message ID of chatrooms created before the column existed.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillLastMessageIds(){
+        int updated = chatroomRepo.backfillLastMessageIds();
+        if (updated > 0) {
+            log.info("Recorded the latest message of {} chatrooms", updated);
+        }
+    }
+
+    /**
+     * Checks whether a chatroom may have messages newer than a given message, without reading its messages.
+     *
+     * @param room  The chatroom.
+     * @param since The ID of the newest message the caller has.
+     * @return false if the chatroom's latest message is not newer than since, true otherwise.
+     */
+    public boolean hasMessagesAfter(Chatroom room, long since){
+        return room.getLastMessageId() == null || room.getLastMessageId() > since;
+    }
+
     /**
      * Finds a chatroom with the specified ID.
      *
@@ -88,6 +199,19 @@ public class ChatService {
         return chatroomRepo.findById(id);
     }
 
+    /**
+     * Finds the chatrooms with the specified IDs in one query.
+     *
+     * @param ids The IDs of the chatrooms to find.
+     * @return The chatrooms that exist, in no particular order.
+     */
+    public List<Chatroom> findChatrooms(Collection<Long> ids){
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        return chatroomRepo.findAllByIdIn(ids);
+    }
+
     /**
      * Finds the chatroom between two specified users.
      *
@@ -96,41 +220,221 @@ public class ChatService {
      * @return The chatroom between the two users if found, null otherwise.
      */
     public Chatroom findOurChatroom(User user1, User user2){
-        Chatroom room = chatroomRepo.findByParticipant1AndParticipant2(user1.toDTO(), user2.toDTO());
-        if(room == null){
-            return chatroomRepo.findByParticipant1AndParticipant2(user2.toDTO(), user1.toDTO());
+        String low = minId(user1, user2);
+        String high = maxId(user1, user2);
+        String key = pairKey(low, high);
+        Long roomId = privateRoomIds.getIfPresent(key);
+        if (roomId != null) {
+            Chatroom room = chatroomRepo.findById(roomId);
+            if (room != null) {
+                return room;
+            }
+            privateRoomIds.invalidate(key);
         }
-        return  room;
+        Chatroom room = chatroomRepo.findByPairLowAndPairHigh(low, high);
+        if (room != null) {
+            privateRoomIds.put(key, room.getId());
+        }
+        return room;
     }
 
     /**
-     * Retrieves all messages in a specified chatroom.
+     * Retrieves all messages in a specified chatroom, oldest first.
+     * Messages are read as views, in a read-only transaction.
      *
      * @param room The chatroom.
      * @return A list of messages in the chatroom.
      */
-    public List<Message> getAllMessage(Chatroom room){
-        return messageRepo.findAllByRoom(room);
+    @Transactional(readOnly = true)
+    public List<MessageView> getAllMessage(Chatroom room){
+        return messageRepo.findViewsByRoomId(room.getId());
+    }
+
+    /**
+     * Retrieves one page of messages in a chatroom, newest first, using the message ID as a keyset cursor.
+     * At most one of before and after should be given; with neither, the latest page is returned.
+     * The latest page, and pages after a recent message, are served from RecentMessageCache when it holds them.
+     * Other pages are read as views, in a read-only transaction.
+     *
+     * @param room   The chatroom.
+     * @param before Only return messages with an ID lower than this, or null.
+     * @param after  Only return messages with an ID higher than this, or null.
+     * @param limit  The maximum number of messages, clamped to MAX_PAGE_SIZE; null for DEFAULT_PAGE_SIZE.
+     * @return The page of messages together with the cursor for the next page.
+     */
+    @Transactional(readOnly = true)
+    public MessagePage getMessages(Chatroom room, Long before, Long after, Integer limit){
+        int size = limit == null || limit <= 0 ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+        if (before == null) {
+            MessagePage cached = recentMessageCache.getPage(room, after, size);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // Fetch one extra row to learn whether another page exists
+        PageRequest page = PageRequest.of(0, size + 1);
+        List<MessageView> messages;
+        if (after != null) {
+            messages = messageRepo.findViewsByRoomIdAfter(room.getId(), after, page);
+        } else if (before != null) {
+            messages = messageRepo.findViewsByRoomIdBefore(room.getId(), before, page);
+        } else {
+            messages = messageRepo.findLatestViewsByRoomId(room.getId(), page);
+        }
+        boolean hasMore = messages.size() > size;
+        if (hasMore) {
+            messages = new ArrayList<>(messages.subList(0, size));
+        }
+        Long nextCursor = null;
+        if (hasMore) {
+            nextCursor = messages.get(messages.size() - 1).getId();
+        }
+        if (after != null) {
+            // Forward pages are read oldest first, but are returned newest first like every other page
+            Collections.reverse(messages);
+        }
+        return new MessagePage(messages, nextCursor, hasMore);
     }
 
     /**
      * Sends a message in a chatroom.
      * Updates the last modified time of the chatroom and the last message content.
+     * With write-behind enabled the message is only queued, and its ID is assigned once it has been written;
+     * NotificationDispatcher publishes it to the room from then on.
      *
      * @param sender  The user sending the message.
      * @param room    The chatroom.
      * @param content The content of the message.
+     * @return The sent message, or null if the write-behind queue is full.
      */
-    public void sendMessage(User sender, Chatroom room, String content){
+    public Message sendMessage(User sender, Chatroom room, String content){
         Message message = new Message();
         message.setContent(content);
         message.setRoom(room);
         message.setSender(sender.toDTO());
         message.setTime(LocalDateTime.now());
-        messageRepo.save(message);
-        room.setLastModified(LocalDateTime.now());
+        room.setLastModified(message.getTime());
         room.setLastMessage(message.getSender().getName() + ": " + message.getContent());
+        if (writeBehindQueue.isEnabled()) {
+            return writeBehindQueue.enqueue(message) ? message : null;
+        }
+        messageRepo.save(message);
         chatroomRepo.save(room);
+        chatroomRepo.advanceLastMessageId(room.getId(), message.getId());
+        room.setLastMessageId(message.getId());
+        eventPublisher.publishEvent(new MessagesPersistedEvent(List.of(message)));
+        return message;
+    }
+
+    /**
+     * Sends several messages at once, possibly to different chatrooms.
+     * The messages are inserted in one JDBC batch and each chatroom's last message is updated once.
+     *
+     * @param sender   The user sending the messages.
+     * @param rooms    The chatroom of each message.
+     * @param contents The content of each message, in the same order as rooms.
+     * @return The sent messages with their assigned IDs, in the given order.
+     */
+    public List<Message> sendMessages(User sender, List<Chatroom> rooms, List<String> contents){
+        if (rooms.size() != contents.size()) {
+            throw new IllegalArgumentException("Every message needs a chatroom");
+        }
+        List<Message> messages = new ArrayList<>(rooms.size());
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < rooms.size(); i++) {
+            Message message = new Message();
+            message.setContent(contents.get(i));
+            message.setRoom(rooms.get(i));
+            message.setSender(sender.toDTO());
+            message.setTime(now);
+            rooms.get(i).setLastModified(now);
+            rooms.get(i).setLastMessage(message.getSender().getName() + ": " + message.getContent());
+            messages.add(message);
+        }
+        batchWriter.writeAll(messages);
+        eventPublisher.publishEvent(new MessagesPersistedEvent(List.copyOf(messages)));
+        return messages;
+    }
+
+    /**
+     * Searches the messages of all chatrooms a user participates in.
+     * Every word of the query must occur in a matching message; better matches come first, then newer ones.
+     *
+     * @param user  The user.
+     * @param query The search query.
+     * @param page  The zero-based page number.
+     * @param size  The page size, clamped to MAX_PAGE_SIZE; null for DEFAULT_PAGE_SIZE.
+     * @return The page of matching messages.
+     */
+    public SearchPage searchMessages(User user, String query, int page, Integer size){
+        int pageSize = size == null || size <= 0 ? DEFAULT_PAGE_SIZE : Math.min(size, MAX_PAGE_SIZE);
+        Set<Long> roomIds = new HashSet<>(chatroomRepo.findRoomIdsByUserId(user.getId()));
+        // Fetch one extra hit to learn whether another page exists
+        List<MessageSearchIndex.Hit> hits = searchIndex.search(query, roomIds, Math.max(page, 0) * pageSize, pageSize + 1);
+        boolean hasMore = hits.size() > pageSize;
+        if (hasMore) {
+            hits = hits.subList(0, pageSize);
+        }
+        List<Long> ids = new ArrayList<>(hits.size());
+        for (MessageSearchIndex.Hit hit : hits) {
+            ids.add(hit.getMessageId());
+        }
+        Map<Long, Message> messages = new HashMap<>();
+        for (Message message : ids.isEmpty() ? List.<Message>of() : messageRepo.findAllByIdIn(ids)) {
+            messages.put(message.getId(), message);
+        }
+        List<SearchHit> results = new ArrayList<>(hits.size());
+        for (MessageSearchIndex.Hit hit : hits) {
+            Message message = messages.get(hit.getMessageId());
+            if (message != null) {
+                results.add(new SearchHit(message.getId(), message.getRoom().getId(), message.getSender().getId(),
+                        message.getSender().getName(), message.getContent(), message.getTime(), hit.getScore()));
+            }
+        }
+        return new SearchPage(results, Math.max(page, 0), hasMore);
+    }
+
+    /**
+     * Marks a chatroom as read by a user up to a message.
+     * The read position is buffered and written in a batch; it never moves backwards.
+     * It is capped at the chatroom's latest message, so an ID from the future cannot hide messages sent later.
+     *
+     * @param user      The user.
+     * @param room      The chatroom.
+     * @param messageId The ID of the last message the user has read.
+     */
+    public void markRead(User user, Chatroom room, Long messageId){
+        Long lastMessageId = room.getLastMessageId();
+        if (lastMessageId == null) {
+            return; // Nothing to read yet
+        }
+        roomCursorBuffer.read(user.getId(), room.getId(), Math.min(messageId, lastMessageId));
+    }
+
+    /**
+     * Counts the unread messages of a user in each chatroom that has any.
+     * Read acks that are still buffered are taken into account without writing them.
+     *
+     * @param user The user.
+     * @return The unread message count of each chatroom with unread messages.
+     */
+    public List<UnreadCount> getUnreadCounts(User user){
+        List<UnreadCount> counts = chatroomRepo.findUnreadCounts(user.getId());
+        Map<Long, Long> bufferedReads = roomCursorBuffer.getBufferedReads(user.getId());
+        if (bufferedReads.isEmpty()) {
+            return counts;
+        }
+        List<UnreadCount> unread = new ArrayList<>(counts.size());
+        for (UnreadCount count : counts) {
+            Long readUpTo = bufferedReads.get(count.getRoomId());
+            if (readUpTo != null) {
+                count.setUnreadCount(unreadAfter(count.getRoomId(), user, readUpTo, count.getUnreadCount()));
+            }
+            if (count.getUnreadCount() > 0) {
+                unread.add(count);
+            }
+        }
+        return unread;
     }
 
     /**
@@ -144,14 +448,34 @@ public class ChatService {
         if (!room.isGroup()) {
             return room.getParticipant1().getId().equals(user.getId()) || room.getParticipant2().getId().equals(user.getId());
         } else {
-            List<Participant> groupRooms = participantRepo.findAllByRoom(room);
-            for (Participant participant: groupRooms) {
-                if (participant.getParticipant().getId() == user.getId()) {
-                    return true;
-                }
+            return membershipCache.get(room.getId()).contains(user.getId());
+        }
+    }
+
+    /**
+     * Returns the IDs of the given chatrooms that a user participates in.
+     * Members of group chatrooms that are not cached yet are loaded with one query.
+     *
+     * @param rooms The chatrooms.
+     * @param user  The user.
+     * @return The IDs of the chatrooms the user is a participant of.
+     */
+    public Set<Long> filterMemberRooms(Collection<Chatroom> rooms, User user){
+        Set<Long> memberRooms = new HashSet<>();
+        Set<Long> groupRoomIds = new HashSet<>();
+        for (Chatroom room : rooms) {
+            if (room.isGroup()) {
+                groupRoomIds.add(room.getId());
+            } else if (inChatroom(room, user)) {
+                memberRooms.add(room.getId());
+            }
+        }
+        for (Map.Entry<Long, RoomMembershipCache.RoomMembers> entry : membershipCache.getAll(groupRoomIds).entrySet()) {
+            if (entry.getValue().contains(user.getId())) {
+                memberRooms.add(entry.getKey());
             }
         }
-        return false;
+        return memberRooms;
     }
 
     /**
@@ -173,9 +497,7 @@ public class ChatService {
                 participants.add(participant2);
             }
         } else {
-            List<Participant> groupRooms = participantRepo.findAllByRoom(room);
-            for (Participant grouper: groupRooms) {
-                UserDTO participant = grouper.getParticipant();
+            for (UserDTO participant: membershipCache.get(room.getId()).getMembers()) {
                 if (!participant.getId().equals(sender.getId())) {
                     participants.add(participant);
                 }
@@ -198,12 +520,35 @@ public class ChatService {
             UserDTO participant2 = room.getParticipant2();
             participants.add(participant2);
         } else {
-            List<Participant> groupRooms = participantRepo.findAllByRoom(room);
-            for (Participant grouper: groupRooms) {
-                UserDTO participant = grouper.getParticipant();
-                participants.add(participant);
-            }
+            participants.addAll(membershipCache.get(room.getId()).getMembers());
         }
         return participants;
     }
+
+    /**
+     * Counts the unread messages of a chatroom from a read position that is still buffered.
+     * The stored count is from the stored read position; whichever of the two is further along gives the lower count.
+     */
+    private long unreadAfter(Long roomId, User user, Long bufferedReadId, long storedCount){
+        return Math.min(storedCount, messageRepo.countFromOthersAfter(roomId, user.getId(), bufferedReadId));
+    }
+
+    private static void setPair(Chatroom room){
+        String id1 = room.getParticipant1().getId();
+        String id2 = room.getParticipant2().getId();
+        room.setPairLow(id1.compareTo(id2) <= 0 ? id1 : id2);
+        room.setPairHigh(id1.compareTo(id2) <= 0 ? id2 : id1);
+    }
+
+    private static String minId(User user1, User user2){
+        return user1.getId().compareTo(user2.getId()) <= 0 ? user1.getId() : user2.getId();
+    }
+
+    private static String maxId(User user1, User user2){
+        return user1.getId().compareTo(user2.getId()) <= 0 ? user2.getId() : user1.getId();
+    }
+
+    private static String pairKey(String low, String high){
+        return low + '\n' + high;
+    }
 }
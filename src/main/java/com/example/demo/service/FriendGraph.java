@@ -0,0 +1,301 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Friendship;
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.FriendShipRepository;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the friendship table.
+ * User IDs are mapped to ints, and each user's friends are kept as a sorted int array
+ * that is loaded from the database on first use, so friend checks are a binary search without a query.
+ * Edges follow the friendship rows: a user's friends are the users they added.
+ * The graph is kept directed on purpose, rather than made bidirectional: adding a friend is one-sided in this app,
+ * and FriendController only lets a user message the friends they added, so a symmetric graph would let anyone
+ * message a user by adding them.
+ * The friends of several users, as needed for friend suggestions, are loaded together in batches of BATCH_SIZE users.
+ * A user's friends are dropped when another node of the cluster announces that they changed, and in any case
+ * chat.friend-graph.expire-after-write after they were loaded, in case that announcement was lost.
+ * <p>
+ * The int IDs and the friend arrays that use them form one generation. Once chat.friend-graph.maximum-interned-users
+ * users have been interned, the next intern starts a new, empty generation, which reloads from the database on use;
+ * calls already running finish on the old one. Each call reads the generation once, so it never mixes int IDs of two.
+ */
+@Component
+public class FriendGraph {
+    private static final int BATCH_SIZE = 500;
+
+    @Autowired
+    private FriendShipRepository friendShipRepo;
+
+    @Value("${chat.friend-graph.maximum-users:100000}")
+    private long maximumUsers;
+
+    @Value("${chat.friend-graph.maximum-interned-users:500000}")
+    private int maximumInternedUsers;
+
+    @Value("${chat.friend-graph.expire-after-write:10m}")
+    private Duration expireAfterWrite;
+
+    private volatile Generation generation;
+
+    /**
+     * Starts the first generation, with an adjacency cache bounded by the number of users whose friends are loaded.
+     */
+    @PostConstruct
+    public void init() {
+        generation = new Generation();
+    }
+
+    /**
+     * Checks if a user has added another user as a friend.
+     *
+     * @param userId   The user ID.
+     * @param friendId The ID of the potential friend.
+     * @return true if friendId is a friend of userId, false otherwise.
+     */
+    public boolean isFriend(String userId, String friendId) {
+        Generation graph = generation;
+        // Loading the user's friends interns every one of them, so an ID that is still unknown cannot be a friend
+        int[] friends = graph.friendsOf(userId);
+        Integer friend = graph.userIndex.get(friendId);
+        return friend != null && Arrays.binarySearch(friends, friend) >= 0;
+    }
+
+    /**
+     * Retrieves the friends of a user.
+     *
+     * @param userId The user ID.
+     * @return The friends of the user.
+     */
+    public List<UserDTO> getFriends(String userId) {
+        Generation graph = generation;
+        return graph.toUsers(graph.friendsOf(userId));
+    }
+
+    /**
+     * Records a new friendship that has just been saved to the database.
+     *
+     * @param user   The user who added the friend.
+     * @param friend The friend.
+     */
+    public void addFriend(UserDTO user, UserDTO friend) {
+        Generation graph = generation;
+        int friendIndex = graph.intern(friend.getId(), friend.getName());
+        // Only users whose friends are loaded need updating; everyone else reads the new row on first use
+        graph.adjacency.asMap().computeIfPresent(graph.intern(user.getId(), user.getName()),
+                (key, friends) -> insert(friends, friendIndex));
+    }
+
+    /**
+     * Drops the loaded friends of a user, which are read from the database again on next use.
+     *
+     * @param userId The user ID.
+     */
+    public void invalidate(String userId) {
+        Generation graph = generation;
+        Integer user = graph.userIndex.get(userId);
+        if (user != null) {
+            graph.adjacency.invalidate(user);
+        }
+    }
+
+    /**
+     * Retrieves the users that both users have added as friends.
+     *
+     * @param userId  The first user ID.
+     * @param otherId The second user ID.
+     * @return The common friends.
+     */
+    public List<UserDTO> mutualFriends(String userId, String otherId) {
+        Generation graph = generation;
+        int[] a = graph.friendsOf(userId);
+        int[] b = graph.friendsOf(otherId);
+        int[] common = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                common[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return graph.toUsers(Arrays.copyOf(common, count));
+    }
+
+    /**
+     * Suggests friends of friends that the user has not added yet,
+     * ordered by the number of the user's friends they are connected to.
+     *
+     * @param userId The user ID.
+     * @param limit  The maximum number of suggestions.
+     * @return The suggested users.
+     */
+    public List<UserDTO> friendsOfFriends(String userId, int limit) {
+        Generation graph = generation;
+        int self = graph.intern(userId, null);
+        int[] friends = graph.friendsOf(userId);
+        List<Integer> friendIndexes = new ArrayList<>(friends.length);
+        for (int friend : friends) {
+            friendIndexes.add(friend);
+        }
+        Map<Integer, int[]> friendsOfFriends = graph.adjacency.getAll(friendIndexes);
+        Map<Integer, Integer> connections = new HashMap<>();
+        for (int friend : friends) {
+            for (int candidate : friendsOfFriends.get(friend)) {
+                if (candidate != self && Arrays.binarySearch(friends, candidate) < 0) {
+                    connections.merge(candidate, 1, Integer::sum);
+                }
+            }
+        }
+        List<Map.Entry<Integer, Integer>> ranked = new ArrayList<>(connections.entrySet());
+        ranked.sort(Map.Entry.<Integer, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        int[] suggestions = new int[Math.min(limit, ranked.size())];
+        for (int i = 0; i < suggestions.length; i++) {
+            suggestions[i] = ranked.get(i).getKey();
+        }
+        return graph.toUsers(suggestions);
+    }
+
+    /**
+     * Returns the number of users interned in the current generation.
+     *
+     * @return The interned user count.
+     */
+    public int getInternedUserCount() {
+        return generation.userIndex.size();
+    }
+
+    private static int[] insert(int[] sorted, int value) {
+        int position = Arrays.binarySearch(sorted, value);
+        if (position >= 0) {
+            return sorted;
+        }
+        position = -position - 1;
+        int[] result = new int[sorted.length + 1];
+        System.arraycopy(sorted, 0, result, 0, position);
+        result[position] = value;
+        System.arraycopy(sorted, position, result, position + 1, sorted.length - position);
+        return result;
+    }
+
+    /**
+     * One set of int IDs and the friend arrays that refer to them.
+     */
+    private class Generation {
+        private final Map<String, Integer> userIndex = new ConcurrentHashMap<>(); // Map of user ID to int ID
+        private volatile String[] userIds = new String[1024]; // int ID to user ID
+        private volatile String[] userNames = new String[1024]; // int ID to the last seen user name
+        private int userCount;
+        private final LoadingCache<Integer, int[]> adjacency; // Map of int ID to the sorted int IDs of the user's friends
+
+        private Generation() {
+            adjacency = Caffeine.newBuilder()
+                    .maximumSize(maximumUsers)
+                    .expireAfterWrite(expireAfterWrite)
+                    .build(new CacheLoader<>() {
+                        @Override
+                        public int[] load(Integer user) {
+                            return loadFriends(user);
+                        }
+
+                        @Override
+                        public Map<Integer, int[]> loadAll(Set<? extends Integer> users) {
+                            return loadAllFriends(users);
+                        }
+                    });
+        }
+
+        private int[] friendsOf(String userId) {
+            return adjacency.get(intern(userId, null));
+        }
+
+        private int[] loadFriends(Integer user) {
+            List<UserDTO> friends = friendShipRepo.findFriendsByUserId(userIds[user]);
+            int[] indexes = new int[friends.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = intern(friends.get(i).getId(), friends.get(i).getName());
+            }
+            return Arrays.stream(indexes).sorted().distinct().toArray();
+        }
+
+        private Map<Integer, int[]> loadAllFriends(Set<? extends Integer> users) {
+            List<Integer> pending = new ArrayList<>(users);
+            Map<Integer, List<Integer>> friendsByUser = new HashMap<>();
+            for (int start = 0; start < pending.size(); start += BATCH_SIZE) {
+                Map<String, Integer> batch = new HashMap<>(); // Map of user ID to int ID
+                for (Integer user : pending.subList(start, Math.min(start + BATCH_SIZE, pending.size()))) {
+                    batch.put(userIds[user], user);
+                }
+                for (Friendship friendship : friendShipRepo.findAllByUserIds(batch.keySet())) {
+                    UserDTO friend = friendship.getFriend();
+                    friendsByUser.computeIfAbsent(batch.get(friendship.getUser().getId()), key -> new ArrayList<>())
+                            .add(intern(friend.getId(), friend.getName()));
+                }
+            }
+            Map<Integer, int[]> loaded = new HashMap<>();
+            for (Integer user : users) {
+                loaded.put(user, friendsByUser.getOrDefault(user, List.of()).stream()
+                        .mapToInt(Integer::intValue).sorted().distinct().toArray());
+            }
+            return loaded;
+        }
+
+        private List<UserDTO> toUsers(int[] indexes) {
+            String[] ids = userIds;
+            String[] names = userNames;
+            List<UserDTO> users = new ArrayList<>(indexes.length);
+            for (int index : indexes) {
+                users.add(new UserDTO(ids[index], names[index]));
+            }
+            return users;
+        }
+
+        private int intern(String id, String name) {
+            Integer index = userIndex.get(id);
+            if (index != null && (name == null || name.equals(userNames[index]))) {
+                return index;
+            }
+            synchronized (this) {
+                index = userIndex.get(id);
+                if (index == null) {
+                    if (userCount == maximumInternedUsers && generation == this) {
+                        // Later calls start over; this one keeps using this generation, which is dropped when it returns
+                        generation = new Generation();
+                    }
+                    if (userCount == userIds.length) {
+                        userNames = Arrays.copyOf(userNames, userCount * 2);
+                        userIds = Arrays.copyOf(userIds, userCount * 2);
+                    }
+                    index = userCount++;
+                    userIds[index] = id;
+                    userNames[index] = name;
+                    // Publishing the index last makes the arrays' entries visible to readers that find it
+                    userIndex.put(id, index);
+                } else if (name != null) {
+                    userNames[index] = name;
+                }
+                return index;
+            }
+        }
+    }
+}
@@ -4,11 +4,10 @@ import com.example.demo.model.Friendship;
 import com.example.demo.model.User;
 import com.example.demo.model.UserDTO;
 import com.example.demo.repository.FriendShipRepository;
-import com.example.demo.repository.UserRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -18,6 +17,10 @@ import java.util.List;
 public class FriendService {
     @Autowired
     private FriendShipRepository friendShipRepo;
+    @Autowired
+    private FriendGraph friendGraph;
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
 
     /**
      * Retrieves a list of friends for a given user.
@@ -26,12 +29,7 @@ public class FriendService {
      * @return A list of UserDTO representing the friends of the user.
      */
     public List<UserDTO> getFriends(User user){
-        List<Friendship> friendships = friendShipRepo.findAllByUser(user.toDTO());
-        List<UserDTO> friends = new ArrayList<>();
-        for (Friendship friendship : friendships) {
-            friends.add(friendship.getFriend());
-        }
-        return friends;
+        return friendGraph.getFriends(user.getId());
     }
 
     /**
@@ -45,6 +43,8 @@ public class FriendService {
         friendship.setUser(user.toDTO());
         friendship.setFriend(friend.toDTO());
         friendShipRepo.save(friendship);
+        friendGraph.addFriend(friendship.getUser(), friendship.getFriend());
+        eventPublisher.publishEvent(new FriendshipChangedEvent(user.getId()));
     }
 
     /**
@@ -55,6 +55,28 @@ public class FriendService {
      * @return true if the user is a friend of the friend, false otherwise.
      */
     public boolean isYourFriend(User user, User friend){
-        return friendShipRepo.findByUserAndFriend(user.toDTO(), friend.toDTO()) != null;
+        return friendGraph.isFriend(user.getId(), friend.getId());
+    }
+
+    /**
+     * Retrieves the friends that two users have in common.
+     *
+     * @param user  The user.
+     * @param other The other user.
+     * @return A list of UserDTO representing the common friends.
+     */
+    public List<UserDTO> getMutualFriends(User user, User other){
+        return friendGraph.mutualFriends(user.getId(), other.getId());
+    }
+
+    /**
+     * Suggests friends of a user's friends that the user has not added yet.
+     *
+     * @param user  The user.
+     * @param limit The maximum number of suggestions.
+     * @return A list of UserDTO representing the suggested users.
+     */
+    public List<UserDTO> getFriendSuggestions(User user, int limit){
+        return friendGraph.friendsOfFriends(user.getId(), limit);
     }
 }
@@ -0,0 +1,13 @@
+package com.example.demo.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Published after a user's friends have changed in the database, so that caches of them can be updated.
+ */
+@Data
+@AllArgsConstructor
+public class FriendshipChangedEvent {
+    private String userId;
+}
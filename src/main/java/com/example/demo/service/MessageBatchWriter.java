@@ -0,0 +1,92 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists messages with JDBC batch statements instead of one JPA save per message.
+ * The chatroom's last message is updated once per room per batch, however many messages the room received.
+ * On MySQL the batch is only sent as one multi-row insert with rewriteBatchedStatements=true,
+ * which application.properties sets on the connection pool.
+ */
+@Component
+public class MessageBatchWriter {
+    private static final String INSERT_MESSAGE =
+            "INSERT INTO message (room_id, content, time, sender_id, sender_name) VALUES (?, ?, ?, ?, ?)";
+    private static final String UPDATE_CHATROOM =
+            "UPDATE chatroom SET last_modified = ?, last_message = ?, "
+                    + "last_message_id = GREATEST(COALESCE(last_message_id, 0), ?) WHERE id = ?";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    /**
+     * Inserts the messages in one batch and assigns their generated IDs,
+     * then updates each affected chatroom with its latest message.
+     * Fails with an IllegalStateException, rolling the batch back, if the driver does not return a key per message.
+     *
+     * @param messages The messages to persist, in sending order.
+     */
+    @Transactional
+    public void writeAll(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(INSERT_MESSAGE, Statement.RETURN_GENERATED_KEYS)) {
+                for (Message message : messages) {
+                    ps.setLong(1, message.getRoom().getId());
+                    ps.setString(2, message.getContent());
+                    ps.setTimestamp(3, Timestamp.valueOf(message.getTime()));
+                    ps.setString(4, message.getSender().getId());
+                    ps.setString(5, message.getSender().getName());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                int assigned = 0;
+                try (ResultSet keys = ps.getGeneratedKeys()) {
+                    while (assigned < messages.size() && keys.next()) {
+                        messages.get(assigned++).setId(keys.getLong(1));
+                    }
+                }
+                if (assigned < messages.size()) {
+                    // Rolls the batch back rather than leave messages without IDs
+                    throw new IllegalStateException("Inserted " + messages.size() + " messages but the driver returned "
+                            + assigned + " generated keys");
+                }
+            }
+            return null;
+        });
+
+        // Only the newest message of each room ends up in the chatroom row
+        Map<Long, Message> latestByRoom = new LinkedHashMap<>();
+        for (Message message : messages) {
+            latestByRoom.put(message.getRoom().getId(), message);
+        }
+        jdbcTemplate.batchUpdate(UPDATE_CHATROOM, latestByRoom.values(), latestByRoom.size(), (ps, message) -> {
+            ps.setTimestamp(1, Timestamp.valueOf(message.getTime()));
+            ps.setString(2, message.getSender().getName() + ": " + message.getContent());
+            ps.setLong(3, message.getId());
+            ps.setLong(4, message.getRoom().getId());
+        });
+        for (Message message : latestByRoom.values()) {
+            Chatroom room = message.getRoom();
+            if (room.getLastMessageId() == null || room.getLastMessageId() < message.getId()) {
+                room.setLastMessageId(message.getId());
+            }
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Message;
+import com.example.demo.model.MessageText;
+import com.example.demo.repository.MessageRepository;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over message content.
+ * Content is lowercased and split into runs of letters and digits; ideographic characters are indexed one by one,
+ * so text without spaces can still be searched.
+ * Each term maps to the sorted IDs of the messages containing it, with the term frequency in each.
+ * A query matches messages that contain all of its terms, ranked by a TF-IDF score and then by recency.
+ * <p>
+ * The index is updated from MessagesPersistedEvent and rebuilt from the database at startup,
+ * since it is not persisted. A rebuild reads only the ID, chatroom and content of each message into a new index,
+ * which replaces the searched one when it is complete; messages persisted meanwhile are added to both.
+ * Messages indexed twice are only counted once. Only one rebuild runs at a time.
+ * A rebuild can also be started on a running server with a POST to /actuator/searchindex,
+ * or with the rebuild operation of the MessageSearchIndex MBean (with spring.jmx.enabled=true).
+ * <p>
+ * The index holds at most chat.search.max-indexed-messages messages (0 for no limit). A rebuild indexes only the
+ * newest 90% of that many, and reaching the limit starts a rebuild in the background, so the oldest messages
+ * drop out of search results rather than the index outgrowing the heap.
+ */
+@Slf4j
+@Component
+@ManagedResource
+public class MessageSearchIndex {
+    @Autowired
+    private MessageRepository messageRepo;
+
+    @Value("${chat.search.rebuild-on-startup:true}")
+    private boolean rebuildOnStartup;
+
+    @Value("${chat.search.rebuild-batch-size:1000}")
+    private int rebuildBatchSize;
+
+    @Value("${chat.search.max-indexed-messages:1000000}")
+    private long maxIndexedMessages;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private Segment live = new Segment(); // The searched index, guarded by lock
+    private Segment rebuilding; // The index being rebuilt, if any, guarded by lock
+    private final AtomicBoolean rebuildRunning = new AtomicBoolean();
+
+    /**
+     * Indexes messages that have just been persisted.
+     *
+     * @param event The event carrying the persisted messages.
+     */
+    @EventListener
+    public void onMessagesPersisted(MessagesPersistedEvent event) {
+        index(event.getMessages());
+    }
+
+    /**
+     * Rebuilds the index in the background once the application has started.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        if (rebuildOnStartup) {
+            rebuildInBackground();
+        }
+    }
+
+    /**
+     * Reads the newest messages from the database, in keyset pages, into a new index that then replaces this one.
+     * Searches keep using the current index until the new one is complete.
+     *
+     * @return The number of messages read from the database.
+     * @throws IllegalStateException If a rebuild is already running.
+     */
+    @ManagedOperation(description = "Rebuilds the message search index from the database")
+    public long rebuild() {
+        if (!rebuildRunning.compareAndSet(false, true)) {
+            throw new IllegalStateException("The message search index is already being rebuilt");
+        }
+        Segment fresh = new Segment();
+        lock.writeLock().lock();
+        try {
+            rebuilding = fresh;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            long count = 0;
+            long after = oldestIndexedAfter();
+            while (true) {
+                List<MessageText> messages = messageRepo.findTextsAfter(after, PageRequest.of(0, rebuildBatchSize));
+                if (messages.isEmpty()) {
+                    break;
+                }
+                add(messages, fresh);
+                count += messages.size();
+                after = messages.get(messages.size() - 1).getId();
+            }
+            lock.writeLock().lock();
+            try {
+                live = fresh;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.info("Rebuilt the message search index from {} messages", count);
+            return count;
+        } finally {
+            lock.writeLock().lock();
+            try {
+                rebuilding = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            rebuildRunning.set(false);
+        }
+    }
+
+    /**
+     * Returns whether a rebuild is running.
+     *
+     * @return true while the index is being rebuilt.
+     */
+    @ManagedAttribute(description = "Whether the index is being rebuilt")
+    public boolean isRebuilding() {
+        return rebuildRunning.get();
+    }
+
+    /**
+     * Adds messages to the index. Messages without an ID or content, and messages already indexed, are skipped.
+     *
+     * @param messages The messages to index.
+     */
+    public void index(Collection<Message> messages) {
+        List<MessageText> texts = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (message.getId() != null && message.getContent() != null && message.getRoom() != null) {
+                texts.add(new MessageText(message.getId(), message.getRoom().getId(), message.getContent()));
+            }
+        }
+        add(texts, null);
+        if (maxIndexedMessages > 0 && size() >= maxIndexedMessages && !rebuildRunning.get()) {
+            log.info("The message search index holds {} messages; rebuilding it from the newest", size());
+            rebuildInBackground();
+        }
+    }
+
+    /**
+     * Finds the messages matching a query in the given rooms, best match first.
+     *
+     * @param query   The search terms; every term must occur in a matching message.
+     * @param roomIds The rooms to search in.
+     * @param offset  The number of matches to skip.
+     * @param limit   The maximum number of matches to return.
+     * @return The matches, best first.
+     */
+    public List<Hit> search(String query, Set<Long> roomIds, int offset, int limit) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (terms.isEmpty() || roomIds.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        List<Hit> hits = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Postings[] lists = new Postings[terms.size()];
+            for (int i = 0; i < lists.length; i++) {
+                lists[i] = live.postings.get(terms.get(i));
+                if (lists[i] == null) {
+                    return hits;
+                }
+            }
+            // Walk the rarest term and look the others up, so the cost follows the most selective term
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+            double documentCount = live.messageRooms.size();
+            Postings rarest = lists[0];
+            candidates:
+            for (int i = 0; i < rarest.size; i++) {
+                long messageId = rarest.ids[i];
+                if (!roomIds.contains(live.messageRooms.get(messageId))) {
+                    continue;
+                }
+                double score = 0;
+                for (Postings list : lists) {
+                    int frequency = list == rarest ? rarest.frequencies[i] : list.frequency(messageId);
+                    if (frequency == 0) {
+                        continue candidates;
+                    }
+                    score += (1 + Math.log(frequency)) * Math.log(1 + documentCount / list.size);
+                }
+                hits.add(new Hit(messageId, score));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        hits.sort(Comparator.comparingDouble(Hit::getScore).reversed().thenComparing(Comparator.comparingLong(Hit::getMessageId).reversed()));
+        int from = Math.min(offset, hits.size());
+        return new ArrayList<>(hits.subList(from, Math.min(hits.size(), from + limit)));
+    }
+
+    /**
+     * Returns the number of indexed messages.
+     *
+     * @return The number of messages.
+     */
+    @ManagedAttribute(description = "Number of indexed messages")
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return live.messageRooms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of distinct terms in the index.
+     *
+     * @return The number of terms.
+     */
+    @ManagedAttribute(description = "Number of distinct indexed terms")
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return live.postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void rebuildInBackground() {
+        Thread thread = new Thread(() -> {
+            try {
+                rebuild();
+            } catch (IllegalStateException e) {
+                log.debug("Skipped a message search index rebuild: {}", e.getMessage());
+            } catch (RuntimeException e) {
+                log.error("Failed to rebuild the message search index", e);
+            }
+        }, "search-index-rebuild");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the ID after which a rebuild starts reading, so that it indexes at most 90% of the limit.
+     */
+    private long oldestIndexedAfter() {
+        if (maxIndexedMessages <= 0) {
+            return 0;
+        }
+        int keep = (int) Math.min(Integer.MAX_VALUE - 1, maxIndexedMessages * 9 / 10);
+        List<Long> boundary = messageRepo.findIdsNewestFirst(PageRequest.of(keep, 1));
+        return boundary.isEmpty() ? 0 : boundary.get(0);
+    }
+
+    /**
+     * Adds messages to the given index, or to the searched index and any index being rebuilt when it is null.
+     */
+    private void add(List<MessageText> messages, Segment target) {
+        // Tokenize outside the lock
+        List<MessageText> indexed = new ArrayList<>(messages.size());
+        List<Map<String, Integer>> termCounts = new ArrayList<>(messages.size());
+        for (MessageText message : messages) {
+            if (message.getContent() == null || message.getRoomId() == null) {
+                continue;
+            }
+            Map<String, Integer> counts = new HashMap<>();
+            for (String term : tokenize(message.getContent())) {
+                counts.merge(term, 1, Integer::sum);
+            }
+            indexed.add(message);
+            termCounts.add(counts);
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < indexed.size(); i++) {
+                MessageText message = indexed.get(i);
+                if (target != null) {
+                    target.add(message.getId(), message.getRoomId(), termCounts.get(i));
+                    continue;
+                }
+                live.add(message.getId(), message.getRoomId(), termCounts.get(i));
+                if (rebuilding != null) {
+                    rebuilding.add(message.getId(), message.getRoomId(), termCounts.get(i));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Splits text into lowercase terms: runs of letters and digits, and single ideographic characters.
+     *
+     * @param text The text to split.
+     * @return The terms, in order of occurrence.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if (Character.isIdeographic(codePoint)) {
+                flush(term, terms);
+                terms.add(new String(Character.toChars(codePoint)));
+            } else if (Character.isLetterOrDigit(codePoint)) {
+                term.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                flush(term, terms);
+            }
+        }
+        flush(term, terms);
+        return terms;
+    }
+
+    private static void flush(StringBuilder term, List<String> terms) {
+        if (term.length() > 0) {
+            terms.add(term.toString());
+            term.setLength(0);
+        }
+    }
+
+    /**
+     * A matching message and its score.
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Hit {
+        private long messageId;
+        private double score;
+    }
+
+    /**
+     * One generation of the index: the postings of each term, and the chatroom of each indexed message.
+     */
+    private static class Segment {
+        private final Map<String, Postings> postings = new HashMap<>(); // Map of term to the messages containing it
+        private final Map<Long, Long> messageRooms = new HashMap<>(); // Map of message ID to room ID
+
+        void add(long messageId, long roomId, Map<String, Integer> termCounts) {
+            if (messageRooms.putIfAbsent(messageId, roomId) != null) {
+                return;
+            }
+            for (Map.Entry<String, Integer> term : termCounts.entrySet()) {
+                postings.computeIfAbsent(term.getKey(), key -> new Postings()).add(messageId, term.getValue());
+            }
+        }
+    }
+
+    /**
+     * The sorted IDs of the messages containing one term, with the term's frequency in each.
+     */
+    private static class Postings {
+        private long[] ids = new long[4];
+        private int[] frequencies = new int[4];
+        private int size;
+
+        void add(long messageId, int frequency) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            // Messages almost always arrive in ID order; keep the arrays sorted when they do not
+            int position = size;
+            if (size > 0 && ids[size - 1] > messageId) {
+                position = -Arrays.binarySearch(ids, 0, size, messageId) - 1;
+                System.arraycopy(ids, position, ids, position + 1, size - position);
+                System.arraycopy(frequencies, position, frequencies, position + 1, size - position);
+            }
+            ids[position] = messageId;
+            frequencies[position] = frequency;
+            size++;
+        }
+
+        int frequency(long messageId) {
+            int position = Arrays.binarySearch(ids, 0, size, messageId);
+            return position < 0 ? 0 : frequencies[position];
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.demo.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Actuator endpoint for MessageSearchIndex, at /actuator/searchindex.
+ * A GET returns the size of the index, and a POST rebuilds it from the database,
+ * unless a rebuild is already running.
+ */
+@Component
+@Endpoint(id = "searchindex")
+public class MessageSearchIndexEndpoint {
+    @Autowired
+    private MessageSearchIndex searchIndex;
+
+    /**
+     * Describes the index.
+     *
+     * @return The number of indexed messages and terms, and whether a rebuild is running.
+     */
+    @ReadOperation
+    public Map<String, Object> status() {
+        return Map.of(
+                "messages", searchIndex.size(),
+                "terms", searchIndex.termCount(),
+                "rebuilding", searchIndex.isRebuilding());
+    }
+
+    /**
+     * Rebuilds the index and waits for the rebuild to finish.
+     *
+     * @return The number of messages read, or the status of the running rebuild if there already is one.
+     */
+    @WriteOperation
+    public Map<String, Object> rebuild() {
+        try {
+            return Map.of("rebuilt", true, "messages", searchIndex.rebuild());
+        } catch (IllegalStateException e) {
+            return Map.of("rebuilt", false, "error", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Message;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Optional write-behind buffer for sent messages.
+ * When enabled (chat.write-behind.enabled=true), messages are acknowledged as soon as they are queued,
+ * and a background thread persists them through the MessageBatchWriter in batches of up to flush-size messages,
+ * or whatever has arrived within flush-interval-ms. Senders wait up to offer-timeout-ms when the queue is full.
+ * Everything still queued is flushed on shutdown.
+ * <p>
+ * Queued messages have already been acknowledged, so a batch that fails to write is not dropped:
+ * it is retried up to chat.write-behind.max-retries times, waiting retry-backoff-ms, then doubling, between attempts.
+ * If it still fails, its messages are written one by one, so that one bad message does not take the batch with it,
+ * and those that still fail are appended as JSON lines to chat.write-behind.dead-letter-file for replay by an operator.
+ * That file defaults to dead-letter-messages.jsonl under chat.data-dir, itself ~/.chat by default,
+ * so that it does not depend on the directory the process was started from.
+ * <p>
+ * Written messages are announced in a queued MessagesPersistedEvent, which is when their notifications are sent.
+ */
+@Slf4j
+@Component
+public class MessageWriteBehindQueue {
+    @Autowired
+    private MessageBatchWriter batchWriter;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${chat.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${chat.write-behind.capacity:10000}")
+    private int capacity;
+
+    @Value("${chat.write-behind.flush-size:500}")
+    private int flushSize;
+
+    @Value("${chat.write-behind.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${chat.write-behind.offer-timeout-ms:1000}")
+    private long offerTimeoutMs;
+
+    @Value("${chat.write-behind.max-retries:3}")
+    private int maxRetries;
+
+    @Value("${chat.write-behind.retry-backoff-ms:500}")
+    private long retryBackoffMs;
+
+    @Value("${chat.write-behind.dead-letter-file:${chat.data-dir:${user.home}/.chat}/dead-letter-messages.jsonl}")
+    private Path deadLetterFile;
+
+    private static final ObjectMapper DEAD_LETTER_MAPPER = new ObjectMapper();
+
+    private BlockingQueue<Message> queue;
+    private Thread flusher;
+    private volatile boolean running;
+    private final LongAdder deadLetterCount = new LongAdder();
+
+    /**
+     * Starts the flusher thread if write-behind is enabled.
+     */
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        deadLetterFile = deadLetterFile.toAbsolutePath();
+        log.info("Write-behind enabled; messages that cannot be written go to {}", deadLetterFile);
+        queue = new ArrayBlockingQueue<>(capacity);
+        running = true;
+        flusher = new Thread(this::flushLoop, "message-write-behind");
+        flusher.start();
+    }
+
+    /**
+     * Stops accepting messages and waits until everything queued has been written.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (flusher == null) {
+            return;
+        }
+        running = false;
+        flusher.interrupt();
+        flusher.join();
+        // Messages offered while the flusher was exiting
+        List<Message> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        flush(rest);
+    }
+
+    /**
+     * Checks if write-behind is enabled.
+     *
+     * @return true if messages should be queued instead of saved directly, false otherwise.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queues a message for persistence, waiting for space when the queue is full.
+     *
+     * @param message The message to persist.
+     * @return true if the message was queued, false if the queue stayed full or is shutting down.
+     */
+    public boolean enqueue(Message message) {
+        if (!running) {
+            return false;
+        }
+        try {
+            return queue.offer(message, offerTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be written.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Returns the number of messages that could not be written and were appended to the dead-letter file.
+     *
+     * @return The dead-letter count.
+     */
+    public long getDeadLetterCount() {
+        return deadLetterCount.sum();
+    }
+
+    private void flushLoop() {
+        List<Message> batch = new ArrayList<>(flushSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Message first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                // Keep collecting for one interval so that bursts in a room share a single chatroom update
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                while (batch.size() < flushSize) {
+                    queue.drainTo(batch, flushSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= flushSize || remaining <= 0) {
+                        break;
+                    }
+                    Message next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutting down: stop waiting and write out whatever is left
+                queue.drainTo(batch);
+            }
+            flush(batch);
+        }
+    }
+
+    private void flush(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        long backoffMs = retryBackoffMs;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                batchWriter.writeAll(batch);
+                persisted(batch);
+                batch.clear();
+                return;
+            } catch (RuntimeException e) {
+                if (attempt >= maxRetries) {
+                    log.error("Failed to write {} queued messages after {} attempts; writing them one by one",
+                            batch.size(), attempt + 1, e);
+                    break;
+                }
+                log.warn("Failed to write {} queued messages, retrying in {} ms", batch.size(), backoffMs, e);
+                sleep(backoffMs);
+                backoffMs *= 2;
+            }
+        }
+        for (Message message : batch) {
+            try {
+                batchWriter.writeAll(List.of(message));
+            } catch (RuntimeException e) {
+                log.error("Failed to write a message to room {}; moving it to {}", message.getRoom().getId(), deadLetterFile, e);
+                deadLetter(message);
+                continue;
+            }
+            persisted(List.of(message));
+        }
+        batch.clear();
+    }
+
+    private void persisted(List<Message> messages) {
+        try {
+            eventPublisher.publishEvent(new MessagesPersistedEvent(List.copyOf(messages), true));
+        } catch (RuntimeException e) {
+            // The messages are stored, so a failing listener must not get them written again
+            log.error("Failed to announce {} written messages", messages.size(), e);
+        }
+    }
+
+    private void deadLetter(Message message) {
+        // An ID from a rolled-back insert must not be mistaken for a stored message
+        message.setId(null);
+        deadLetterCount.increment();
+        Map<String, Object> line = new LinkedHashMap<>();
+        line.put("roomId", message.getRoom().getId());
+        line.put("senderId", message.getSender().getId());
+        line.put("senderName", message.getSender().getName());
+        line.put("time", String.valueOf(message.getTime()));
+        line.put("content", message.getContent());
+        try {
+            Files.createDirectories(deadLetterFile.getParent());
+            Files.writeString(deadLetterFile, DEAD_LETTER_MAPPER.writeValueAsString(line) + System.lineSeparator(),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (JsonProcessingException e) {
+            log.error("Failed to encode a dead-lettered message", e);
+        } catch (IOException e) {
+            // Last resort, so the message can still be recovered from the log
+            log.error("Failed to append to {}; lost message: {}", deadLetterFile, line, e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // Shutting down: running is already false, so retry without waiting and let the flush finish
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Message;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Published after messages have been written to the database, with their IDs assigned,
+ * whether they were saved directly, in a batch send or by the write-behind queue.
+ * Messages written by the write-behind queue are marked as queued: their senders were acknowledged
+ * before the messages had IDs, so nobody has been notified of them yet.
+ * Messages persisted by another node of the cluster are marked as remote: they were read back from the database
+ * after that node announced them, and only update this node's caches.
+ */
+@Data
+@AllArgsConstructor
+public class MessagesPersistedEvent {
+    private List<Message> messages;
+    private boolean queued;
+    private boolean remote;
+
+    public MessagesPersistedEvent(List<Message> messages) {
+        this(messages, false, false);
+    }
+
+    public MessagesPersistedEvent(List<Message> messages, boolean queued) {
+        this(messages, queued, false);
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Participant;
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * JPA entity listener that keeps the RoomMembershipCache in sync with the participant table.
+ */
+@Component
+public class ParticipantListener {
+    // Lazy, because Hibernate creates this listener while the repositories the cache needs are still being built
+    @Lazy
+    @Autowired
+    private RoomMembershipCache membershipCache;
+
+    /**
+     * Invalidates the cached members of the participant's room, and the cached rooms of the participant,
+     * after it was added, changed or removed.
+     * The entry is dropped right away, for reads later in the same transaction, and again after the commit:
+     * another thread may have loaded the room from the database in between and cached the members before the change.
+     *
+     * @param participant The participant that was written.
+     */
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    public void onChange(Participant participant) {
+        if (participant.getRoom() == null) {
+            return;
+        }
+        Long roomId = participant.getRoom().getId();
+        String userId = participant.getParticipant() == null ? null : participant.getParticipant().getId();
+        invalidate(roomId, userId);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidate(roomId, userId);
+                }
+            });
+        }
+    }
+
+    private void invalidate(Long roomId, String userId) {
+        membershipCache.invalidate(roomId);
+        if (userId != null) {
+            membershipCache.invalidateUser(userId);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.MessageView;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.response.MessagePage;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the latest messages of recently read chatrooms in memory, so the first page of a chat history,
+ * and polls for messages after a recent one, are answered without a query.
+ * A room is loaded on its first read with one query for its last chat.recent-messages.per-room messages,
+ * and from then on every persisted message (MessagesPersistedEvent) is appended, dropping the oldest.
+ * Each room's buffer is an immutable snapshot that is replaced on append, so reads need no locking.
+ * Messages persisted on other nodes of the cluster arrive as remote events and are appended the same way.
+ * Since such an announcement can be lost, a room is also loaded again chat.recent-messages.reload-after
+ * after it was loaded, however often it is appended to.
+ * <p>
+ * All rooms share a budget of chat.recent-messages.maximum-bytes, estimated from the message contents;
+ * when it is exceeded, Caffeine evicts the rooms that are least likely to be read again (W-TinyLFU).
+ * Hits and misses count pages, not cache lookups: a page that needs older messages than the buffer holds is a miss.
+ * The hit ratio is published over JMX and as the chat.recent-messages.hit.ratio gauge.
+ */
+@Component
+@ManagedResource
+public class RecentMessageCache {
+    private static final int MESSAGE_OVERHEAD_BYTES = 120; // View, time and string objects
+
+    @Autowired
+    private MessageRepository messageRepo;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.recent-messages.per-room:200}")
+    private int perRoom;
+
+    @Value("${chat.recent-messages.maximum-bytes:67108864}")
+    private long maximumBytes;
+
+    @Value("${chat.recent-messages.reload-after:5m}")
+    private Duration reloadAfter;
+
+    private Cache<Long, RecentMessages> cache; // Map of room ID to its latest messages
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Builds the cache, weighing each room by the estimated size of its buffered messages.
+     */
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maximumBytes)
+                .weigher((Long roomId, RecentMessages recent) -> recent.bytes)
+                // Appends do not extend the lifetime of a loaded room
+                .expireAfter(new Expiry<Long, RecentMessages>() {
+                    @Override
+                    public long expireAfterCreate(Long roomId, RecentMessages recent, long currentTime) {
+                        return reloadAfter.toNanos();
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(Long roomId, RecentMessages recent, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(Long roomId, RecentMessages recent, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .recordStats()
+                .build();
+        if (meterRegistry != null) {
+            Gauge.builder("chat.recent-messages.hit.ratio", this, RecentMessageCache::getHitRatio)
+                    .description("Share of history pages served from memory")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Appends persisted messages to the buffers of their rooms, if the rooms are cached.
+     *
+     * @param event The event carrying the persisted messages.
+     */
+    @EventListener
+    public void onMessagesPersisted(MessagesPersistedEvent event) {
+        for (Message message : event.getMessages()) {
+            if (message.getId() != null) {
+                // Replacing the snapshot also makes Caffeine weigh the room again
+                MessageView view = MessageView.of(message);
+                cache.asMap().computeIfPresent(message.getRoom().getId(), (roomId, recent) -> recent.with(view, perRoom));
+            }
+        }
+    }
+
+    /**
+     * Returns a page of the latest messages, or of the messages after a given one, if the room's buffer covers it.
+     * The room is loaded into the cache if it is not cached yet.
+     *
+     * @param room  The chatroom.
+     * @param after Only return messages with an ID higher than this, or null for the latest page.
+     * @param size  The maximum number of messages.
+     * @return The page, in the same form as ChatService.getMessages, or null if it has to be read from the database.
+     */
+    public MessagePage getPage(Chatroom room, Long after, int size) {
+        if (size > perRoom) {
+            misses.increment();
+            return null;
+        }
+        RecentMessages recent = cache.get(room.getId(), roomId -> load(room));
+        MessagePage page = after == null ? recent.latestPage(size) : recent.pageAfter(after, size);
+        if (page == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return page;
+    }
+
+    /**
+     * Returns the share of pages that were served from memory.
+     *
+     * @return The hit ratio, between 0 and 1.
+     */
+    @ManagedAttribute(description = "Share of history pages served from memory")
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the number of history pages served from memory.
+     *
+     * @return The hit count.
+     */
+    @ManagedAttribute(description = "Number of history pages served from memory")
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of history pages that had to be read from the database.
+     *
+     * @return The miss count.
+     */
+    @ManagedAttribute(description = "Number of history pages read from the database")
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the estimated size of all buffered messages.
+     *
+     * @return The size in bytes.
+     */
+    @ManagedAttribute(description = "Estimated size of the buffered messages in bytes")
+    public long getWeightedSize() {
+        return cache.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0)).orElse(0L);
+    }
+
+    /**
+     * Returns the load and eviction counters of the underlying cache.
+     *
+     * @return A snapshot of the cache statistics.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    private RecentMessages load(Chatroom room) {
+        // One extra row tells whether the room has older messages than the buffer holds
+        List<MessageView> newestFirst = messageRepo.findLatestViewsByRoomId(room.getId(), PageRequest.of(0, perRoom + 1));
+        boolean complete = newestFirst.size() <= perRoom;
+        List<MessageView> messages = new ArrayList<>(newestFirst.subList(0, Math.min(perRoom, newestFirst.size())));
+        Collections.reverse(messages);
+        return new RecentMessages(messages.toArray(new MessageView[0]), complete);
+    }
+
+    private static int estimateBytes(MessageView message) {
+        return MESSAGE_OVERHEAD_BYTES + 2 * (length(message.getContent()) + length(message.getSenderId()) + length(message.getSenderName()));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * The latest messages of one room, oldest first.
+     * complete is true when the room has no messages older than the first one held.
+     */
+    private static class RecentMessages {
+        private final MessageView[] messages;
+        private final boolean complete;
+        private final int bytes;
+
+        private RecentMessages(MessageView[] messages, boolean complete) {
+            this.messages = messages;
+            this.complete = complete;
+            int total = 0;
+            for (MessageView message : messages) {
+                total += estimateBytes(message);
+            }
+            this.bytes = total;
+        }
+
+        /**
+         * Returns a copy with the message added in ID order, keeping at most capacity messages.
+         */
+        private RecentMessages with(MessageView message, int capacity) {
+            int position = messages.length;
+            while (position > 0 && messages[position - 1].getId() >= message.getId()) {
+                if (messages[position - 1].getId().equals(message.getId())) {
+                    return this;
+                }
+                position--;
+            }
+            if (position == 0 && messages.length == capacity) {
+                // Older than everything held in a full buffer
+                return this;
+            }
+            MessageView[] updated = new MessageView[messages.length + 1];
+            System.arraycopy(messages, 0, updated, 0, position);
+            updated[position] = message;
+            System.arraycopy(messages, position, updated, position + 1, messages.length - position);
+            if (updated.length > capacity) {
+                return new RecentMessages(Arrays.copyOfRange(updated, updated.length - capacity, updated.length), false);
+            }
+            return new RecentMessages(updated, complete);
+        }
+
+        private MessagePage latestPage(int size) {
+            if (messages.length < size && !complete) {
+                return null;
+            }
+            int count = Math.min(size, messages.length);
+            List<MessageView> page = new ArrayList<>(count);
+            for (int i = messages.length - 1; i >= messages.length - count; i--) {
+                page.add(messages[i]);
+            }
+            boolean hasMore = messages.length > size || !complete;
+            return new MessagePage(page, hasMore ? page.get(count - 1).getId() : null, hasMore);
+        }
+
+        private MessagePage pageAfter(long after, int size) {
+            // Every message after "after" is held only if the buffer reaches back to it
+            if (!complete && (messages.length == 0 || messages[0].getId() > after)) {
+                return null;
+            }
+            int from = 0;
+            while (from < messages.length && messages[from].getId() <= after) {
+                from++;
+            }
+            int count = Math.min(size, messages.length - from);
+            List<MessageView> page = new ArrayList<>(count);
+            for (int i = from + count - 1; i >= from; i--) {
+                page.add(messages[i]);
+            }
+            boolean hasMore = messages.length - from > size;
+            return new MessagePage(page, hasMore ? messages[from + count - 1].getId() : null, hasMore);
+        }
+    }
+}
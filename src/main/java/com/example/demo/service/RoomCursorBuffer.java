@@ -0,0 +1,250 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BinaryOperator;
+
+/**
+ * Collects room cursor updates in memory and writes them to the room_cursor table in batches.
+ * Updates of the same user and room are coalesced, so only the latest position is written.
+ * The buffer is flushed every flush-interval-ms, when it holds more than capacity entries,
+ * for a single user before their missed positions are replayed, and on shutdown.
+ * Unread counts do not wait for a flush: they apply the buffered read positions themselves.
+ * <p>
+ * Read and delivered positions only move forward. A missed message, sent while the user was offline,
+ * records the position just before it as the missed position, which only moves back until a replay has sent
+ * the user everything after it. It is kept apart from the delivered position, so that messages delivered live
+ * after the user reconnects cannot hide the ones they missed before.
+ */
+@Slf4j
+@Component
+public class RoomCursorBuffer {
+    private static final String UPSERT_DELIVERED =
+            "INSERT INTO room_cursor (user_id, room_id, last_delivered_message_id) VALUES (?, ?, ?) "
+                    + "ON DUPLICATE KEY UPDATE last_delivered_message_id = "
+                    + "GREATEST(COALESCE(last_delivered_message_id, 0), VALUES(last_delivered_message_id))";
+    private static final String UPSERT_MISSED =
+            "INSERT INTO room_cursor (user_id, room_id, missed_from_message_id) VALUES (?, ?, ?) "
+                    + "ON DUPLICATE KEY UPDATE missed_from_message_id = "
+                    + "LEAST(COALESCE(missed_from_message_id, VALUES(missed_from_message_id)), VALUES(missed_from_message_id))";
+    private static final String ADVANCE_MISSED =
+            "UPDATE room_cursor SET missed_from_message_id = ? "
+                    + "WHERE user_id = ? AND room_id = ? AND missed_from_message_id < ?";
+    private static final String CLEAR_MISSED =
+            "UPDATE room_cursor SET missed_from_message_id = NULL "
+                    + "WHERE user_id = ? AND room_id = ? AND missed_from_message_id <= ?";
+
+    private static final String UPSERT_READ =
+            "INSERT INTO room_cursor (user_id, room_id, last_read_message_id) VALUES (?, ?, ?) "
+                    + "ON DUPLICATE KEY UPDATE last_read_message_id = "
+                    + "GREATEST(COALESCE(last_read_message_id, 0), VALUES(last_read_message_id))";
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Value("${chat.room-cursor.capacity:100000}")
+    private int capacity;
+
+    @Value("${chat.room-cursor.flush-interval-ms:1000}")
+    private long flushIntervalMs;
+
+    // Maps of user ID to room ID to message ID; the inner maps are only touched inside compute
+    private final Map<String, Map<Long, Long>> delivered = new ConcurrentHashMap<>();
+    private final Map<String, Map<Long, Long>> missed = new ConcurrentHashMap<>();
+    private final Map<String, Map<Long, Long>> read = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    private ScheduledExecutorService flusher;
+
+    /**
+     * Starts the periodic flush.
+     */
+    @PostConstruct
+    public void start() {
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "room-cursor-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                log.error("Failed to flush room cursors", e);
+            }
+        }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the periodic flush and writes everything still buffered.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(5, TimeUnit.SECONDS);
+        flush();
+    }
+
+    /**
+     * Records that a message was delivered to a user.
+     *
+     * @param userId    The ID of the user.
+     * @param roomId    The ID of the chatroom.
+     * @param messageId The ID of the delivered message.
+     */
+    public void delivered(String userId, Long roomId, Long messageId) {
+        record(delivered, userId, roomId, messageId, Math::max);
+    }
+
+    /**
+     * Records that a message could not be delivered to a user because they were offline.
+     * A message still queued for writing has no ID yet; the last written message of its room, which is before it,
+     * is recorded instead.
+     *
+     * @param userId  The ID of the user.
+     * @param message The missed message.
+     */
+    public void missed(String userId, Message message) {
+        Chatroom room = message.getRoom();
+        // Read before the message ID: the write-behind writer raises it only after assigning the ID
+        Long lastMessageId = room.getLastMessageId();
+        Long messageId = message.getId();
+        Long position = messageId != null ? messageId - 1 : lastMessageId != null ? lastMessageId : 0L;
+        record(missed, userId, room.getId(), position, Math::min);
+    }
+
+    /**
+     * Writes how far a replay of missed messages got in a room: the missed position moves up to the last
+     * replayed message, or is cleared once the room has been replayed to the end.
+     * Unlike the other positions this is written immediately, after the replayed frame was sent.
+     *
+     * @param userId    The ID of the user.
+     * @param roomId    The ID of the chatroom.
+     * @param messageId The ID of the last replayed message, or the missed position if nothing was replayed.
+     * @param complete  Whether every message of the room after the missed position was replayed.
+     */
+    public void replayed(String userId, Long roomId, Long messageId, boolean complete) {
+        if (complete) {
+            jdbcTemplate.update(CLEAR_MISSED, userId, roomId, messageId);
+        } else {
+            jdbcTemplate.update(ADVANCE_MISSED, messageId, userId, roomId, messageId);
+        }
+    }
+
+    /**
+     * Records that a user has read a chatroom up to a message.
+     *
+     * @param userId    The ID of the user.
+     * @param roomId    The ID of the chatroom.
+     * @param messageId The ID of the last read message.
+     */
+    public void read(String userId, Long roomId, Long messageId) {
+        record(read, userId, roomId, messageId, Math::max);
+    }
+
+    /**
+     * Returns the read positions of a user that are still buffered, without writing them.
+     *
+     * @param userId The ID of the user.
+     * @return A copy of the map of room ID to the last read message ID, empty if nothing is buffered.
+     */
+    public Map<Long, Long> getBufferedReads(String userId) {
+        Map<Long, Long> copy = new HashMap<>();
+        read.computeIfPresent(userId, (key, rooms) -> {
+            copy.putAll(rooms);
+            return rooms;
+        });
+        return copy;
+    }
+
+    /**
+     * Writes the buffered cursors of one user, so that the table is up to date for them.
+     *
+     * @param userId The ID of the user.
+     */
+    public void flushUser(String userId) {
+        Map<Long, Long> userMissed = missed.remove(userId);
+        Map<Long, Long> userDelivered = delivered.remove(userId);
+        Map<Long, Long> userRead = read.remove(userId);
+        write(UPSERT_MISSED, userMissed == null ? Map.of() : Map.of(userId, userMissed));
+        write(UPSERT_DELIVERED, userDelivered == null ? Map.of() : Map.of(userId, userDelivered));
+        write(UPSERT_READ, userRead == null ? Map.of() : Map.of(userId, userRead));
+    }
+
+    /**
+     * Writes all buffered cursors.
+     */
+    public void flush() {
+        write(UPSERT_MISSED, drain(missed));
+        write(UPSERT_DELIVERED, drain(delivered));
+        write(UPSERT_READ, drain(read));
+    }
+
+    /**
+     * Returns the number of buffered cursor updates.
+     *
+     * @return The buffer size.
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    private void record(Map<String, Map<Long, Long>> buffer, String userId, Long roomId, Long messageId,
+                        BinaryOperator<Long> merge) {
+        if (messageId == null) {
+            return;
+        }
+        buffer.compute(userId, (key, rooms) -> {
+            if (rooms == null) {
+                rooms = new HashMap<>();
+            }
+            if (rooms.putIfAbsent(roomId, messageId) == null) {
+                size.incrementAndGet();
+            } else {
+                rooms.merge(roomId, messageId, merge);
+            }
+            return rooms;
+        });
+        if (size.get() > capacity) {
+            flush();
+        }
+    }
+
+    private Map<String, Map<Long, Long>> drain(Map<String, Map<Long, Long>> buffer) {
+        Map<String, Map<Long, Long>> drained = new HashMap<>();
+        for (String userId : new ArrayList<>(buffer.keySet())) {
+            Map<Long, Long> rooms = buffer.remove(userId);
+            if (rooms != null) {
+                drained.put(userId, rooms);
+            }
+        }
+        return drained;
+    }
+
+    private void write(String sql, Map<String, Map<Long, Long>> cursors) {
+        List<Object[]> rows = new ArrayList<>();
+        cursors.forEach((userId, rooms) -> rooms.forEach((roomId, messageId) -> rows.add(new Object[]{userId, roomId, messageId})));
+        if (rows.isEmpty()) {
+            return;
+        }
+        size.addAndGet(-rows.size());
+        jdbcTemplate.batchUpdate(sql, rows);
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.demo.service;
+
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.ParticipantRepository;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the members of group chatrooms, so membership checks and fan-out do not query participants every time,
+ * and the group chatrooms of each user, so presence changes find who to notify without a query.
+ * Memory is bounded by the total number of cached members across all rooms, and by the number of cached users.
+ * Entries are invalidated by ParticipantListener whenever a participant is added, changed or removed,
+ * and expire chat.membership-cache.expire-after-write after loading even if they are read all the time,
+ * in case a change bypassed the listener.
+ */
+@Component
+public class RoomMembershipCache {
+    @Autowired
+    private ParticipantRepository participantRepo;
+
+    @Value("${chat.membership-cache.maximum-members:1000000}")
+    private long maximumMembers;
+
+    @Value("${chat.membership-cache.maximum-users:100000}")
+    private long maximumUsers;
+
+    @Value("${chat.membership-cache.expire-after-access:30m}")
+    private Duration expireAfterAccess;
+
+    @Value("${chat.membership-cache.expire-after-write:10m}")
+    private Duration expireAfterWrite;
+
+    private LoadingCache<Long, RoomMembers> cache; // Map of room ID to its members
+    private LoadingCache<String, Set<Long>> roomsByUser; // Map of user ID to the IDs of their group rooms
+
+    /**
+     * Builds the caches, weighing each room by its number of members.
+     */
+    @PostConstruct
+    public void init() {
+        cache = Caffeine.newBuilder()
+                .maximumWeight(maximumMembers)
+                .weigher((Long roomId, RoomMembers members) -> members.getMembers().size() + 1)
+                .expireAfterAccess(expireAfterAccess)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build(new CacheLoader<>() {
+                    @Override
+                    public RoomMembers load(Long roomId) {
+                        return new RoomMembers(participantRepo.findParticipantsByRoomId(roomId));
+                    }
+
+                    @Override
+                    public Map<Long, RoomMembers> loadAll(Set<? extends Long> roomIds) {
+                        return loadMembers(roomIds);
+                    }
+                });
+        roomsByUser = Caffeine.newBuilder()
+                .maximumSize(maximumUsers)
+                .expireAfterAccess(expireAfterAccess)
+                .expireAfterWrite(expireAfterWrite)
+                .build(userId -> Set.copyOf(participantRepo.findRoomIdsByUserId(userId)));
+    }
+
+    /**
+     * Returns the members of a group chatroom, loading them on first use.
+     *
+     * @param roomId The ID of the chatroom.
+     * @return The members of the chatroom.
+     */
+    public RoomMembers get(Long roomId) {
+        return cache.get(roomId);
+    }
+
+    /**
+     * Returns the members of a group chatroom if they are cached, without loading them.
+     *
+     * @param roomId The ID of the chatroom.
+     * @return The members of the chatroom, or null if they are not cached.
+     */
+    public RoomMembers getIfPresent(Long roomId) {
+        return cache.getIfPresent(roomId);
+    }
+
+    /**
+     * Returns the IDs of the group chatrooms a user is a member of, loading them on first use.
+     *
+     * @param userId The ID of the user.
+     * @return The IDs of the user's group chatrooms.
+     */
+    public Set<Long> getRoomIds(String userId) {
+        return roomsByUser.get(userId);
+    }
+
+    /**
+     * Returns the members of several group chatrooms, loading all missing rooms with one query.
+     *
+     * @param roomIds The IDs of the chatrooms.
+     * @return The members of each chatroom, by room ID.
+     */
+    public Map<Long, RoomMembers> getAll(Collection<Long> roomIds) {
+        return cache.getAll(roomIds);
+    }
+
+    /**
+     * Drops the cached members of a chatroom.
+     *
+     * @param roomId The ID of the chatroom.
+     */
+    public void invalidate(Long roomId) {
+        cache.invalidate(roomId);
+    }
+
+    /**
+     * Drops the cached group chatrooms of a user.
+     *
+     * @param userId The ID of the user.
+     */
+    public void invalidateUser(String userId) {
+        roomsByUser.invalidate(userId);
+    }
+
+    /**
+     * Returns the hit, miss and eviction counters of the cache.
+     *
+     * @return A snapshot of the cache statistics.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    private Map<Long, RoomMembers> loadMembers(Set<? extends Long> roomIds) {
+        Map<Long, List<UserDTO>> membersByRoom = new HashMap<>();
+        for (Long roomId : roomIds) {
+            membersByRoom.put(roomId, new ArrayList<>());
+        }
+        for (Object[] row : participantRepo.findParticipantsByRoomIdIn(roomIds)) {
+            membersByRoom.get((Long) row[0]).add((UserDTO) row[1]);
+        }
+        Map<Long, RoomMembers> result = new HashMap<>();
+        membersByRoom.forEach((roomId, members) -> result.put(roomId, new RoomMembers(members)));
+        return result;
+    }
+
+    /**
+     * The immutable member list of one chatroom, with a set of member IDs for O(1) lookups.
+     */
+    public static class RoomMembers {
+        private final List<UserDTO> members;
+        private final Set<String> memberIds;
+
+        public RoomMembers(List<UserDTO> members) {
+            this.members = List.copyOf(members);
+            this.memberIds = members.stream().map(UserDTO::getId).collect(Collectors.toUnmodifiableSet());
+        }
+
+        public List<UserDTO> getMembers() {
+            return members;
+        }
+
+        public boolean contains(String userId) {
+            return memberIds.contains(userId);
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package com.example.demo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.stereotype.Service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Issues and verifies stateless login tokens, used instead of the token map when chat.token.mode is signed.
+ * A token reads "kid.expiry.user.nonce.signature": the ID of the signing key, the expiry in epoch seconds,
+ * the user ID in unpadded base64url, a random nonce so that no two tokens are alike,
+ * and a truncated HMAC-SHA256 of everything before it, also in base64url.
+ * Any node with the key verifies a token without shared state, and tokens stay valid across restarts.
+ * <p>
+ * Keys are configured in chat.token.keys as comma-separated "kid:base64-secret" pairs.
+ * New tokens are signed with chat.token.active-key (the first key by default), while every configured key still verifies.
+ * To rotate, add a new key and make it active, then remove the old key once its tokens have expired.
+ * Without configured keys a random key is generated, so tokens do not survive a restart.
+ * <p>
+ * Verification works on per-thread buffers; for ASCII user IDs the only allocation is inside the JDK HMAC (about 100 bytes).
+ * Revoked tokens are kept in a bloom filter until they have expired. A false positive rejects a valid token,
+ * and the user logs in again. Each revocation is published as a TokenRevokedEvent, which ClusterCacheSync broadcasts
+ * so that the other nodes add the token to their own filters.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "chat.token.mode", havingValue = "signed")
+public class SignedTokenService {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int SIGNATURE_BYTES = 16;
+    private static final int MAX_TOKEN_LENGTH = 512;
+    private static final int NONCE_BYTES = 6;
+    private static final int HASHES = 4;
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        for (int i = 0; i < alphabet.length(); i++) {
+            DECODE[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final long ttlSeconds;
+    private final RevocationFilter revoked;
+    private volatile SigningKey[] keys; // The active key comes first
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    @Autowired(required = false)
+    private ApplicationEventPublisher eventPublisher;
+
+    /**
+     * Creates the token service from its configuration.
+     *
+     * @param keys           Comma-separated "kid:base64-secret" pairs, or empty to generate a key.
+     * @param activeKey      The ID of the key that signs new tokens, or empty for the first key.
+     * @param ttl            How long a token is valid.
+     * @param revocationBits The size of each generation of the revocation filter, in bits.
+     */
+    public SignedTokenService(@Value("${chat.token.keys:}") String keys,
+                              @Value("${chat.token.active-key:}") String activeKey,
+                              @Value("${chat.token.ttl:24h}") Duration ttl,
+                              @Value("${chat.token.revocation-bits:1048576}") int revocationBits) {
+        this.ttlSeconds = ttl.toSeconds();
+        this.revoked = new RevocationFilter(revocationBits, ttl.toMillis());
+        Map<String, byte[]> secrets = new LinkedHashMap<>();
+        for (String entry : keys.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int colon = entry.indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected kid:base64-secret in chat.token.keys");
+            }
+            secrets.put(entry.substring(0, colon).trim(), Base64.getDecoder().decode(entry.substring(colon + 1).trim()));
+        }
+        if (secrets.isEmpty()) {
+            log.warn("No chat.token.keys configured; signing with a random key, so tokens will not survive a restart");
+            byte[] secret = new byte[32];
+            random.nextBytes(secret);
+            secrets.put("auto", secret);
+        }
+        String active = activeKey.isBlank() ? secrets.keySet().iterator().next() : activeKey;
+        this.keys = new SigningKey[0];
+        for (Map.Entry<String, byte[]> entry : secrets.entrySet()) {
+            addKey(entry.getKey(), entry.getValue(), entry.getKey().equals(active));
+        }
+        if (!this.keys[0].id.equals(active)) {
+            throw new IllegalArgumentException("Unknown chat.token.active-key " + active);
+        }
+    }
+
+    /**
+     * Adds a verification key, or replaces the key with the same ID.
+     *
+     * @param keyId  The key ID, made of letters, digits, '-' and '_'.
+     * @param secret The HMAC secret.
+     * @param active Whether new tokens are signed with this key from now on.
+     */
+    public synchronized void addKey(String keyId, byte[] secret, boolean active) {
+        if (keyId.isEmpty() || !keyId.chars().allMatch(c -> c < 128 && DECODE[c] >= 0)) {
+            throw new IllegalArgumentException("Invalid token key ID " + keyId);
+        }
+        SigningKey key = new SigningKey(keyId, new SecretKeySpec(secret, ALGORITHM));
+        SigningKey[] next = Arrays.stream(keys).filter(existing -> !existing.id.equals(keyId)).toArray(SigningKey[]::new);
+        SigningKey[] updated = new SigningKey[next.length + 1];
+        if (active || next.length == 0) {
+            updated[0] = key;
+            System.arraycopy(next, 0, updated, 1, next.length);
+        } else {
+            System.arraycopy(next, 0, updated, 0, next.length);
+            updated[next.length] = key;
+        }
+        keys = updated;
+    }
+
+    /**
+     * Removes a key, so that tokens signed with it are no longer accepted. The active key cannot be removed.
+     *
+     * @param keyId The key ID.
+     * @return true if the key was removed, false otherwise.
+     */
+    public synchronized boolean removeKey(String keyId) {
+        if (keys[0].id.equals(keyId)) {
+            return false;
+        }
+        SigningKey[] next = Arrays.stream(keys).filter(existing -> !existing.id.equals(keyId)).toArray(SigningKey[]::new);
+        boolean removed = next.length != keys.length;
+        keys = next;
+        return removed;
+    }
+
+    /**
+     * Issues a token for a user, signed with the active key.
+     *
+     * @param userId The user ID.
+     * @return The token.
+     */
+    public String issue(String userId) {
+        SigningKey key = keys[0];
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String body = key.id + "." + (System.currentTimeMillis() / 1000 + ttlSeconds) + "."
+                + encoder.encodeToString(userId.getBytes(StandardCharsets.UTF_8)) + "." + encoder.encodeToString(nonce);
+        Scratch buffers = scratch.get();
+        byte[] bytes = body.getBytes(StandardCharsets.US_ASCII);
+        Mac mac = buffers.mac(key);
+        mac.update(bytes);
+        doFinal(mac, buffers.digest);
+        return body + "." + encoder.encodeToString(Arrays.copyOf(buffers.digest, SIGNATURE_BYTES));
+    }
+
+    /**
+     * Checks that a token was signed by a known key for the user, has not expired and has not been revoked.
+     *
+     * @param userId The user ID the token must belong to.
+     * @param token  The token.
+     * @return true if the token is valid for the user, false otherwise.
+     */
+    public boolean verify(String userId, String token) {
+        Scratch buffers = scratch.get();
+        return userId != null && check(token, buffers) && userMatches(userId, buffers) && !revoked.mightContain(buffers.signature);
+    }
+
+    /**
+     * Revokes a valid token until it expires.
+     *
+     * @param userId The user ID the token must belong to.
+     * @param token  The token.
+     * @return true if the token was valid and is now revoked, false otherwise.
+     */
+    public boolean revoke(String userId, String token) {
+        if (!verify(userId, token)) {
+            return false;
+        }
+        byte[] signature = scratch.get().signature.clone();
+        revoked.add(signature);
+        if (eventPublisher != null) {
+            eventPublisher.publishEvent(new TokenRevokedEvent(signature));
+        }
+        return true;
+    }
+
+    /**
+     * Rejects the token with the given signature from now until it expires, after it was revoked on another node.
+     *
+     * @param signature The signature of the revoked token.
+     */
+    public void revokeSignature(byte[] signature) {
+        if (signature.length != SIGNATURE_BYTES) {
+            throw new IllegalArgumentException("Expected a " + SIGNATURE_BYTES + "-byte token signature");
+        }
+        revoked.add(signature);
+    }
+
+    /**
+     * Parses a token into the scratch buffers and checks its signature and expiry.
+     */
+    private boolean check(String token, Scratch buffers) {
+        return parse(token, buffers) && buffers.expiry > System.currentTimeMillis() / 1000;
+    }
+
+    private boolean parse(String token, Scratch buffers) {
+        if (token == null || token.length() > MAX_TOKEN_LENGTH) {
+            return false;
+        }
+        int length = token.length();
+        byte[] bytes = buffers.token;
+        int[] dots = buffers.dots;
+        int dotCount = 0;
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            if (c >= 128) {
+                return false;
+            }
+            if (c == '.') {
+                if (dotCount == 4) {
+                    return false;
+                }
+                dots[dotCount++] = i;
+            }
+            bytes[i] = (byte) c;
+        }
+        if (dotCount != 4) {
+            return false;
+        }
+        SigningKey key = findKey(token, dots[0]);
+        if (key == null) {
+            return false;
+        }
+        long expiry = 0;
+        if (dots[1] - dots[0] < 2 || dots[1] - dots[0] > 19) {
+            return false;
+        }
+        for (int i = dots[0] + 1; i < dots[1]; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            expiry = expiry * 10 + digit;
+        }
+        if (decode(bytes, dots[3] + 1, length, buffers.signature) != SIGNATURE_BYTES) {
+            return false;
+        }
+        Mac mac = buffers.mac(key);
+        mac.update(bytes, 0, dots[3]);
+        doFinal(mac, buffers.digest);
+        // Constant-time comparison
+        int difference = 0;
+        for (int i = 0; i < SIGNATURE_BYTES; i++) {
+            difference |= buffers.digest[i] ^ buffers.signature[i];
+        }
+        if (difference != 0) {
+            return false;
+        }
+        buffers.expiry = expiry;
+        buffers.userLength = decode(bytes, dots[1] + 1, dots[2], buffers.user);
+        return buffers.userLength >= 0;
+    }
+
+    private SigningKey findKey(String token, int length) {
+        for (SigningKey key : keys) {
+            if (key.id.length() == length && token.regionMatches(0, key.id, 0, length)) {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static boolean userMatches(String userId, Scratch buffers) {
+        int length = userId.length();
+        boolean ascii = length == buffers.userLength;
+        for (int i = 0; ascii && i < length; i++) {
+            char c = userId.charAt(i);
+            if (c >= 128) {
+                ascii = false;
+            } else if (c != buffers.user[i]) {
+                return false;
+            }
+        }
+        if (ascii) {
+            return true;
+        }
+        byte[] encoded = userId.getBytes(StandardCharsets.UTF_8);
+        return Arrays.equals(encoded, 0, encoded.length, buffers.user, 0, buffers.userLength);
+    }
+
+    /**
+     * Decodes unpadded base64url from a range of bytes.
+     *
+     * @return The number of decoded bytes, or -1 if the range is not canonical base64url or does not fit.
+     */
+    private static int decode(byte[] source, int from, int to, byte[] target) {
+        int length = 0;
+        int bits = 0;
+        int bitCount = 0;
+        if ((to - from) % 4 == 1) {
+            return -1;
+        }
+        for (int i = from; i < to; i++) {
+            int value = source[i] < 0 ? -1 : DECODE[source[i]];
+            if (value < 0) {
+                return -1;
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                if (length == target.length) {
+                    return -1;
+                }
+                target[length++] = (byte) (bits >> bitCount);
+            }
+        }
+        // Leftover bits must be zero, so that every value has exactly one encoding
+        if ((bits & ((1 << bitCount) - 1)) != 0) {
+            return -1;
+        }
+        return length;
+    }
+
+    private static void doFinal(Mac mac, byte[] digest) {
+        try {
+            mac.doFinal(digest, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record SigningKey(String id, SecretKeySpec secret) {
+    }
+
+    /**
+     * Per-thread buffers, so that verifying a token does not allocate.
+     */
+    private static class Scratch {
+        private final byte[] token = new byte[MAX_TOKEN_LENGTH];
+        private final byte[] user = new byte[MAX_TOKEN_LENGTH];
+        private final byte[] signature = new byte[SIGNATURE_BYTES];
+        private final byte[] digest = new byte[32];
+        private final int[] dots = new int[4];
+        private final Map<SigningKey, Mac> macs = new HashMap<>();
+        private long expiry;
+        private int userLength;
+
+        private Mac mac(SigningKey key) {
+            return macs.computeIfAbsent(key, k -> {
+                try {
+                    Mac mac = Mac.getInstance(ALGORITHM);
+                    mac.init(k.secret);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * A bloom filter of revoked signatures in two generations of one token lifetime each.
+     * A revoked token is kept for at least a full lifetime after it was added, by which time it has expired.
+     */
+    private static class RevocationFilter {
+        private final int bits;
+        private final long periodMillis;
+        private volatile AtomicLongArray current;
+        private volatile AtomicLongArray previous;
+        private volatile long periodEnd;
+
+        private RevocationFilter(int bits, long periodMillis) {
+            this.bits = Math.max(64, bits);
+            this.periodMillis = periodMillis;
+            this.current = new AtomicLongArray((this.bits + 63) / 64);
+            this.previous = new AtomicLongArray((this.bits + 63) / 64);
+            this.periodEnd = System.currentTimeMillis() + periodMillis;
+        }
+
+        private void add(byte[] signature) {
+            rotateIfDue();
+            AtomicLongArray words = current;
+            long h1 = hash(signature, 0);
+            long h2 = hash(signature, 8) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                words.getAndAccumulate(bit >>> 6, 1L << bit, (word, mask) -> word | mask);
+            }
+        }
+
+        private boolean mightContain(byte[] signature) {
+            rotateIfDue();
+            long h1 = hash(signature, 0);
+            long h2 = hash(signature, 8) | 1;
+            return contains(current, h1, h2) || contains(previous, h1, h2);
+        }
+
+        private boolean contains(AtomicLongArray words, long h1, long h2) {
+            for (int i = 0; i < HASHES; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) bits);
+                if ((words.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rotateIfDue() {
+            if (System.currentTimeMillis() < periodEnd) {
+                return;
+            }
+            synchronized (this) {
+                if (System.currentTimeMillis() >= periodEnd) {
+                    previous = current;
+                    current = new AtomicLongArray(previous.length());
+                    periodEnd = System.currentTimeMillis() + periodMillis;
+                }
+            }
+        }
+
+        // The signature is already uniformly random, so its bytes serve as the hash
+        private static long hash(byte[] signature, int offset) {
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (signature[offset + i] & 0xff);
+            }
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.example.demo.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Published after a signed token has been revoked on this node, so that the other nodes can reject it too.
+ * The token is identified by its signature, which is all the revocation filter keeps.
+ */
+@Data
+@AllArgsConstructor
+public class TokenRevokedEvent {
+    private byte[] signature;
+}
@@ -0,0 +1,86 @@
+package com.example.demo.websocket;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Connects the nodes of a cluster for notification fan-out.
+ * Each node announces which users have sessions on it, and a node that has a notification for a user
+ * connected elsewhere forwards the encoded frame to the node that owns the user's sessions.
+ * Nodes also broadcast events to each other by topic, such as changes that make their caches stale.
+ * LocalClusterBus is used for a single node; UdpClusterBus connects nodes with UDP datagrams.
+ */
+public interface ClusterBus {
+    /**
+     * Returns the ID of this node.
+     *
+     * @return The node ID.
+     */
+    String getNodeId();
+
+    /**
+     * Announces that this node gained its first session of a user, or lost its last one.
+     *
+     * @param userId The ID of the user.
+     * @param online true if the user now has a session on this node, false if they have none left.
+     */
+    void announce(String userId, boolean online);
+
+    /**
+     * Returns the other nodes that currently have sessions of a user.
+     *
+     * @param userId The ID of the user.
+     * @return The IDs of the nodes, empty if the user has no session on another node.
+     */
+    Set<String> getRemoteNodes(String userId);
+
+    /**
+     * Sends an encoded frame to users whose sessions are on another node.
+     *
+     * @param nodeId      The ID of the node.
+     * @param userIds     The IDs of the recipients on that node.
+     * @param destination The user destination to deliver the frame to, such as /user/queue/notifications.
+     * @param payload     The encoded JSON payload.
+     */
+    void forward(String nodeId, Collection<String> userIds, String destination, byte[] payload);
+
+    /**
+     * Sets the handler for frames forwarded to this node by other nodes.
+     *
+     * @param handler The handler.
+     */
+    void setForwardHandler(ForwardHandler handler);
+
+    /**
+     * Sends an event to every other node. Delivery is best effort.
+     *
+     * @param topic   The topic, which selects the handler on the receiving nodes.
+     * @param payload The encoded event.
+     */
+    void broadcast(String topic, byte[] payload);
+
+    /**
+     * Sets the handler for events of a topic broadcast by other nodes.
+     *
+     * @param topic   The topic.
+     * @param handler The handler.
+     */
+    void subscribe(String topic, EventHandler handler);
+
+    /**
+     * Receives frames forwarded by other nodes.
+     */
+    @FunctionalInterface
+    interface ForwardHandler {
+        void onForward(List<String> userIds, String destination, byte[] payload);
+    }
+
+    /**
+     * Receives events broadcast by other nodes.
+     */
+    @FunctionalInterface
+    interface EventHandler {
+        void onEvent(byte[] payload);
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.Message;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.service.FriendGraph;
+import com.example.demo.service.FriendshipChangedEvent;
+import com.example.demo.service.MessagesPersistedEvent;
+import com.example.demo.service.SignedTokenService;
+import com.example.demo.service.TokenRevokedEvent;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the node-local caches of the other nodes in the cluster up to date over the ClusterBus.
+ * When messages are persisted here, their IDs are broadcast, and every other node reads them back from the database
+ * and publishes them as a remote MessagesPersistedEvent, which RecentMessageCache and MessageSearchIndex apply.
+ * When a user's friends change here, the other nodes drop that user's friends from their FriendGraph.
+ * Both are broadcast after the change has been committed. When a signed token is revoked here, the other nodes
+ * add it to the revocation filter of their SignedTokenService. Broadcasts are best effort: a lost one leaves a cache
+ * stale until it expires, or, for the search index, until the next rebuild, and a lost revocation leaves the token
+ * valid on that node until it expires.
+ */
+@Slf4j
+@Component
+public class ClusterCacheSync {
+    static final String MESSAGES_TOPIC = "messages-persisted";
+    static final String FRIENDSHIP_TOPIC = "friendship-changed";
+    static final String TOKEN_TOPIC = "token-revoked";
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    private ClusterBus clusterBus;
+
+    @Autowired
+    private MessageRepository messageRepo;
+
+    @Autowired
+    private FriendGraph friendGraph;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Autowired(required = false)
+    private SignedTokenService signedTokenService; // Only present when chat.token.mode is signed
+
+    private ExecutorService loader; // Reads announced messages off the bus receiver thread
+
+    /**
+     * Subscribes to the cache events of the other nodes.
+     */
+    @PostConstruct
+    public void start() {
+        loader = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-cache-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clusterBus.subscribe(MESSAGES_TOPIC, payload -> loader.execute(() -> onMessagesAnnounced(payload)));
+        clusterBus.subscribe(FRIENDSHIP_TOPIC, payload -> friendGraph.invalidate(new String(payload, StandardCharsets.UTF_8)));
+        if (signedTokenService != null) {
+            clusterBus.subscribe(TOKEN_TOPIC, this::onTokenRevokedElsewhere);
+        }
+    }
+
+    /**
+     * Stops reading announced messages.
+     */
+    @PreDestroy
+    public void stop() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * Announces messages persisted on this node to the other nodes, in batches of BATCH_SIZE IDs.
+     *
+     * @param event The persisted messages.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onMessagesPersisted(MessagesPersistedEvent event) {
+        if (event.isRemote()) {
+            return;
+        }
+        List<Long> ids = new ArrayList<>(event.getMessages().size());
+        for (Message message : event.getMessages()) {
+            if (message.getId() != null) {
+                ids.add(message.getId());
+            }
+        }
+        for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+            clusterBus.broadcast(MESSAGES_TOPIC, encode(ids.subList(from, Math.min(ids.size(), from + BATCH_SIZE))));
+        }
+    }
+
+    /**
+     * Announces to the other nodes that a user's friends changed.
+     *
+     * @param event The change.
+     */
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onFriendshipChanged(FriendshipChangedEvent event) {
+        clusterBus.broadcast(FRIENDSHIP_TOPIC, event.getUserId().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Announces to the other nodes that a signed token was revoked here.
+     *
+     * @param event The revocation.
+     */
+    @EventListener
+    public void onTokenRevoked(TokenRevokedEvent event) {
+        clusterBus.broadcast(TOKEN_TOPIC, event.getSignature());
+    }
+
+    private void onTokenRevokedElsewhere(byte[] payload) {
+        try {
+            signedTokenService.revokeSignature(payload);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring a malformed token revocation from another node");
+        }
+    }
+
+    private void onMessagesAnnounced(byte[] payload) {
+        try {
+            List<Message> messages = new ArrayList<>(messageRepo.findAllByIdIn(decode(payload)));
+            messages.sort(Comparator.comparing(Message::getId));
+            if (!messages.isEmpty()) {
+                eventPublisher.publishEvent(new MessagesPersistedEvent(messages, false, true));
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to apply messages persisted on another node", e);
+        }
+    }
+
+    private static byte[] encode(List<Long> ids) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(ids.size());
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Long> decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int count = in.readInt();
+        List<Long> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(in.readLong());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.demo.websocket;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Chooses the ClusterBus from chat.cluster.mode: local (the default) for a single node, or udp for several.
+ * To run several nodes on localhost, give each one its own server.port, chat.cluster.node-id and chat.cluster.bind port,
+ * and list the others in chat.cluster.peers. Nodes on other hosts must bind an address their peers can reach,
+ * and list each other by the address they bind.
+ * All nodes must share one database and one chat.cluster.secret.
+ */
+@Configuration
+public class ClusterConfiguration {
+    /**
+     * The cluster bus of a single node.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "chat.cluster.mode", havingValue = "local", matchIfMissing = true)
+    public ClusterBus localClusterBus() {
+        return new LocalClusterBus();
+    }
+
+    /**
+     * The UDP cluster bus. It binds chat.cluster.bind (host:port, loopback only by default), talks to chat.cluster.peers
+     * (comma-separated host:port) and signs its datagrams with chat.cluster.secret, which is required.
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "chat.cluster.mode", havingValue = "udp")
+    public ClusterBus udpClusterBus(@Value("${chat.cluster.node-id:}") String nodeId,
+                                    @Value("${chat.cluster.bind:127.0.0.1:7400}") String bind,
+                                    @Value("${chat.cluster.peers:}") String peers,
+                                    @Value("${chat.cluster.sync-interval-ms:30000}") long syncIntervalMs,
+                                    @Value("${chat.cluster.secret:}") String secret) throws SocketException {
+        if (secret.isBlank()) {
+            throw new IllegalStateException("chat.cluster.secret must be set when chat.cluster.mode is udp");
+        }
+        List<InetSocketAddress> peerAddresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            if (!peer.isBlank()) {
+                peerAddresses.add(parseAddress(peer.trim()));
+            }
+        }
+        return new UdpClusterBus(nodeId.isBlank() ? UUID.randomUUID().toString() : nodeId,
+                parseAddress(bind), peerAddresses, syncIntervalMs, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + address);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
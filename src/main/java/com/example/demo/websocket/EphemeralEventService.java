@@ -0,0 +1,246 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.UserDTO;
+import com.example.demo.service.RoomMembershipCache;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends typing indicators and presence changes to online users on /user/queue/events.
+ * These events are never stored. A user's typing in a group room is passed on at most once per window-ms;
+ * keystrokes in between are dropped. Events are buffered per recipient and sent every flush-interval-ms,
+ * so a recipient gets one frame, a JSON array of events, however many rooms they came from.
+ * <p>
+ * Presence is announced to the online members of the user's group rooms. Going offline is debounced by debounce-ms:
+ * a user who reconnects within that time is never reported offline, and not reported online again.
+ * Recipients come from RoomMembershipCache: the group rooms of a user and the members of those rooms are cached
+ * when the user connects, so presence changes and typing are normally passed on without a query.
+ * Anything missing from the cache is loaded on the presence thread, never on the caller's or the flush thread;
+ * typing in a room whose members are not cached yet is dropped while they load.
+ * Only sessions authenticated on CONNECT can subscribe to /user/queue/events.
+ */
+@Slf4j
+@Component
+public class EphemeralEventService {
+    public static final String USER_EVENT_DESTINATION = "/user/queue/events";
+
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private RoomMembershipCache membershipCache;
+
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
+    @Value("${chat.ephemeral.window-ms:1000}")
+    private long windowMs;
+
+    @Value("${chat.ephemeral.flush-interval-ms:200}")
+    private long flushIntervalMs;
+
+    @Value("${chat.ephemeral.max-pending-per-user:100}")
+    private int maxPendingPerUser;
+
+    @Value("${chat.presence.debounce-ms:5000}")
+    private long debounceMs;
+
+    private final Map<String, Long> lastTyping = new ConcurrentHashMap<>(); // Map of user and room to when typing was last passed on
+    private final Map<String, List<EphemeralEvent>> pending = new ConcurrentHashMap<>(); // Map of recipient ID to its buffered events
+    private final Map<String, Boolean> announcedOnline = new ConcurrentHashMap<>(); // Users announced online
+    private final Map<String, ScheduledFuture<?>> pendingOffline = new ConcurrentHashMap<>(); // Map of user ID to its debounced offline check
+
+    private ScheduledExecutorService scheduler; // Flushes buffered events
+    private ScheduledExecutorService presenceScheduler; // Looks up who to announce presence changes to
+
+    /**
+     * Starts the periodic flush of buffered events.
+     */
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ephemeral-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        presenceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "presence-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sending events.
+     */
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        presenceScheduler.shutdownNow();
+    }
+
+    /**
+     * Passes on that a user is typing in a group room, unless they already did within the window.
+     * Users who are not members of the room are ignored.
+     * If the members of the room are not cached, they are loaded in the background and the event is dropped.
+     *
+     * @param user   The user who is typing.
+     * @param roomId The ID of the group room.
+     * @return true if the event was passed on, false if it was coalesced or ignored.
+     */
+    public boolean typing(UserDTO user, Long roomId) {
+        long now = System.currentTimeMillis();
+        boolean[] accepted = new boolean[1];
+        lastTyping.compute(user.getId() + '\n' + roomId, (key, last) -> {
+            accepted[0] = last == null || now - last >= windowMs;
+            return accepted[0] ? now : last;
+        });
+        if (!accepted[0]) {
+            return false;
+        }
+        RoomMembershipCache.RoomMembers members = membershipCache.getIfPresent(roomId);
+        if (members == null) {
+            presenceScheduler.execute(() -> loadMembers(roomId));
+            return false;
+        }
+        if (!members.contains(user.getId())) {
+            return false;
+        }
+        EphemeralEvent event = new EphemeralEvent("typing", roomId, user.getId(), user.getName(), null);
+        for (UserDTO member : members.getMembers()) {
+            if (!member.getId().equals(user.getId()) && websocketSessionManager.sessionExistsByUserId(member.getId())) {
+                enqueue(member.getId(), event);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that a user has a session. Announces them online unless they already are.
+     *
+     * @param userId The ID of the user.
+     */
+    public void connected(String userId) {
+        ScheduledFuture<?> offlineCheck = pendingOffline.remove(userId);
+        if (offlineCheck != null) {
+            offlineCheck.cancel(false);
+        }
+        if (announcedOnline.putIfAbsent(userId, Boolean.TRUE) == null) {
+            presenceScheduler.execute(() -> announce(userId, true));
+        }
+    }
+
+    /**
+     * Records that a user's last session closed. They are announced offline after the debounce time,
+     * if they have not reconnected by then.
+     *
+     * @param userId The ID of the user.
+     */
+    public void disconnected(String userId) {
+        ScheduledFuture<?> offlineCheck = presenceScheduler.schedule(() -> {
+            pendingOffline.remove(userId);
+            if (!websocketSessionManager.sessionExistsByUserId(userId) && announcedOnline.remove(userId) != null) {
+                announce(userId, false);
+            }
+        }, debounceMs, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = pendingOffline.put(userId, offlineCheck);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Sends every recipient their buffered events in one frame.
+     */
+    public void flush() {
+        for (String recipient : new ArrayList<>(pending.keySet())) {
+            List<EphemeralEvent> events = pending.remove(recipient);
+            if (events != null && !events.isEmpty()) {
+                notificationDispatcher.deliverToUser(recipient, USER_EVENT_DESTINATION, notificationDispatcher.encode(events));
+            }
+        }
+        // Forget typing timestamps that can no longer suppress anything
+        long expired = System.currentTimeMillis() - windowMs;
+        lastTyping.values().removeIf(last -> last < expired);
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.error("Failed to send ephemeral events", e);
+        }
+    }
+
+    private void announce(String userId, boolean online) {
+        try {
+            EphemeralEvent event = new EphemeralEvent("presence", null, userId, null, online);
+            Set<String> recipients = new HashSet<>();
+            for (RoomMembershipCache.RoomMembers members : membershipCache.getAll(membershipCache.getRoomIds(userId)).values()) {
+                for (UserDTO member : members.getMembers()) {
+                    if (!member.getId().equals(userId) && recipients.add(member.getId())
+                            && websocketSessionManager.sessionExistsByUserId(member.getId())) {
+                        enqueue(member.getId(), event);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to announce presence of {}", userId, e);
+        }
+    }
+
+    private void loadMembers(Long roomId) {
+        try {
+            membershipCache.get(roomId);
+        } catch (RuntimeException e) {
+            log.error("Failed to load the members of room {}", roomId, e);
+        }
+    }
+
+    private void enqueue(String recipient, EphemeralEvent event) {
+        pending.compute(recipient, (key, events) -> {
+            if (events == null) {
+                events = new ArrayList<>();
+            }
+            // A slow reader does not make the buffer grow: events beyond the limit are dropped
+            if (events.size() < maxPendingPerUser) {
+                events.add(event);
+            }
+            return events;
+        });
+    }
+
+    /**
+     * Data class representing a typing or presence event.
+     * Typing events carry the room and the user's name; presence events carry whether the user is online.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class EphemeralEvent {
+        private String type;
+        private Long roomId;
+        private String userId;
+        private String userName;
+        private Boolean online;
+    }
+}
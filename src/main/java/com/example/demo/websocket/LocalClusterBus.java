@@ -0,0 +1,39 @@
+package com.example.demo.websocket;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * The cluster bus of a single node: no other node owns any session, so nothing is ever forwarded or broadcast.
+ */
+public class LocalClusterBus implements ClusterBus {
+    @Override
+    public String getNodeId() {
+        return "local";
+    }
+
+    @Override
+    public void announce(String userId, boolean online) {
+    }
+
+    @Override
+    public Set<String> getRemoteNodes(String userId) {
+        return Set.of();
+    }
+
+    @Override
+    public void forward(String nodeId, Collection<String> userIds, String destination, byte[] payload) {
+    }
+
+    @Override
+    public void setForwardHandler(ForwardHandler handler) {
+    }
+
+    @Override
+    public void broadcast(String topic, byte[] payload) {
+    }
+
+    @Override
+    public void subscribe(String topic, EventHandler handler) {
+    }
+}
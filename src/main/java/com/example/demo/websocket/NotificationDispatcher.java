@@ -0,0 +1,541 @@
+package com.example.demo.websocket;
+
+import com.example.demo.controller.ChatController.Notification;
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.User;
+import com.example.demo.model.UserDTO;
+import com.example.demo.service.AccountService;
+import com.example.demo.service.ChatService;
+import com.example.demo.service.MessageWriteBehindQueue;
+import com.example.demo.service.MessagesPersistedEvent;
+import com.example.demo.service.RoomCursorBuffer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpSession;
+import org.springframework.messaging.simp.user.SimpSubscription;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes room message notifications to online participants off the request thread.
+ * Each room is always handled by the same single-threaded stripe, so notifications of one room keep their order.
+ * Stripe queues are bounded; when a stripe is full the publishing thread waits for space.
+ * A notification is converted to JSON once and the same encoded frame is sent to every recipient.
+ * Users whose session was authenticated on CONNECT receive it on /user/queue/notifications:
+ * their subscriptions are looked up in the user registry and the frame is sent straight to those sessions,
+ * so the cost does not depend on how many subscriptions the broker holds.
+ * Everyone else receives it on their legacy token topic through the broker.
+ * The last message delivered to each recipient is recorded in their room cursor, and so is the first message
+ * an offline participant missed, so that OfflineReplayService can replay what they missed when they come back.
+ * A batch of messages is fanned out per stripe: a recipient of several of its messages in rooms of the same stripe
+ * gets them in one frame, as a JSON array of notifications.
+ * Recipients with sessions on other nodes of the cluster, whether or not they also have one here, get the encoded
+ * frame forwarded over the ClusterBus, in one forward per node, and each receiving node delivers it to its local sessions.
+ * Room cursors are only recorded by the node that delivers: the forwarding node records what it delivered itself,
+ * and the receiving node records the forwarded messages as delivered, or as missed if the user has no session left.
+ * With write-behind enabled a sent message has no ID until it has been written, so it is not published when it is sent
+ * but once the write-behind queue has written it, from the queued MessagesPersistedEvent.
+ * Each fan-out is recorded in the chat.fanout.duration and chat.fanout.recipients histograms.
+ */
+@Slf4j
+@Component
+public class NotificationDispatcher {
+    public static final String USER_NOTIFICATION_DESTINATION = "/user/queue/notifications";
+    private static final ObjectMapper FORWARD_MAPPER = new ObjectMapper();
+
+    @Autowired
+    private AccountService accountService;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private RoomCursorBuffer roomCursorBuffer;
+
+    @Autowired
+    private MessageWriteBehindQueue writeBehindQueue;
+
+    @Autowired
+    private ClusterBus clusterBus;
+
+    @Autowired
+    private SimpMessagingTemplate messagingTemplate;
+
+    @Autowired
+    private SimpUserRegistry simpUserRegistry;
+
+    @Autowired
+    @Qualifier("clientOutboundChannel")
+    private MessageChannel clientOutboundChannel;
+
+    @Autowired(required = false)
+    private MeterRegistry meterRegistry;
+
+    @Value("${chat.fanout.stripes:4}")
+    private int stripeCount;
+
+    @Value("${chat.fanout.queue-capacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor[] stripes;
+
+    private final LongAdder fanOutCount = new LongAdder();
+    private final LongAdder fanOutNanos = new LongAdder();
+    private final AtomicLong maxFanOutNanos = new AtomicLong();
+    private Timer fanOutTimer;
+    private DistributionSummary fanOutRecipients;
+
+    /**
+     * Creates one single-threaded executor per stripe and starts accepting frames forwarded by other nodes.
+     */
+    @PostConstruct
+    public void start() {
+        stripes = new ThreadPoolExecutor[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            String name = "notification-fanout-" + i;
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (runnable, executor) -> {
+                        // Wait for space instead of running on the caller, which would break per-room ordering
+                        if (executor.isShutdown()) {
+                            throw new RejectedExecutionException("Notification dispatcher is shut down");
+                        }
+                        try {
+                            executor.getQueue().put(runnable);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    });
+        }
+        clusterBus.setForwardHandler(this::onForward);
+        if (meterRegistry != null) {
+            fanOutTimer = Timer.builder("chat.fanout.duration")
+                    .description("Time from publish to the last recipient being notified")
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            fanOutRecipients = DistributionSummary.builder("chat.fanout.recipients")
+                    .description("Online recipients notified per fan-out")
+                    .serviceLevelObjectives(1, 2, 5, 10, 20, 50, 100, 200, 500, 1000)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Lets queued notifications finish before the messaging infrastructure goes away.
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Queues a notification of a new message for every online participant of the room except the sender.
+     * With write-behind enabled nothing is queued here: the message is published once it has been written.
+     *
+     * @param room    The chatroom the message was sent to.
+     * @param sender  The user who sent the message.
+     * @param message The sent message.
+     */
+    public void publish(Chatroom room, User sender, Message message) {
+        if (writeBehindQueue.isEnabled()) {
+            return;
+        }
+        queueFanOut(room, sender, message);
+    }
+
+    /**
+     * Publishes the messages written by the write-behind queue, which have their IDs now.
+     * Messages saved directly or in a batch send were already published by their senders.
+     *
+     * @param event The written messages.
+     */
+    @EventListener
+    public void onMessagesPersisted(MessagesPersistedEvent event) {
+        if (!event.isQueued()) {
+            return;
+        }
+        for (Message message : event.getMessages()) {
+            queueFanOut(message.getRoom(), toUser(message.getSender()), message);
+        }
+    }
+
+    /**
+     * Queues notifications of a batch of messages from one sender.
+     * The batch is split by stripe, and each part is queued on the stripe of its rooms,
+     * so its messages stay in order with the other notifications of their rooms.
+     * Each online recipient receives a single frame per part: a notification if only one of its messages
+     * concerns them, or an array of notifications otherwise.
+     *
+     * @param sender   The user who sent the messages.
+     * @param messages The sent messages, each with its chatroom.
+     */
+    public void publishAll(User sender, List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+        long queuedAt = System.nanoTime();
+        Map<ThreadPoolExecutor, List<Message>> messagesByStripe = new LinkedHashMap<>();
+        for (Message message : messages) {
+            messagesByStripe.computeIfAbsent(stripeFor(message.getRoom().getId()), stripe -> new ArrayList<>()).add(message);
+        }
+        messagesByStripe.forEach((stripe, part) -> stripe.execute(() -> fanOutAll(sender, part, queuedAt)));
+    }
+
+    /**
+     * Returns the number of fan-outs waiting across all stripes.
+     *
+     * @return The total queue depth.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor stripe : stripes) {
+            depth += stripe.getQueue().size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the number of completed fan-outs.
+     *
+     * @return The fan-out count.
+     */
+    public long getFanOutCount() {
+        return fanOutCount.sum();
+    }
+
+    /**
+     * Returns the mean time from publish to the last recipient being notified.
+     *
+     * @return The mean fan-out latency in milliseconds.
+     */
+    public double getMeanFanOutMillis() {
+        long count = fanOutCount.sum();
+        return count == 0 ? 0 : fanOutNanos.sum() / (double) count / 1_000_000;
+    }
+
+    /**
+     * Returns the slowest fan-out seen so far.
+     *
+     * @return The maximum fan-out latency in milliseconds.
+     */
+    public double getMaxFanOutMillis() {
+        return maxFanOutNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * Converts a payload with the messaging template's converter, exactly as convertAndSend would,
+     * so that the encoded frame can be sent to many destinations.
+     *
+     * @param payload The payload to encode.
+     * @return The encoded message, without a destination.
+     */
+    public org.springframework.messaging.Message<?> encode(Object payload) {
+        org.springframework.messaging.Message<?> frame = messagingTemplate.getMessageConverter().toMessage(payload, null);
+        if (frame == null) {
+            throw new IllegalStateException("No converter for payload type " + payload.getClass().getName());
+        }
+        return frame;
+    }
+
+    /**
+     * Sends an encoded frame to one user's notification channel.
+     *
+     * @param userId The ID of the recipient.
+     * @param frame  The encoded frame, as returned by encode.
+     * @return true if the frame was sent to a subscription or token topic of the user, false otherwise.
+     */
+    public boolean deliver(String userId, org.springframework.messaging.Message<?> frame) {
+        if (simpUserRegistry.getUser(userId) != null) {
+            return deliverToUser(userId, USER_NOTIFICATION_DESTINATION, frame);
+        }
+        String destination = accountService.getNotificationTopic(userId);
+        if (destination == null) {
+            return false;
+        }
+        // The template copies the headers per destination but shares the encoded payload
+        messagingTemplate.send(destination, frame);
+        return true;
+    }
+
+    /**
+     * Sends an encoded frame to every subscription of a user to a user destination, such as /user/queue/events.
+     * Only sessions authenticated on CONNECT have user destinations; there is no token topic fallback.
+     *
+     * @param userId      The ID of the recipient.
+     * @param destination The user destination the recipient subscribed to.
+     * @param frame       The encoded frame, as returned by encode.
+     * @return true if the frame was sent to at least one subscription, false otherwise.
+     */
+    public boolean deliverToUser(String userId, String destination, org.springframework.messaging.Message<?> frame) {
+        SimpUser user = simpUserRegistry.getUser(userId);
+        if (user == null) {
+            return false;
+        }
+        boolean sent = false;
+        for (SimpSession session : user.getSessions()) {
+            for (SimpSubscription subscription : session.getSubscriptions()) {
+                if (destination.equals(subscription.getDestination())) {
+                    sendToSubscription(session.getId(), subscription.getId(), destination, frame);
+                    sent = true;
+                }
+            }
+        }
+        return sent;
+    }
+
+    private void onForward(List<String> userIds, String destination, byte[] payload) {
+        org.springframework.messaging.Message<?> frame = MessageBuilder.withPayload(payload)
+                .setHeader(MessageHeaders.CONTENT_TYPE, MimeTypeUtils.APPLICATION_JSON)
+                .build();
+        if (!USER_NOTIFICATION_DESTINATION.equals(destination)) {
+            for (String userId : userIds) {
+                deliverToUser(userId, destination, frame);
+            }
+            return;
+        }
+        // The forwarding node left the room cursors of these recipients to this node, which delivers to them
+        List<Message> messages = forwardedMessages(payload);
+        for (String userId : userIds) {
+            boolean delivered = websocketSessionManager.sessionExistsByUserId(userId) && deliver(userId, frame);
+            for (Message message : messages) {
+                if (delivered) {
+                    roomCursorBuffer.delivered(userId, message.getRoom().getId(), message.getId());
+                } else if (clusterBus.getRemoteNodes(userId).isEmpty()) {
+                    roomCursorBuffer.missed(userId, message);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the room and message IDs of the notifications in a forwarded frame.
+     */
+    private static List<Message> forwardedMessages(byte[] payload) {
+        List<Message> messages = new ArrayList<>();
+        try {
+            JsonNode root = FORWARD_MAPPER.readTree(payload);
+            for (JsonNode notification : root.isArray() ? root : List.of(root)) {
+                if (notification.hasNonNull("roomId") && notification.hasNonNull("messageId")) {
+                    Chatroom room = new Chatroom();
+                    room.setId(notification.get("roomId").asLong());
+                    Message message = new Message();
+                    message.setId(notification.get("messageId").asLong());
+                    message.setRoom(room);
+                    messages.add(message);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Cannot read the notifications of a forwarded frame", e);
+        }
+        return messages;
+    }
+
+    /**
+     * Forwards an encoded frame to the nodes that own the given recipients' sessions.
+     *
+     * @param remoteRecipients Map of node ID to the IDs of its recipients.
+     */
+    private void forward(Map<String, List<String>> remoteRecipients, org.springframework.messaging.Message<?> frame) {
+        if (!(frame.getPayload() instanceof byte[] payload)) {
+            log.warn("Cannot forward a {} payload to other nodes", frame.getPayload().getClass().getName());
+            return;
+        }
+        remoteRecipients.forEach((nodeId, userIds) -> clusterBus.forward(nodeId, userIds, USER_NOTIFICATION_DESTINATION, payload));
+    }
+
+    /**
+     * Adds a recipient to the recipients of every other node that owns one of their sessions.
+     *
+     * @return true if another node owns a session of the user, false otherwise.
+     */
+    private boolean addRemoteRecipient(Map<String, List<String>> remoteRecipients, String userId) {
+        Set<String> nodes = clusterBus.getRemoteNodes(userId);
+        if (nodes.isEmpty()) {
+            return false;
+        }
+        // Each owning node delivers to the sessions of the user it holds
+        for (String nodeId : nodes) {
+            remoteRecipients.computeIfAbsent(nodeId, key -> new ArrayList<>()).add(userId);
+        }
+        return true;
+    }
+
+    private void sendToSubscription(String sessionId, String subscriptionId, String destination, org.springframework.messaging.Message<?> frame) {
+        // The same headers the simple broker puts on a message for one of its subscribers
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setSessionId(sessionId);
+        accessor.setSubscriptionId(subscriptionId);
+        accessor.setDestination(destination);
+        accessor.copyHeadersIfAbsent(frame.getHeaders());
+        accessor.setLeaveMutable(true);
+        clientOutboundChannel.send(MessageBuilder.createMessage(frame.getPayload(), accessor.getMessageHeaders()));
+    }
+
+    private void queueFanOut(Chatroom room, User sender, Message message) {
+        long queuedAt = System.nanoTime();
+        stripeFor(room.getId()).execute(() -> fanOut(room, sender, message, queuedAt));
+    }
+
+    private ThreadPoolExecutor stripeFor(Long roomId) {
+        return stripes[Math.floorMod(roomId.hashCode(), stripes.length)];
+    }
+
+    private void fanOut(Chatroom room, User sender, Message message, long queuedAt) {
+        int recipients = 0;
+        try {
+            org.springframework.messaging.Message<?> frame = null;
+            Map<String, List<String>> remoteRecipients = new HashMap<>();
+            for (UserDTO recipient : chatService.getAllParticipantExceptSender(room, sender)) {
+                boolean delivered = false;
+                if (websocketSessionManager.sessionExistsByUserId(recipient.getId())) {
+                    if (frame == null) {
+                        frame = encode(toNotification(sender, message));
+                    }
+                    delivered = deliver(recipient.getId(), frame);
+                }
+                // Sessions of the same user on other nodes get it as well, and those nodes record their delivery
+                boolean forwarded = addRemoteRecipient(remoteRecipients, recipient.getId());
+                if (delivered || forwarded) {
+                    recipients++;
+                }
+                if (delivered) {
+                    roomCursorBuffer.delivered(recipient.getId(), room.getId(), message.getId());
+                } else if (!forwarded) {
+                    roomCursorBuffer.missed(recipient.getId(), message);
+                }
+            }
+            if (!remoteRecipients.isEmpty()) {
+                forward(remoteRecipients, frame != null ? frame : encode(toNotification(sender, message)));
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to push notifications for room {}", room.getId(), e);
+        }
+        recordFanOut(queuedAt, recipients);
+    }
+
+    private void fanOutAll(User sender, List<Message> messages, long queuedAt) {
+        int notified = 0;
+        try {
+            Map<Long, List<UserDTO>> recipientsByRoom = new HashMap<>();
+            Map<String, List<Integer>> messagesByRecipient = new LinkedHashMap<>(); // Map of user ID to indexes into messages
+            for (int i = 0; i < messages.size(); i++) {
+                Chatroom room = messages.get(i).getRoom();
+                List<UserDTO> recipients = recipientsByRoom.computeIfAbsent(room.getId(),
+                        roomId -> chatService.getAllParticipantExceptSender(room, sender));
+                for (UserDTO recipient : recipients) {
+                    if (websocketSessionManager.sessionExistsByUserId(recipient.getId())
+                            || !clusterBus.getRemoteNodes(recipient.getId()).isEmpty()) {
+                        messagesByRecipient.computeIfAbsent(recipient.getId(), userId -> new ArrayList<>()).add(i);
+                    } else {
+                        roomCursorBuffer.missed(recipient.getId(), messages.get(i));
+                    }
+                }
+            }
+            // Recipients of the same set of messages share one encoded frame
+            Map<List<Integer>, org.springframework.messaging.Message<?>> frames = new HashMap<>();
+            Map<List<Integer>, Map<String, List<String>>> remoteRecipientsByFrame = new HashMap<>();
+            for (Map.Entry<String, List<Integer>> entry : messagesByRecipient.entrySet()) {
+                org.springframework.messaging.Message<?> frame = frames.computeIfAbsent(entry.getValue(),
+                        indexes -> encode(toPayload(sender, messages, indexes)));
+                boolean delivered = websocketSessionManager.sessionExistsByUserId(entry.getKey()) && deliver(entry.getKey(), frame);
+                // Sessions of the same user on other nodes get it as well, and those nodes record their delivery
+                boolean forwarded = addRemoteRecipient(remoteRecipientsByFrame.computeIfAbsent(entry.getValue(), indexes -> new HashMap<>()), entry.getKey());
+                if (delivered || forwarded) {
+                    notified++;
+                }
+                for (int index : entry.getValue()) {
+                    Message message = messages.get(index);
+                    if (delivered) {
+                        roomCursorBuffer.delivered(entry.getKey(), message.getRoom().getId(), message.getId());
+                    } else if (!forwarded) {
+                        roomCursorBuffer.missed(entry.getKey(), message);
+                    }
+                }
+            }
+            remoteRecipientsByFrame.forEach((indexes, remoteRecipients) -> forward(remoteRecipients, frames.get(indexes)));
+        } catch (RuntimeException e) {
+            log.error("Failed to push notifications for a batch of {} messages", messages.size(), e);
+        }
+        recordFanOut(queuedAt, notified);
+    }
+
+    private static Object toPayload(User sender, List<Message> messages, List<Integer> indexes) {
+        if (indexes.size() == 1) {
+            return toNotification(sender, messages.get(indexes.get(0)));
+        }
+        List<Notification> notifications = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            notifications.add(toNotification(sender, messages.get(index)));
+        }
+        return notifications;
+    }
+
+    private static User toUser(UserDTO sender) {
+        User user = new User();
+        user.setId(sender.getId());
+        user.setName(sender.getName());
+        return user;
+    }
+
+    private static Notification toNotification(User sender, Message message) {
+        return new Notification(message.getRoom().getId(), sender.getName(), message.getContent(), message.getId());
+    }
+
+    private void recordFanOut(long queuedAt, int recipients) {
+        long elapsed = System.nanoTime() - queuedAt;
+        fanOutCount.increment();
+        fanOutNanos.add(elapsed);
+        maxFanOutNanos.accumulateAndGet(elapsed, Math::max);
+        if (fanOutTimer != null) {
+            fanOutTimer.record(elapsed, TimeUnit.NANOSECONDS);
+            fanOutRecipients.record(recipients);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.demo.websocket;
+
+import com.example.demo.controller.ChatController.Notification;
+import com.example.demo.model.MessageView;
+import com.example.demo.model.RoomCursor;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.repository.RoomCursorRepository;
+import com.example.demo.service.RoomCursorBuffer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays the notifications a user missed while offline when they log in again.
+ * Missed messages are found from the missed position in each room cursor, which live deliveries do not move,
+ * so a message delivered after the user reconnects cannot hide older ones. Only the delta is read, with keyset
+ * pages of batch-size messages, and sent in frames of up to batch-size notifications (a JSON array).
+ * At most max-messages-per-room are replayed per room; clients page through the history for anything older.
+ * Messages delivered live between the login and the replay may be sent again; notifications carry their message ID.
+ * Replays run on a small pool with a bounded queue; a replay that does not fit is dropped and picked up
+ * again at the user's next login, so reconnect storms cannot pile up work.
+ */
+@Slf4j
+@Component
+public class OfflineReplayService {
+    @Autowired
+    private RoomCursorBuffer roomCursorBuffer;
+
+    @Autowired
+    private RoomCursorRepository roomCursorRepo;
+
+    @Autowired
+    private MessageRepository messageRepo;
+
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
+    @Value("${chat.replay.threads:2}")
+    private int threads;
+
+    @Value("${chat.replay.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${chat.replay.batch-size:100}")
+    private int batchSize;
+
+    @Value("${chat.replay.max-messages-per-room:500}")
+    private int maxMessagesPerRoom;
+
+    private ThreadPoolExecutor executor;
+
+    /**
+     * Creates the replay pool.
+     */
+    @PostConstruct
+    public void start() {
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "offline-replay-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (runnable, pool) -> log.warn("Replay queue is full, dropping a replay"));
+    }
+
+    /**
+     * Stops the replay pool without waiting for queued replays.
+     */
+    @PreDestroy
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Queues a replay of the messages a user missed.
+     *
+     * @param userId The ID of the user who came online.
+     */
+    public void replay(String userId) {
+        executor.execute(() -> {
+            try {
+                replayNow(userId);
+            } catch (RuntimeException e) {
+                log.error("Failed to replay missed messages to {}", userId, e);
+            }
+        });
+    }
+
+    /**
+     * Sends a user the messages they missed, in order per room, and advances their missed positions.
+     *
+     * @param userId The ID of the user.
+     * @return The number of messages sent to the user.
+     */
+    public int replayNow(String userId) {
+        // Positions recorded since the last flush decide where the replay starts
+        roomCursorBuffer.flushUser(userId);
+        List<Notification> frame = new ArrayList<>(batchSize);
+        List<RoomCursor> framedCursors = new ArrayList<>(); // Positions to record once the frame is sent
+        int replayed = 0;
+        for (RoomCursor cursor : roomCursorRepo.findMissed(userId)) {
+            Long after = cursor.getMissedFromMessageId();
+            int replayedInRoom = 0;
+            boolean complete = false;
+            while (replayedInRoom < maxMessagesPerRoom) {
+                int pageSize = Math.min(batchSize, maxMessagesPerRoom - replayedInRoom);
+                List<MessageView> messages = messageRepo.findViewsByRoomIdAfter(cursor.getRoomId(), after, PageRequest.of(0, pageSize));
+                for (MessageView message : messages) {
+                    after = message.getId();
+                    if (message.getSenderId().equals(userId)) {
+                        continue;
+                    }
+                    frame.add(new Notification(cursor.getRoomId(), message.getSenderName(), message.getContent(), message.getId()));
+                    if (frame.size() == batchSize) {
+                        framedCursors.add(new RoomCursor(null, userId, cursor.getRoomId(), null, after, after));
+                        if (!send(userId, frame, framedCursors)) {
+                            return replayed;
+                        }
+                        replayed += frame.size();
+                        frame = new ArrayList<>(batchSize);
+                    }
+                }
+                replayedInRoom += messages.size();
+                if (messages.size() < pageSize) {
+                    complete = true;
+                    break;
+                }
+            }
+            // A room replayed to the end has its missed position cleared
+            framedCursors.add(new RoomCursor(null, userId, cursor.getRoomId(), null, after, complete ? null : after));
+        }
+        if ((!frame.isEmpty() || !framedCursors.isEmpty()) && send(userId, frame, framedCursors)) {
+            replayed += frame.size();
+        }
+        return replayed;
+    }
+
+    /**
+     * Sends a frame and records the positions it covers.
+     * Nothing is recorded if the user has no subscription left, so the next login replays the same messages.
+     */
+    private boolean send(String userId, List<Notification> notifications, List<RoomCursor> cursors) {
+        if (!notifications.isEmpty() && !notificationDispatcher.deliver(userId, notificationDispatcher.encode(notifications))) {
+            return false;
+        }
+        for (RoomCursor cursor : cursors) {
+            roomCursorBuffer.delivered(userId, cursor.getRoomId(), cursor.getLastDeliveredMessageId());
+            roomCursorBuffer.replayed(userId, cursor.getRoomId(), cursor.getLastDeliveredMessageId(), cursor.getMissedFromMessageId() == null);
+        }
+        cursors.clear();
+        return true;
+    }
+}
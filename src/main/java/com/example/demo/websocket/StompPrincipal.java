@@ -0,0 +1,17 @@
+package com.example.demo.websocket;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.security.Principal;
+
+/**
+ * The user bound to a STOMP session, named by user ID.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StompPrincipal implements Principal {
+    private String name;
+}
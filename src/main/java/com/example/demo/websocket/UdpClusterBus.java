@@ -0,0 +1,402 @@
+package com.example.demo.websocket;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cluster bus that exchanges UDP datagrams with a fixed list of peers.
+ * Session ownership changes are broadcast to every peer as they happen, and every sync interval each node
+ * re-sends the full list of users it owns, so lost datagrams and restarted peers heal on their own.
+ * Ownership that has not been refreshed for three sync intervals is dropped, so a node that dies stops receiving frames.
+ * A starting node sends a hello, which peers answer with their ownership list.
+ * <p>
+ * Every datagram is signed with an HMAC-SHA256 of a secret shared by all nodes. Datagrams are only accepted
+ * from the configured peer addresses and with a valid signature; anything else is dropped, so no other host
+ * can claim sessions or inject frames. Replies go to the address a datagram came from, never to one it names.
+ * Every datagram also carries the time it was sent and a random nonce, both covered by the signature.
+ * Datagrams sent more than MAX_AGE_MS before or after the receiver's clock are dropped, and so is any datagram
+ * whose sender and nonce were already seen within that time, so a captured datagram cannot be replayed.
+ * Nodes therefore need clocks that agree to within MAX_AGE_MS.
+ * <p>
+ * Frames are forwarded in one datagram per node for up to BATCH_SIZE recipients, and events are broadcast
+ * in one datagram per peer; frames and events that do not fit in a datagram are dropped with a warning.
+ * Delivery is best effort, like the rest of the notification path.
+ */
+@Slf4j
+public class UdpClusterBus implements ClusterBus {
+    private static final byte OWNERSHIP = 1;
+    private static final byte FORWARD = 2;
+    private static final byte HELLO = 3;
+    private static final byte EVENT = 4;
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_DATAGRAM = 65_000;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_LENGTH = 32;
+    private static final long MAX_AGE_MS = 60_000;
+
+    private final String nodeId;
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers = new CopyOnWriteArrayList<>();
+    private final long syncIntervalMs;
+    private final ThreadLocal<Mac> mac; // Mac instances are not thread-safe
+
+    private final Set<String> localUsers = ConcurrentHashMap.newKeySet(); // Users with sessions on this node
+    private final Map<String, Map<String, Long>> remoteUsers = new ConcurrentHashMap<>(); // Map of user ID to node ID to when it was last announced
+    private final Map<String, InetSocketAddress> peerAddresses = new ConcurrentHashMap<>(); // Map of node ID to the address it receives on
+    private final Map<String, Long> seenNonces = new ConcurrentHashMap<>(); // Map of sender and nonce to when the datagram was sent
+    private final SecureRandom random = new SecureRandom();
+
+    private final Thread receiver;
+    private final ScheduledExecutorService scheduler;
+    private volatile ForwardHandler forwardHandler = (userIds, destination, payload) -> { };
+    private final Map<String, EventHandler> eventHandlers = new ConcurrentHashMap<>(); // Map of topic to its handler
+    private volatile boolean running = true;
+
+    /**
+     * Binds the socket, starts receiving and says hello to the peers.
+     *
+     * @param nodeId         The unique ID of this node.
+     * @param bindAddress    The address to receive datagrams on; port 0 picks a free port.
+     * @param peers          The addresses of the other nodes.
+     * @param syncIntervalMs How often to re-send the ownership list.
+     * @param secret         The secret shared by all nodes, which signs every datagram.
+     * @throws SocketException If the socket cannot be bound.
+     */
+    public UdpClusterBus(String nodeId, InetSocketAddress bindAddress, Collection<InetSocketAddress> peers, long syncIntervalMs,
+                         byte[] secret) throws SocketException {
+        if (secret.length == 0) {
+            throw new IllegalArgumentException("The cluster secret must not be empty");
+        }
+        SecretKeySpec key = new SecretKeySpec(secret.clone(), MAC_ALGORITHM);
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance(MAC_ALGORITHM);
+                instance.init(key);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        this.mac.get(); // Fail now rather than on the first datagram
+        this.nodeId = nodeId;
+        this.socket = new DatagramSocket(bindAddress);
+        this.peers.addAll(peers);
+        this.syncIntervalMs = syncIntervalMs;
+        receiver = new Thread(this::receiveLoop, "cluster-bus-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-bus-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::sync, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        broadcast(header(HELLO).toByteArray());
+    }
+
+    /**
+     * Adds a peer, which is greeted right away and from then on accepted as a sender.
+     *
+     * @param peer The address of the other node.
+     */
+    public void addPeer(InetSocketAddress peer) {
+        peers.add(peer);
+        send(header(HELLO).toByteArray(), peer);
+    }
+
+    /**
+     * Returns the address this node receives datagrams on.
+     *
+     * @return The bound address.
+     */
+    public InetSocketAddress getLocalAddress() {
+        return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    /**
+     * Stops receiving and closes the socket.
+     */
+    public void close() {
+        running = false;
+        scheduler.shutdownNow();
+        socket.close();
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void announce(String userId, boolean online) {
+        if (online) {
+            localUsers.add(userId);
+        } else {
+            localUsers.remove(userId);
+        }
+        for (byte[] datagram : ownershipDatagrams(List.of(userId), online)) {
+            broadcast(datagram);
+        }
+    }
+
+    @Override
+    public Set<String> getRemoteNodes(String userId) {
+        Map<String, Long> nodes = remoteUsers.get(userId);
+        return nodes == null ? Set.of() : new HashSet<>(nodes.keySet());
+    }
+
+    @Override
+    public void forward(String nodeId, Collection<String> userIds, String destination, byte[] payload) {
+        InetSocketAddress peer = peerAddresses.get(nodeId);
+        if (peer == null) {
+            return;
+        }
+        List<String> batch = new ArrayList<>(Math.min(userIds.size(), BATCH_SIZE));
+        for (String userId : userIds) {
+            batch.add(userId);
+            if (batch.size() == BATCH_SIZE) {
+                sendForward(peer, batch, destination, payload);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            sendForward(peer, batch, destination, payload);
+        }
+    }
+
+    @Override
+    public void setForwardHandler(ForwardHandler handler) {
+        this.forwardHandler = handler;
+    }
+
+    @Override
+    public void broadcast(String topic, byte[] payload) {
+        try {
+            ByteArrayOutputStream bytes = header(EVENT);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(topic);
+            out.writeInt(payload.length);
+            out.write(payload);
+            if (bytes.size() + MAC_LENGTH > MAX_DATAGRAM) {
+                log.warn("Dropping a {} byte {} event, which does not fit in a datagram", payload.length, topic);
+                return;
+            }
+            broadcast(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void subscribe(String topic, EventHandler handler) {
+        eventHandlers.put(topic, handler);
+    }
+
+    private void sendForward(InetSocketAddress peer, List<String> userIds, String destination, byte[] payload) {
+        try {
+            ByteArrayOutputStream bytes = header(FORWARD);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(destination);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt(userIds.size());
+            for (String userId : userIds) {
+                out.writeUTF(userId);
+            }
+            if (bytes.size() + MAC_LENGTH > MAX_DATAGRAM) {
+                log.warn("Dropping a {} byte frame for {} users, which does not fit in a datagram", payload.length, userIds.size());
+                return;
+            }
+            send(bytes.toByteArray(), peer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void sync() {
+        try {
+            for (byte[] datagram : ownershipDatagrams(new ArrayList<>(localUsers), true)) {
+                broadcast(datagram);
+            }
+            // Forget nonces of datagrams that are too old to be accepted anyway
+            long now = System.currentTimeMillis();
+            seenNonces.values().removeIf(sentAt -> sentAt < now - MAX_AGE_MS);
+            // Forget ownership that its node stopped refreshing
+            long expired = now - 3 * syncIntervalMs;
+            remoteUsers.forEach((userId, nodes) -> {
+                nodes.values().removeIf(lastSeen -> lastSeen < expired);
+                remoteUsers.computeIfPresent(userId, (key, current) -> current.isEmpty() ? null : current);
+            });
+        } catch (RuntimeException e) {
+            log.error("Failed to sync cluster ownership", e);
+        }
+    }
+
+    private List<byte[]> ownershipDatagrams(List<String> userIds, boolean online) {
+        List<byte[]> datagrams = new ArrayList<>();
+        for (int from = 0; from < userIds.size(); from += BATCH_SIZE) {
+            List<String> batch = userIds.subList(from, Math.min(userIds.size(), from + BATCH_SIZE));
+            try {
+                ByteArrayOutputStream bytes = header(OWNERSHIP);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeBoolean(online);
+                out.writeInt(batch.size());
+                for (String userId : batch) {
+                    out.writeUTF(userId);
+                }
+                datagrams.add(bytes.toByteArray());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return datagrams;
+    }
+
+    private ByteArrayOutputStream header(byte type) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeUTF(nodeId);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(random.nextLong());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes;
+    }
+
+    private void receiveLoop() {
+        byte[] buffer = new byte[MAX_DATAGRAM + 1024];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                handle(packet);
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Failed to receive a cluster datagram", e);
+                }
+            } catch (RuntimeException e) {
+                log.error("Failed to handle a cluster datagram from {}", packet.getSocketAddress(), e);
+            }
+        }
+    }
+
+    private void handle(DatagramPacket packet) throws IOException {
+        InetSocketAddress senderAddress = (InetSocketAddress) packet.getSocketAddress();
+        if (!peers.contains(senderAddress)) {
+            log.debug("Dropping a cluster datagram from {}, which is not a peer", senderAddress);
+            return;
+        }
+        int length = packet.getLength() - MAC_LENGTH;
+        if (length <= 0 || !MessageDigest.isEqual(sign(packet.getData(), packet.getOffset(), length),
+                Arrays.copyOfRange(packet.getData(), packet.getOffset() + length, packet.getOffset() + packet.getLength()))) {
+            log.warn("Dropping a cluster datagram from {} with a bad signature; check chat.cluster.secret", senderAddress);
+            return;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getData(), packet.getOffset(), length));
+        byte type = in.readByte();
+        String sender = in.readUTF();
+        long sentAt = in.readLong();
+        long nonce = in.readLong();
+        if (sender.equals(nodeId)) {
+            return;
+        }
+        if (Math.abs(System.currentTimeMillis() - sentAt) > MAX_AGE_MS) {
+            log.warn("Dropping a cluster datagram from {} sent at {}, which is too old or too far ahead", senderAddress, sentAt);
+            return;
+        }
+        if (seenNonces.putIfAbsent(sender + '\n' + nonce, sentAt) != null) {
+            log.warn("Dropping a replayed cluster datagram from {}", senderAddress);
+            return;
+        }
+        peerAddresses.put(sender, senderAddress);
+        if (type == OWNERSHIP) {
+            boolean online = in.readBoolean();
+            int count = in.readInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                String userId = in.readUTF();
+                if (online) {
+                    remoteUsers.computeIfAbsent(userId, key -> new ConcurrentHashMap<>()).put(sender, now);
+                } else {
+                    remoteUsers.computeIfPresent(userId, (key, nodes) -> {
+                        nodes.remove(sender);
+                        return nodes.isEmpty() ? null : nodes;
+                    });
+                }
+            }
+        } else if (type == FORWARD) {
+            String destination = in.readUTF();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            int count = in.readInt();
+            List<String> userIds = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                userIds.add(in.readUTF());
+            }
+            forwardHandler.onForward(userIds, destination, payload);
+        } else if (type == EVENT) {
+            String topic = in.readUTF();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            EventHandler handler = eventHandlers.get(topic);
+            if (handler != null) {
+                handler.onEvent(payload);
+            }
+        } else if (type == HELLO) {
+            for (byte[] datagram : ownershipDatagrams(new ArrayList<>(localUsers), true)) {
+                send(datagram, senderAddress);
+            }
+        }
+    }
+
+    private void broadcast(byte[] datagram) {
+        for (InetSocketAddress peer : peers) {
+            send(datagram, peer);
+        }
+    }
+
+    private byte[] sign(byte[] data, int offset, int length) {
+        Mac instance = mac.get();
+        instance.update(data, offset, length);
+        return instance.doFinal();
+    }
+
+    private void send(byte[] datagram, InetSocketAddress peer) {
+        byte[] signed = Arrays.copyOf(datagram, datagram.length + MAC_LENGTH);
+        System.arraycopy(sign(datagram, 0, datagram.length), 0, signed, datagram.length, MAC_LENGTH);
+        try {
+            socket.send(new DatagramPacket(signed, signed.length, peer));
+        } catch (IOException e) {
+            log.warn("Failed to send a cluster datagram to {}", peer, e);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.demo.websocket;
+
+import com.example.demo.service.AccountService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+
+/**
+ * Authenticates STOMP CONNECT frames that carry "id" and "token" headers
+ * and binds the user to the session, so notifications can be sent to /user/queue/notifications.
+ * Connections without these headers are still accepted and can authenticate later with the "login" message.
+ */
+@Component
+public class WebsocketAuthInterceptor implements ChannelInterceptor {
+    @Autowired
+    AccountService accountService;
+
+    @Autowired
+    WebsocketSessionManager websocketSessionManager;
+
+    /**
+     * Binds the principal on CONNECT when the credentials are valid.
+     *
+     * @param message The inbound message.
+     * @param channel The client inbound channel.
+     * @return The message, unchanged apart from the bound user.
+     */
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (accessor == null || accessor.getCommand() != StompCommand.CONNECT) {
+            return message;
+        }
+        String id = accessor.getFirstNativeHeader("id");
+        String token = accessor.getFirstNativeHeader("token");
+        if (id != null && accountService.isAuthenticated(id, token)) {
+            accessor.setUser(new StompPrincipal(id));
+            websocketSessionManager.addSession(accessor.getSessionId(), id);
+        }
+        return message;
+    }
+}
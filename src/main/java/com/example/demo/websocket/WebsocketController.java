@@ -1,33 +1,85 @@
 package com.example.demo.websocket;
 
+import com.example.demo.controller.ChatController.ReadForm;
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.User;
 import com.example.demo.service.AccountService;
 import com.example.demo.service.ChatService;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.annotation.Timed;
+import jakarta.annotation.PostConstruct;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.messaging.simp.annotation.SendToUser;
 import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Controller;
-import org.springframework.messaging.handler.annotation.MessageMapping;
-import org.springframework.messaging.handler.annotation.SendTo;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.socket.*;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Controller class that handles WebSocket communication.
+ * Each message handler is timed in the chat.stomp.requests timer, tagged with the method name.
+ * A sample of chat.log.session-sample-rate of logins is logged.
  */
+@Slf4j
 @Controller
+@Timed("chat.stomp.requests")
 public class WebsocketController {
     @Autowired
     AccountService accountService;
 
+    @Autowired
+    ChatService chatService;
+
     @Autowired
     WebsocketSessionManager websocketSessionManager;
 
+    @Autowired
+    NotificationDispatcher notificationDispatcher;
+
+    @Autowired
+    OfflineReplayService offlineReplayService;
+
+    @Autowired
+    EphemeralEventService ephemeralEventService;
+
+    @Value("${chat.stomp-send.dedupe-ttl:5m}")
+    private Duration dedupeTtl;
+
+    @Value("${chat.log.session-sample-rate:0.1}")
+    private double sessionLogSampleRate;
+
+    @Value("${chat.stomp-send.dedupe-maximum-size:100000}")
+    private long dedupeMaximumSize;
+
+    private Cache<String, CompletableFuture<SentMessage>> sentMessages; // Map of user ID and client message ID to the send of the message
+
+    /**
+     * Builds the cache of recently sent messages used to answer retries.
+     */
+    @PostConstruct
+    public void init() {
+        sentMessages = Caffeine.newBuilder()
+                .maximumSize(dedupeMaximumSize)
+                .expireAfterWrite(dedupeTtl)
+                .build();
+    }
+
     /**
      * Handles the "login" message received from the WebSocket client.
+     * Clients that send "id" and "token" headers in the STOMP CONNECT frame are already registered
+     * by WebsocketAuthInterceptor and receive notifications on /user/queue/notifications;
+     * clients that log in with this message keep receiving them on their token topic.
+     * Messages missed while offline are replayed after a successful login.
      *
      * @param auth            The authentication details provided by the client.
      * @param headerAccessor  The StompHeaderAccessor object containing the WebSocket session details.
@@ -35,8 +87,108 @@ public class WebsocketController {
     @MessageMapping("login")
     public void login(Auth auth, StompHeaderAccessor headerAccessor) {
         if(!accountService.isAuthenticated(auth.getId(), auth.getToken())) return;
+        if(headerAccessor.getUser() != null && !headerAccessor.getUser().getName().equals(auth.getId())) return;
         websocketSessionManager.addSession(headerAccessor.getSessionId(), auth.getId());
-        System.out.println("new session: "+ auth.getId());
+        if (ThreadLocalRandom.current().nextDouble() < sessionLogSampleRate) {
+            log.info("event=session_login session={} user={}", headerAccessor.getSessionId(), auth.getId());
+        }
+        ephemeralEventService.connected(auth.getId());
+        offlineReplayService.replay(auth.getId());
+    }
+
+    /**
+     * Handles the "send" message, which sends a chat message to a room over the STOMP connection.
+     * The sender is the user the session logged in as, so no credentials are sent with each message.
+     * The result is sent back to the sending session on /user/queue/acks.
+     * A retry with the same clientMessageId is answered with the original ack instead of sending the message again.
+     *
+     * @param sendForm       The room ID, content and client message ID of the message.
+     * @param headerAccessor The StompHeaderAccessor object containing the WebSocket session details.
+     * @return The ack of the message.
+     */
+    @MessageMapping("send")
+    @SendToUser(destinations = "/queue/acks", broadcast = false)
+    public SendAck send(SendForm sendForm, StompHeaderAccessor headerAccessor) {
+        String userId = websocketSessionManager.getUserId(headerAccessor.getSessionId());
+        if (userId == null) {
+            return new SendAck(sendForm.getClientMessageId(), sendForm.getRoomId(), null, 401, "Authentication failed");
+        }
+        if (sendForm.getClientMessageId() == null) {
+            return sendMessage(userId, sendForm).toAck();
+        }
+        // The first send of an ID claims it; concurrent retries wait for its result instead of sending again
+        String key = userId + '\n' + sendForm.getClientMessageId();
+        CompletableFuture<SentMessage> pending = new CompletableFuture<>();
+        CompletableFuture<SentMessage> claimed = sentMessages.asMap().putIfAbsent(key, pending);
+        if (claimed != null) {
+            return claimed.join().toAck();
+        }
+        SentMessage sent;
+        try {
+            sent = sendMessage(userId, sendForm);
+        } catch (RuntimeException e) {
+            sentMessages.asMap().remove(key, pending);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+        // Failed sends are not kept, so that a retry can succeed
+        if (sent.ack.getStatus() != 200) {
+            sentMessages.asMap().remove(key, pending);
+        }
+        pending.complete(sent);
+        return sent.toAck();
+    }
+
+    /**
+     * Handles the "read" message, which marks a chat room as read up to a message for the session's user.
+     * Acks from rooms the user is not in, or from sessions that have not logged in, are ignored.
+     *
+     * @param readForm       The room ID and the ID of the last read message.
+     * @param headerAccessor The StompHeaderAccessor object containing the WebSocket session details.
+     */
+    @MessageMapping("read")
+    public void read(ReadForm readForm, StompHeaderAccessor headerAccessor) {
+        String userId = websocketSessionManager.getUserId(headerAccessor.getSessionId());
+        if (userId == null || readForm.getRoomId() == null || readForm.getMessageId() == null) return;
+        Chatroom room = chatService.findChatroom(readForm.getRoomId());
+        User user = accountService.findUser(userId);
+        if (room == null || user == null || !chatService.inChatroom(room, user)) return;
+        chatService.markRead(user, room, readForm.getMessageId());
+    }
+
+    /**
+     * Handles the "typing" message, which tells the other online members of a group room that the session's user is typing.
+     * Clients may send it on every keystroke; it is passed on at most once per coalescing window.
+     *
+     * @param typingForm     The room ID.
+     * @param headerAccessor The StompHeaderAccessor object containing the WebSocket session details.
+     */
+    @MessageMapping("typing")
+    public void typing(TypingForm typingForm, StompHeaderAccessor headerAccessor) {
+        String userId = websocketSessionManager.getUserId(headerAccessor.getSessionId());
+        if (userId == null || typingForm.getRoomId() == null) return;
+        User user = accountService.findUser(userId);
+        if (user == null) return;
+        ephemeralEventService.typing(user.toDTO(), typingForm.getRoomId());
+    }
+
+    private SentMessage sendMessage(String userId, SendForm sendForm) {
+        Long roomId = sendForm.getRoomId();
+        Chatroom room = roomId == null ? null : chatService.findChatroom(roomId);
+        if (room == null) {
+            return new SentMessage(new SendAck(sendForm.getClientMessageId(), roomId, null, 404, "Chatroom not found"), null);
+        }
+        User user = accountService.findUser(userId);
+        if (user == null || !chatService.inChatroom(room, user)) {
+            return new SentMessage(new SendAck(sendForm.getClientMessageId(), roomId, null, 403, "Not your chatroom"), null);
+        }
+        Message message = chatService.sendMessage(user, room, sendForm.getContent());
+        if (message == null) {
+            return new SentMessage(new SendAck(sendForm.getClientMessageId(), roomId, null, 503, "Server busy"), null);
+        }
+        // Push notification
+        notificationDispatcher.publish(room, user, message);
+        return new SentMessage(new SendAck(sendForm.getClientMessageId(), roomId, null, 200, null), message);
     }
 
     /**
@@ -48,4 +200,57 @@ public class WebsocketController {
         String id;
         String token;
     }
+
+    /**
+     * Data class representing a chat message sent over STOMP.
+     * clientMessageId is chosen by the client and identifies the message across retries.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class SendForm {
+        private String clientMessageId;
+        private Long roomId;
+        private String content;
+    }
+
+    /**
+     * Data class representing a "typing" message.
+     */
+    @Data
+    @NoArgsConstructor
+    public static class TypingForm {
+        private Long roomId;
+    }
+
+    /**
+     * Data class representing the result of a "send" message.
+     * status uses the HTTP status the REST endpoint would have returned;
+     * messageId is null on failure and when the message is still queued for writing.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SendAck {
+        private String clientMessageId;
+        private Long roomId;
+        private Long messageId;
+        private int status;
+        private String error;
+    }
+
+    /**
+     * The result of a send: its ack and, on success, the sent message.
+     * In write-behind mode the message ID is assigned after the ack is first returned,
+     * so each ack is built from the message's current ID and a later retry gets it.
+     */
+    @AllArgsConstructor
+    private static class SentMessage {
+        private final SendAck ack;
+        private final Message message;
+
+        private SendAck toAck() {
+            Long messageId = message == null ? null : message.getId();
+            return new SendAck(ack.getClientMessageId(), ack.getRoomId(), messageId, ack.getStatus(), ack.getError());
+        }
+    }
 }
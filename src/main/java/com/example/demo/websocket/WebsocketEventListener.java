@@ -1,21 +1,39 @@
 package com.example.demo.websocket;
 
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
 import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import org.springframework.web.socket.messaging.SessionSubscribeEvent;
+
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Listener class for WebSocket events.
+ * A sample of chat.log.session-sample-rate of closed sessions is logged.
  */
+@Slf4j
 @Component
 public class WebsocketEventListener implements ApplicationListener<SessionConnectEvent> {
 
     @Autowired
     WebsocketSessionManager websocketSessionManager;
 
+    @Autowired
+    OfflineReplayService offlineReplayService;
+
+    @Autowired
+    EphemeralEventService ephemeralEventService;
+
+    @Value("${chat.log.session-sample-rate:0.1}")
+    private double sessionLogSampleRate;
+
     /**
      * Handles the session connect event.
      *
@@ -26,14 +44,48 @@ public class WebsocketEventListener implements ApplicationListener<SessionConnec
         // Do nothing
     }
 
+    /**
+     * Handles the session connected event.
+     * Users authenticated on CONNECT are announced online.
+     *
+     * @param event The SessionConnectedEvent object representing the session connected event.
+     */
+    @EventListener
+    public void handleSessionConnected(SessionConnectedEvent event) {
+        if (event.getUser() != null) {
+            ephemeralEventService.connected(event.getUser().getName());
+        }
+    }
+
+    /**
+     * Handles the session subscribe event.
+     * Users authenticated on CONNECT get their missed messages replayed once they subscribe to their notifications.
+     *
+     * @param event The SessionSubscribeEvent object representing the session subscribe event.
+     */
+    @EventListener
+    public void handleSessionSubscribe(SessionSubscribeEvent event) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(event.getMessage());
+        if (event.getUser() != null && NotificationDispatcher.USER_NOTIFICATION_DESTINATION.equals(accessor.getDestination())) {
+            offlineReplayService.replay(event.getUser().getName());
+        }
+    }
+
     /**
      * Handles the session disconnect event.
+     * Users whose last session closed are announced offline, unless they reconnect soon.
      *
      * @param event The SessionDisconnectEvent object representing the session disconnect event.
      */
     @EventListener
     public void handleSessionDisconnect(SessionDisconnectEvent event) {
-        websocketSessionManager.deleteSession(event.getSessionId());
-        System.out.println("close session: " + event.getSessionId());
+        String offlineUserId = websocketSessionManager.deleteSession(event.getSessionId());
+        if (offlineUserId != null) {
+            ephemeralEventService.disconnected(offlineUserId);
+        }
+        if (ThreadLocalRandom.current().nextDouble() < sessionLogSampleRate) {
+            log.info("event=session_closed session={} user={} last={}", event.getSessionId(),
+                    event.getUser() != null ? event.getUser().getName() : null, offlineUserId != null);
+        }
     }
 }
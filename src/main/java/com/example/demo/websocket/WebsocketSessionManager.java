@@ -1,46 +1,89 @@
 package com.example.demo.websocket;
 
 import com.example.demo.model.UserDTO;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages WebSocket sessions and their corresponding user IDs.
+ * Sessions are indexed in both directions so that online checks by user ID do not scan every session.
+ * A user stays online until the last of their sessions is closed.
+ * The first and last session of each user are announced on the cluster bus, so other nodes know where to forward to.
  */
 @Component
 public class WebsocketSessionManager {
-    private Map<String, String> sessionMap; // Map of session ID to user ID
+    private final Map<String, String> sessionMap; // Map of session ID to user ID
+    private final Map<String, Set<String>> userSessionMap; // Map of user ID to its session IDs
+
+    @Autowired(required = false)
+    private ClusterBus clusterBus;
 
     /**
-     * Constructs a new WebsocketSessionManager and initializes the sessionMap.
+     * Constructs a new WebsocketSessionManager and initializes the session maps.
      */
     public WebsocketSessionManager() {
-        sessionMap = new HashMap<>();
+        sessionMap = new ConcurrentHashMap<>();
+        userSessionMap = new ConcurrentHashMap<>();
     }
 
     /**
-     * Adds a new WebSocket session to the sessionMap.
+     * Adds a new WebSocket session to the session maps.
+     * If the session was already bound to another user, it is moved to the new user.
      *
      * @param sessionId The ID of the WebSocket session.
      * @param userId    The ID of the user associated with the session.
      */
     public void addSession(String sessionId, String userId) {
-        sessionMap.put(sessionId, userId);
+        String previousUserId = sessionMap.put(sessionId, userId);
+        if (previousUserId != null && !previousUserId.equals(userId) && unbind(previousUserId, sessionId)) {
+            announce(previousUserId, false);
+        }
+        // Mutate the set inside compute so it cannot race with unbind dropping an empty entry
+        boolean[] first = new boolean[1];
+        userSessionMap.compute(userId, (key, sessions) -> {
+            if (sessions == null) {
+                sessions = ConcurrentHashMap.newKeySet();
+                first[0] = true;
+            }
+            sessions.add(sessionId);
+            return sessions;
+        });
+        if (first[0]) {
+            announce(userId, true);
+        }
     }
 
     /**
-     * Deletes a WebSocket session from the sessionMap.
+     * Deletes a WebSocket session from the session maps.
      *
      * @param sessionId The ID of the WebSocket session to be deleted.
+     * @return The ID of the user if this was their last session, null otherwise.
      */
-    public void deleteSession(String sessionId) {
-        if (sessionExistsById(sessionId)) {
-            sessionMap.remove(sessionId);
+    public String deleteSession(String sessionId) {
+        String userId = sessionMap.remove(sessionId);
+        if (userId != null && unbind(userId, sessionId)) {
+            announce(userId, false);
+            return userId;
         }
+        return null;
+    }
+
+    /**
+     * Returns the user a WebSocket session is bound to.
+     *
+     * @param sessionId The ID of the WebSocket session.
+     * @return The ID of the user, or null if the session has not logged in.
+     */
+    public String getUserId(String sessionId) {
+        return sessionId == null ? null : sessionMap.get(sessionId);
     }
 
     /**
@@ -59,6 +102,22 @@ public class WebsocketSessionManager {
         return onlineUsers;
     }
 
+    /**
+     * Returns the subset of the given user IDs that currently have at least one session.
+     *
+     * @param userIds The user IDs to check.
+     * @return The set of online user IDs.
+     */
+    public Set<String> onlineSubset(Collection<String> userIds) {
+        Set<String> online = new HashSet<>();
+        for (String userId : userIds) {
+            if (sessionExistsByUserId(userId)) {
+                online.add(userId);
+            }
+        }
+        return online;
+    }
+
     /**
      * Checks if a session exists for the given user ID.
      *
@@ -66,7 +125,7 @@ public class WebsocketSessionManager {
      * @return true if a session exists for the user ID, false otherwise.
      */
     public boolean sessionExistsByUserId(String userId) {
-        return sessionMap.containsValue(userId);
+        return userId != null && userSessionMap.containsKey(userId);
     }
 
     /**
@@ -78,4 +137,44 @@ public class WebsocketSessionManager {
     public boolean sessionExistsById(String sessionId) {
         return sessionMap.containsKey(sessionId);
     }
+
+    /**
+     * Returns the number of sessions on this node that are logged in, across all users.
+     * Connections that have not logged in yet are not counted; a user with several sessions counts once per session.
+     *
+     * @return The session count.
+     */
+    public int getSessionCount() {
+        return sessionMap.size();
+    }
+
+    /**
+     * Returns the number of users with at least one session.
+     *
+     * @return The online user count.
+     */
+    public int getOnlineUserCount() {
+        return userSessionMap.size();
+    }
+
+    private void announce(String userId, boolean online) {
+        if (clusterBus != null) {
+            clusterBus.announce(userId, online);
+        }
+    }
+
+    /**
+     * Removes a session from a user's session set, dropping the user entry once it is empty.
+     *
+     * @return true if the user entry was dropped, false otherwise.
+     */
+    private boolean unbind(String userId, String sessionId) {
+        boolean[] dropped = new boolean[1];
+        userSessionMap.computeIfPresent(userId, (key, sessions) -> {
+            sessions.remove(sessionId);
+            dropped[0] = sessions.isEmpty();
+            return dropped[0] ? null : sessions;
+        });
+        return dropped[0];
+    }
 }
@@ -0,0 +1,186 @@
+package com.example.demo.controller;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.ChatroomSummary;
+import com.example.demo.model.MessageView;
+import com.example.demo.model.Participant;
+import com.example.demo.model.UnreadCount;
+import com.example.demo.model.User;
+import com.example.demo.repository.ChatroomRepository;
+import com.example.demo.repository.ParticipantRepository;
+import com.example.demo.repository.RoomCursorRepository;
+import com.example.demo.response.MessagePage;
+import com.example.demo.service.AccountService;
+import com.example.demo.service.ChatService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.ResponseEntity;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Pages of more than two messages are read from the database rather than RecentMessageCache,
+// and read acks stay buffered for the whole test
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:history;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE",
+        "chat.recent-messages.per-room=2",
+        "chat.room-cursor.flush-interval-ms=60000"})
+class ChatControllerTests {
+    @Autowired
+    private ChatController chatController;
+
+    @Autowired
+    private AccountService accountService;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private ChatroomRepository chatroomRepo;
+
+    @Autowired
+    private ParticipantRepository participantRepo;
+
+    @Autowired
+    private RoomCursorRepository roomCursorRepo;
+
+    private final List<Long> ids = new ArrayList<>(); // The IDs of messages m0 to m6, oldest first
+    private Chatroom room;
+    private User reader;
+    private String readerId;
+    private String token;
+
+    @BeforeEach
+    void sendMessages() {
+        reader = new User("history-reader-" + System.nanoTime(), "Reader", "secret1", "reader@example.com", null);
+        accountService.createUser(reader);
+        readerId = reader.getId();
+        room = new Chatroom();
+        room.setGroup(true);
+        room.setRoomName("history");
+        room.setLastModified(LocalDateTime.now());
+        chatroomRepo.save(room);
+        participantRepo.save(new Participant(null, room, reader.toDTO()));
+        for (int i = 0; i < 7; i++) {
+            ids.add(chatService.sendMessage(reader, room, "m" + i).getId());
+        }
+        token = accountService.login(readerId);
+    }
+
+    @Test
+    void historyIsPagedBackwardsFromTheLatestMessage() {
+        MessagePage first = page(null, null, 3);
+        assertEquals(List.of("m6", "m5", "m4"), contents(first));
+        assertTrue(first.isHasMore());
+        assertEquals(ids.get(4), first.getNextCursor());
+
+        MessagePage second = page(first.getNextCursor(), null, 3);
+        assertEquals(List.of("m3", "m2", "m1"), contents(second));
+        assertEquals(ids.get(1), second.getNextCursor());
+
+        MessagePage last = page(second.getNextCursor(), null, 3);
+        assertEquals(List.of("m0"), contents(last));
+        assertFalse(last.isHasMore());
+        assertNull(last.getNextCursor());
+    }
+
+    @Test
+    void pagesAfterAMessageAreReturnedNewestFirstWithACursorToTheNextOne() {
+        MessagePage first = page(null, ids.get(0), 3);
+        assertEquals(List.of("m3", "m2", "m1"), contents(first));
+        assertTrue(first.isHasMore());
+        assertEquals(ids.get(3), first.getNextCursor());
+
+        MessagePage last = page(null, first.getNextCursor(), 3);
+        assertEquals(List.of("m6", "m5", "m4"), contents(last));
+        assertFalse(last.isHasMore());
+        assertNull(last.getNextCursor());
+    }
+
+    @Test
+    void wholeHistoryIsOnlyReturnedWhenAskedFor() {
+        ResponseEntity<?> paged = chatController.viewChatHistory(readerId, token, room.getId(), null, null, null, false);
+        assertInstanceOf(MessagePage.class, paged.getBody());
+
+        ResponseEntity<?> all = chatController.viewChatHistory(readerId, token, room.getId(), null, null, null, true);
+        assertEquals(200, all.getStatusCode().value());
+        List<?> messages = assertInstanceOf(List.class, all.getBody());
+        assertEquals(List.of("m0", "m1", "m2", "m3", "m4", "m5", "m6"),
+                messages.stream().map(message -> ((MessageView) message).getContent()).toList());
+    }
+
+    @Test
+    void chatroomListIsPagedAfterTheLastChatroomOfThePreviousPage() {
+        List<Long> newestFirst = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            User friend = new User("history-friend-" + System.nanoTime(), "Friend " + i, "secret1", "friend@example.com", null);
+            accountService.createUser(friend);
+            Chatroom privateRoom = chatService.createPrivateChatroom(i % 2 == 0 ? reader : friend, i % 2 == 0 ? friend : reader);
+            chatService.sendMessage(friend, privateRoom, "hello " + i);
+            newestFirst.add(0, privateRoom.getId());
+        }
+        // The group chatroom was active before all of them
+        newestFirst.add(room.getId());
+
+        List<ChatroomSummary> first = chatroomList(null, 0, 2);
+        assertEquals(newestFirst.subList(0, 2), first.stream().map(ChatroomSummary::getId).toList());
+        List<ChatroomSummary> second = chatroomList(first.get(1).getId(), 0, 2);
+        assertEquals(newestFirst.subList(2, 4), second.stream().map(ChatroomSummary::getId).toList());
+        List<ChatroomSummary> last = chatroomList(second.get(1).getId(), 0, 2);
+        assertEquals(newestFirst.subList(4, 5), last.stream().map(ChatroomSummary::getId).toList());
+        assertEquals("history", last.get(0).getRoomName());
+        assertEquals(newestFirst.subList(2, 4), chatroomList(null, 1, 2).stream().map(ChatroomSummary::getId).toList());
+        assertEquals("Friend 3", first.get(0).getRoomName());
+        assertEquals(1, first.get(0).getUnreadCount());
+    }
+
+    @Test
+    void unreadCountsApplyBufferedReadAcksWithoutWritingThem() {
+        User sender = new User("history-sender-" + System.nanoTime(), "Sender", "secret1", "sender@example.com", null);
+        accountService.createUser(sender);
+        participantRepo.save(new Participant(null, room, sender.toDTO()));
+        List<Long> unread = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            unread.add(chatService.sendMessage(sender, room, "unread " + i).getId());
+        }
+        assertEquals(List.of(new UnreadCount(room.getId(), 3)), chatService.getUnreadCounts(reader));
+
+        chatController.markRead(readerId, token, readForm(unread.get(1)));
+        assertEquals(1, chatroomList(null, 0, 10).get(0).getUnreadCount());
+        assertEquals(List.of(new UnreadCount(room.getId(), 1)), chatService.getUnreadCounts(reader));
+        chatController.markRead(readerId, token, readForm(unread.get(2)));
+        assertEquals(0, chatroomList(null, 0, 10).get(0).getUnreadCount());
+        assertEquals(List.of(), chatService.getUnreadCounts(reader));
+        assertNull(roomCursorRepo.findByUserIdAndRoomId(readerId, room.getId()));
+    }
+
+    private List<ChatroomSummary> chatroomList(Long before, int page, Integer size) {
+        ResponseEntity<?> response = chatController.viewChatRoom(readerId, token, before, page, size);
+        assertEquals(200, response.getStatusCode().value());
+        @SuppressWarnings("unchecked")
+        List<ChatroomSummary> chatrooms = (List<ChatroomSummary>) response.getBody();
+        return chatrooms;
+    }
+
+    private ChatController.ReadForm readForm(Long messageId) {
+        ChatController.ReadForm readForm = new ChatController.ReadForm();
+        readForm.setRoomId(room.getId());
+        readForm.setMessageId(messageId);
+        return readForm;
+    }
+
+    private MessagePage page(Long before, Long after, Integer limit) {
+        ResponseEntity<?> response = chatController.viewChatHistory(readerId, token, room.getId(), before, after, limit, false);
+        assertEquals(200, response.getStatusCode().value());
+        return (MessagePage) response.getBody();
+    }
+
+    private static List<String> contents(MessagePage page) {
+        return page.getMessages().stream().map(MessageView::getContent).toList();
+    }
+}
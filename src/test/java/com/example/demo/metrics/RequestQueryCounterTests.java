@@ -0,0 +1,44 @@
+package com.example.demo.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.HandlerMapping;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestQueryCounterTests {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final RequestQueryCounter counter = new RequestQueryCounter();
+
+    @Test
+    void statementsAreRecordedPerRequestInOneSummaryPerUriPattern() {
+        ReflectionTestUtils.setField(counter, "meterRegistry", meterRegistry);
+        handle("/chatroom/{id}/messages", 3);
+        handle("/chatroom/{id}/messages", 1);
+        handle("/friends", 2);
+
+        DistributionSummary messages = meterRegistry.get("chat.http.queries").tag("uri", "/chatroom/{id}/messages").summary();
+        assertEquals(2, messages.count());
+        assertEquals(4, messages.totalAmount());
+        assertSame(messages, counter.summary("GET", "/chatroom/{id}/messages"));
+        assertEquals(2, meterRegistry.get("chat.http.queries").summaries().size());
+        // Statements outside of a request are not counted
+        counter.inspect("select 1");
+        assertEquals(4, messages.totalAmount());
+    }
+
+    private void handle(String pattern, int statements) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", pattern);
+        request.setAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE, pattern);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        counter.preHandle(request, response, null);
+        for (int i = 0; i < statements; i++) {
+            counter.inspect("select 1");
+        }
+        counter.afterCompletion(request, response, null, null);
+    }
+}
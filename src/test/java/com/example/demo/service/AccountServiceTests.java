@@ -0,0 +1,84 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccountServiceTests {
+    private static final int THREADS = 16;
+    private static final int USERS = 2000;
+
+    @Test
+    void concurrentLoginsKeepEveryUserAndAgreeOnOneToken() throws Exception {
+        AccountService accountService = new AccountService();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<List<String>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            results.add(executor.submit(() -> {
+                barrier.await();
+                List<String> tokens = new ArrayList<>();
+                // Every thread logs in every user, so each user is contended by all threads
+                for (int i = 0; i < USERS; i++) {
+                    tokens.add(accountService.login("user-" + i));
+                }
+                return tokens;
+            }));
+        }
+        List<List<String>> tokensPerThread = new ArrayList<>();
+        for (Future<List<String>> result : results) {
+            tokensPerThread.add(result.get(30, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < USERS; i++) {
+            Set<String> tokens = new HashSet<>();
+            for (List<String> threadTokens : tokensPerThread) {
+                tokens.add(threadTokens.get(i));
+            }
+            assertEquals(1, tokens.size(), "user-" + i + " received more than one token");
+            assertTrue(accountService.isAuthenticated("user-" + i, tokens.iterator().next()));
+        }
+    }
+
+    @Test
+    void concurrentLoginAndLogoutNeverLeaveAStaleToken() throws Exception {
+        AccountService accountService = new AccountService();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final boolean loggingIn = t % 2 == 0;
+            results.add(executor.submit(() -> {
+                barrier.await();
+                for (int i = 0; i < USERS; i++) {
+                    String userId = "user-" + i;
+                    if (loggingIn) {
+                        accountService.login(userId);
+                    } else {
+                        accountService.logout(userId);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < USERS; i++) {
+            String userId = "user-" + i;
+            String token = accountService.login(userId);
+            assertTrue(accountService.isAuthenticated(userId, token));
+            assertTrue(accountService.logout(userId));
+            assertFalse(accountService.logout(userId));
+        }
+    }
+}
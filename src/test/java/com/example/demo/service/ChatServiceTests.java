@@ -0,0 +1,51 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.User;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+class ChatServiceTests {
+    private final RoomCursorBuffer roomCursorBuffer = mock(RoomCursorBuffer.class);
+    private final User user = new User("reader", "Reader", "secret1", "reader@example.com", null);
+
+    @Test
+    void readAckIsRecordedAsSent() {
+        chatService().markRead(user, room(7L, 100L), 42L);
+
+        verify(roomCursorBuffer).read("reader", 7L, 42L);
+    }
+
+    @Test
+    void readAckBeyondTheLatestMessageIsCappedAtIt() {
+        chatService().markRead(user, room(7L, 100L), Long.MAX_VALUE);
+
+        verify(roomCursorBuffer).read("reader", 7L, 100L);
+    }
+
+    @Test
+    void readAckInARoomWithoutMessagesIsIgnored() {
+        chatService().markRead(user, room(7L, null), 42L);
+
+        verify(roomCursorBuffer, never()).read(any(), any(), anyLong());
+    }
+
+    private ChatService chatService() {
+        ChatService chatService = new ChatService();
+        ReflectionTestUtils.setField(chatService, "roomCursorBuffer", roomCursorBuffer);
+        return chatService;
+    }
+
+    private static Chatroom room(Long id, Long lastMessageId) {
+        Chatroom room = new Chatroom();
+        room.setId(id);
+        room.setLastMessageId(lastMessageId);
+        return room;
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Friendship;
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.FriendShipRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class FriendGraphTests {
+    private final Map<String, List<UserDTO>> friendships = new HashMap<>(); // The friendship table, by user ID
+    private FriendShipRepository friendShipRepo;
+
+    @Test
+    void coldGraphFindsFriendsOnTheFirstCheck() {
+        friendships.put("alice", List.of(new UserDTO("bob", "Bob")));
+        FriendGraph graph = graph(1000);
+
+        // Nothing is interned yet, as after a restart
+        assertTrue(graph.isFriend("alice", "bob"));
+        assertFalse(graph.isFriend("alice", "carol"));
+        assertFalse(graph.isFriend("bob", "alice"));
+    }
+
+    @Test
+    void internedUsersAreBoundedAndAnswersStayCorrect() {
+        for (int i = 0; i < 200; i++) {
+            List<UserDTO> friends = new ArrayList<>();
+            for (int j = 1; j <= 3; j++) {
+                String friendId = "user-" + (i + j) % 200;
+                friends.add(new UserDTO(friendId, friendId));
+            }
+            friendships.put("user-" + i, friends);
+        }
+        FriendGraph graph = graph(50);
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 200; i++) {
+                assertTrue(graph.isFriend("user-" + i, "user-" + (i + 1) % 200));
+                assertFalse(graph.isFriend("user-" + i, "user-" + (i + 4) % 200));
+                assertEquals(3, graph.getFriends("user-" + i).size());
+                assertTrue(graph.getInternedUserCount() <= 50);
+            }
+        }
+    }
+
+    @Test
+    void suggestionsLoadTheFriendsOfAllFriendsInOneQuery() {
+        List<UserDTO> aliceFriends = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String friendId = "friend-" + i;
+            aliceFriends.add(new UserDTO(friendId, friendId));
+            friendships.put(friendId, List.of(new UserDTO("alice", "Alice"), new UserDTO("carol", "Carol"),
+                    new UserDTO("user-" + i, "user-" + i)));
+        }
+        friendships.put("alice", aliceFriends);
+        FriendGraph graph = graph(1000);
+
+        List<UserDTO> suggestions = graph.friendsOfFriends("alice", 5);
+
+        assertEquals(new UserDTO("carol", "Carol"), suggestions.get(0));
+        assertEquals(5, suggestions.size());
+        verify(friendShipRepo, times(1)).findFriendsByUserId(anyString());
+        verify(friendShipRepo, times(1)).findAllByUserIds(any());
+        assertTrue(graph.isFriend("friend-7", "user-7"));
+        verify(friendShipRepo, times(1)).findFriendsByUserId(anyString());
+    }
+
+    @Test
+    void invalidatedUsersReadTheirFriendsAgain() {
+        friendships.put("alice", List.of(new UserDTO("bob", "Bob")));
+        FriendGraph graph = graph(1000);
+        assertFalse(graph.isFriend("alice", "carol"));
+
+        // Added on another node
+        friendships.put("alice", List.of(new UserDTO("bob", "Bob"), new UserDTO("carol", "Carol")));
+        assertFalse(graph.isFriend("alice", "carol"));
+        graph.invalidate("alice");
+        graph.invalidate("nobody");
+
+        assertTrue(graph.isFriend("alice", "carol"));
+        assertTrue(graph.isFriend("alice", "bob"));
+    }
+
+    private FriendGraph graph(int maximumInternedUsers) {
+        friendShipRepo = mock(FriendShipRepository.class);
+        when(friendShipRepo.findFriendsByUserId(anyString()))
+                .thenAnswer(invocation -> friendships.getOrDefault(invocation.<String>getArgument(0), List.of()));
+        when(friendShipRepo.findAllByUserIds(any())).thenAnswer(invocation -> {
+            List<Friendship> rows = new ArrayList<>();
+            for (String userId : invocation.<Collection<String>>getArgument(0)) {
+                for (UserDTO friend : friendships.getOrDefault(userId, List.of())) {
+                    rows.add(new Friendship(null, new UserDTO(userId, userId), friend));
+                }
+            }
+            return rows;
+        });
+        FriendGraph graph = new FriendGraph();
+        ReflectionTestUtils.setField(graph, "friendShipRepo", friendShipRepo);
+        ReflectionTestUtils.setField(graph, "maximumUsers", 100_000L);
+        ReflectionTestUtils.setField(graph, "maximumInternedUsers", maximumInternedUsers);
+        ReflectionTestUtils.setField(graph, "expireAfterWrite", Duration.ofMinutes(10));
+        graph.init();
+        return graph;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.UserDTO;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageBatchWriterTests {
+    @Test
+    void batchFailsWhenTheDriverReturnsTooFewGeneratedKeys() throws Exception {
+        // The driver only reports a key for the first of the two inserted rows
+        ResultSet keys = mock(ResultSet.class);
+        when(keys.next()).thenReturn(true, false);
+        when(keys.getLong(1)).thenReturn(41L);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.getGeneratedKeys()).thenReturn(keys);
+        Connection connection = mock(Connection.class);
+        when(connection.prepareStatement(anyString(), anyInt())).thenReturn(statement);
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        MessageBatchWriter writer = new MessageBatchWriter();
+        ReflectionTestUtils.setField(writer, "jdbcTemplate", new JdbcTemplate(dataSource));
+
+        Chatroom room = new Chatroom();
+        room.setId(7L);
+        List<Message> messages = List.of(
+                new Message(null, room, "first", LocalDateTime.now(), new UserDTO("sender", "Sender")),
+                new Message(null, room, "second", LocalDateTime.now(), new UserDTO("sender", "Sender")));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> writer.writeAll(messages));
+        assertEquals("Inserted 2 messages but the driver returned 1 generated keys", e.getMessage());
+        assertNull(room.getLastMessageId());
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.MessageText;
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.MessageRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MessageSearchIndexTests {
+    private final MessageSearchIndex index = new MessageSearchIndex();
+    private final List<MessageText> stored = new ArrayList<>(); // The message table, oldest first
+
+    @Test
+    void contentIsSplitIntoLowercaseWordsAndSingleIdeographs() {
+        assertEquals(List.of("meet", "at", "5pm", "café"), MessageSearchIndex.tokenize("Meet at 5PM, café!"));
+        assertEquals(List.of("hi", "你", "好", "ok"), MessageSearchIndex.tokenize("hi你好ok"));
+        assertEquals(List.of(), MessageSearchIndex.tokenize(" ... "));
+    }
+
+    @Test
+    void matchesContainEveryTermAndAreLimitedToTheGivenRooms() {
+        index.index(List.of(
+                message(1L, 10L, "lunch at noon"),
+                message(2L, 10L, "Lunch tomorrow?"),
+                message(3L, 20L, "lunch at the cafe"),
+                message(4L, 10L, "dinner at eight")));
+
+        assertEquals(List.of(1L), ids(index.search("LUNCH at", Set.of(10L), 0, 10)));
+        assertEquals(List.of(3L, 1L), ids(index.search("lunch at", Set.of(10L, 20L), 0, 10)));
+        assertEquals(List.of(), ids(index.search("lunch breakfast", Set.of(10L, 20L), 0, 10)));
+        assertEquals(List.of(), ids(index.search("lunch", Set.of(), 0, 10)));
+        assertEquals(List.of(), ids(index.search("!!", Set.of(10L), 0, 10)));
+    }
+
+    @Test
+    void frequentTermsRankFirstAndTiesGoToTheNewestMessage() {
+        index.index(List.of(
+                message(1L, 10L, "deploy"),
+                message(2L, 10L, "deploy deploy deploy"),
+                message(3L, 10L, "deploy")));
+
+        assertEquals(List.of(2L, 3L, 1L), ids(index.search("deploy", Set.of(10L), 0, 10)));
+        assertEquals(List.of(3L), ids(index.search("deploy", Set.of(10L), 1, 1)));
+        assertEquals(List.of(), ids(index.search("deploy", Set.of(10L), 5, 10)));
+    }
+
+    @Test
+    void messagesIndexedTwiceOrOutOfOrderAreCountedOnce() {
+        index.index(List.of(message(5L, 10L, "release notes"), message(2L, 10L, "release day")));
+        index.index(List.of(message(5L, 10L, "release notes"), message(3L, 10L, "release party")));
+        index.index(List.of(message(null, 10L, "queued release"), message(6L, 10L, null)));
+
+        assertEquals(3, index.size());
+        assertEquals(List.of(5L, 3L, 2L), ids(index.search("release", Set.of(10L), 0, 10)));
+    }
+
+    @Test
+    void rebuildReadsEveryMessageInPages() {
+        for (long id = 1; id <= 25; id++) {
+            stored.add(text(id, id % 2 == 0 ? "even message" : "odd message"));
+        }
+        index.index(List.of(message(99L, 10L, "stale")));
+        useRepository(0);
+
+        assertEquals(25, index.rebuild());
+        assertEquals(25, index.size());
+        assertEquals(12, index.search("even", Set.of(10L), 0, 100).size());
+        assertEquals(List.of(), ids(index.search("stale", Set.of(10L), 0, 10)));
+    }
+
+    @Test
+    void searchesDuringARebuildUseThePreviousIndexAndNewMessagesReachBoth() {
+        for (long id = 1; id <= 25; id++) {
+            stored.add(text(id, "rebuilt message"));
+        }
+        index.index(List.of(message(99L, 10L, "stale message")));
+        MessageRepository messageRepo = useRepository(0);
+        List<Long> staleHitsDuringRebuild = new ArrayList<>();
+        doAnswer(invocation -> {
+            long after = invocation.getArgument(0);
+            staleHitsDuringRebuild.addAll(ids(index.search("stale", Set.of(10L), 0, 10)));
+            if (after == 0) {
+                index.index(List.of(message(100L, 10L, "sent during the rebuild")));
+                assertThrows(IllegalStateException.class, index::rebuild);
+            }
+            return page(after, invocation.getArgument(1));
+        }).when(messageRepo).findTextsAfter(anyLong(), any());
+
+        assertEquals(25, index.rebuild());
+        assertEquals(List.of(99L, 99L, 99L, 99L), staleHitsDuringRebuild);
+        assertEquals(List.of(), ids(index.search("stale", Set.of(10L), 0, 10)));
+        assertEquals(List.of(100L), ids(index.search("rebuild", Set.of(10L), 0, 10)));
+        assertEquals(26, index.size());
+        assertFalse(index.isRebuilding());
+    }
+
+    @Test
+    void rebuildIndexesOnlyTheNewestMessagesUnderTheLimit() {
+        for (long id = 1; id <= 25; id++) {
+            stored.add(text(id, "message " + id));
+        }
+        useRepository(10);
+
+        assertEquals(9, index.rebuild());
+        assertEquals(List.of(), ids(index.search("16", Set.of(10L), 0, 10)));
+        assertEquals(List.of(17L), ids(index.search("17", Set.of(10L), 0, 10)));
+    }
+
+    @Test
+    void reachingTheLimitRebuildsTheIndexInTheBackground() throws InterruptedException {
+        for (long id = 1; id <= 25; id++) {
+            stored.add(text(id, "message " + id));
+        }
+        useRepository(10);
+
+        for (long id = 1; id <= 10; id++) {
+            index.index(List.of(message(id, 10L, "message " + id)));
+        }
+        for (int i = 0; i < 100 && (index.isRebuilding() || index.size() >= 10); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(9, index.size());
+        assertEquals(List.of(25L), ids(index.search("25", Set.of(10L), 0, 10)));
+    }
+
+    private MessageRepository useRepository(long maxIndexedMessages) {
+        MessageRepository messageRepo = mock(MessageRepository.class);
+        when(messageRepo.findTextsAfter(anyLong(), any()))
+                .thenAnswer(invocation -> page(invocation.getArgument(0), invocation.getArgument(1)));
+        when(messageRepo.findIdsNewestFirst(any())).thenAnswer(invocation -> {
+            Pageable pageable = invocation.getArgument(0);
+            return stored.stream().map(MessageText::getId).sorted(Comparator.reverseOrder())
+                    .skip(pageable.getOffset()).limit(pageable.getPageSize()).toList();
+        });
+        ReflectionTestUtils.setField(index, "messageRepo", messageRepo);
+        ReflectionTestUtils.setField(index, "rebuildBatchSize", 10);
+        ReflectionTestUtils.setField(index, "maxIndexedMessages", maxIndexedMessages);
+        return messageRepo;
+    }
+
+    private List<MessageText> page(long after, Pageable pageable) {
+        return stored.stream().filter(message -> message.getId() > after).limit(pageable.getPageSize()).toList();
+    }
+
+    private static MessageText text(long id, String content) {
+        return new MessageText(id, 10L, content);
+    }
+
+    private static Message message(Long id, Long roomId, String content) {
+        Chatroom room = new Chatroom();
+        room.setId(roomId);
+        return new Message(id, room, content, LocalDateTime.now(), new UserDTO("sender", "Sender"));
+    }
+
+    private static List<Long> ids(List<MessageSearchIndex.Hit> hits) {
+        return hits.stream().map(MessageSearchIndex.Hit::getMessageId).toList();
+    }
+}
@@ -0,0 +1,144 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.UserDTO;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageWriteBehindQueueTests {
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void queuedMessagesAreWrittenAndAnnounced() throws Exception {
+        RecordingWriter writer = new RecordingWriter(0);
+        List<Message> announced = new CopyOnWriteArrayList<>();
+        MessageWriteBehindQueue queue = queue(writer, announced);
+        List<Message> messages = messages(1000, -1);
+        for (Message message : messages) {
+            assertTrue(queue.enqueue(message));
+        }
+        queue.stop();
+
+        assertEquals(messages, writer.written);
+        assertEquals(messages, announced);
+        for (Message message : messages) {
+            assertNotNull(message.getId());
+        }
+        assertEquals(0, queue.getDeadLetterCount());
+    }
+
+    @Test
+    void failedBatchIsRetriedInsteadOfDropped() throws Exception {
+        RecordingWriter writer = new RecordingWriter(2);
+        MessageWriteBehindQueue queue = queue(writer, new CopyOnWriteArrayList<>());
+        List<Message> messages = messages(10, -1);
+        for (Message message : messages) {
+            queue.enqueue(message);
+        }
+        queue.stop();
+
+        assertEquals(messages, writer.written);
+        assertEquals(0, queue.getDeadLetterCount());
+        assertFalse(Files.exists(tempDir.resolve("dead-letters.jsonl")));
+    }
+
+    @Test
+    void messageThatKeepsFailingIsDeadLetteredAndTheRestAreWritten() throws Exception {
+        RecordingWriter writer = new RecordingWriter(0);
+        List<Message> announced = new CopyOnWriteArrayList<>();
+        MessageWriteBehindQueue queue = queue(writer, announced);
+        List<Message> messages = messages(10, 4);
+        for (Message message : messages) {
+            queue.enqueue(message);
+        }
+        queue.stop();
+
+        List<Message> expected = new ArrayList<>(messages);
+        Message poison = expected.remove(4);
+        assertEquals(expected, writer.written);
+        assertEquals(expected, announced);
+        assertEquals(1, queue.getDeadLetterCount());
+        assertNull(poison.getId());
+        List<String> lines = Files.readAllLines(tempDir.resolve("dead-letters.jsonl"));
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"content\":\"poison\""));
+        assertTrue(lines.get(0).contains("\"roomId\":7"));
+    }
+
+    private MessageWriteBehindQueue queue(MessageBatchWriter writer, List<Message> announced) {
+        MessageWriteBehindQueue queue = new MessageWriteBehindQueue();
+        ReflectionTestUtils.setField(queue, "batchWriter", writer);
+        ReflectionTestUtils.setField(queue, "eventPublisher", (ApplicationEventPublisher) event -> {
+            // Only the queued flag gets the messages published to their rooms
+            if (((MessagesPersistedEvent) event).isQueued()) {
+                announced.addAll(((MessagesPersistedEvent) event).getMessages());
+            }
+        });
+        ReflectionTestUtils.setField(queue, "enabled", true);
+        ReflectionTestUtils.setField(queue, "capacity", 10_000);
+        ReflectionTestUtils.setField(queue, "flushSize", 500);
+        ReflectionTestUtils.setField(queue, "flushIntervalMs", 20L);
+        ReflectionTestUtils.setField(queue, "offerTimeoutMs", 1000L);
+        ReflectionTestUtils.setField(queue, "maxRetries", 3);
+        ReflectionTestUtils.setField(queue, "retryBackoffMs", 1L);
+        ReflectionTestUtils.setField(queue, "deadLetterFile", tempDir.resolve("dead-letters.jsonl"));
+        queue.start();
+        return queue;
+    }
+
+    private static List<Message> messages(int count, int poisonIndex) {
+        Chatroom room = new Chatroom();
+        room.setId(7L);
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String content = i == poisonIndex ? "poison" : "message " + i;
+            messages.add(new Message(null, room, content, LocalDateTime.now(), new UserDTO("sender", "Sender")));
+        }
+        return messages;
+    }
+
+    /**
+     * Assigns IDs like the database would, after failing a number of times,
+     * and always rejects batches holding a message with the content "poison".
+     */
+    private static class RecordingWriter extends MessageBatchWriter {
+        private final List<Message> written = new CopyOnWriteArrayList<>();
+        private final AtomicInteger failuresLeft;
+        private final AtomicLong nextId = new AtomicLong(1);
+
+        private RecordingWriter(int failures) {
+            failuresLeft = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void writeAll(List<Message> messages) {
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new IllegalStateException("Connection reset");
+            }
+            for (Message message : messages) {
+                if ("poison".equals(message.getContent())) {
+                    throw new IllegalStateException("Data too long for column 'content'");
+                }
+            }
+            for (Message message : messages) {
+                message.setId(nextId.getAndIncrement());
+            }
+            written.addAll(messages);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.User;
+import com.example.demo.repository.ChatroomRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = "spring.datasource.url=jdbc:h2:mem:pair;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE")
+class PrivateChatroomTests {
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private ChatroomRepository chatroomRepo;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void concurrentRequestsForTheSamePairShareOneChatroom() throws Exception {
+        User alice = user("pair-alice");
+        User bob = user("pair-bob");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> roomIds = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            // Half of the requests name the pair the other way round
+            boolean aliceFirst = i % 2 == 0;
+            roomIds.add(executor.submit(() -> {
+                start.await();
+                return (aliceFirst ? chatService.getOrCreatePrivateChatroom(alice, bob)
+                        : chatService.getOrCreatePrivateChatroom(bob, alice)).getId();
+            }));
+        }
+        start.countDown();
+        Set<Long> distinct = new HashSet<>();
+        for (Future<Long> roomId : roomIds) {
+            distinct.add(roomId.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertEquals(1, distinct.size());
+        assertEquals(1, jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM chatroom WHERE pair_low = 'pair-alice' AND pair_high = 'pair-bob'", Integer.class));
+    }
+
+    @Test
+    void backfillFillsThePairOfLegacyChatrooms() {
+        User carol = user("legacy-carol");
+        User dave = user("legacy-dave");
+        // Chatrooms created before the pair columns existed, the second one a duplicate of the first
+        Long legacyId = insertLegacyChatroom(dave, carol);
+        Long duplicateId = insertLegacyChatroom(carol, dave);
+
+        chatService.backfillPrivateRoomPairs();
+
+        Chatroom legacy = chatroomRepo.findById(legacyId);
+        assertEquals("legacy-carol", legacy.getPairLow());
+        assertEquals("legacy-dave", legacy.getPairHigh());
+        assertNull(chatroomRepo.findById(duplicateId).getPairLow());
+        assertEquals(legacyId, chatService.findOurChatroom(carol, dave).getId());
+        assertEquals(legacyId, chatService.getOrCreatePrivateChatroom(dave, carol).getId());
+    }
+
+    private Long insertLegacyChatroom(User participant1, User participant2) {
+        jdbcTemplate.update("INSERT INTO chatroom (is_group, participant1_id, participant1_name, participant2_id, participant2_name, last_modified) "
+                        + "VALUES (FALSE, ?, ?, ?, ?, CURRENT_TIMESTAMP)",
+                participant1.getId(), participant1.getName(), participant2.getId(), participant2.getName());
+        return jdbcTemplate.queryForObject("SELECT MAX(id) FROM chatroom", Long.class);
+    }
+
+    private static User user(String id) {
+        return new User(id, id, "secret1", id + "@example.com", null);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.MessageView;
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.response.MessagePage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RecentMessageCacheTests {
+    private static final int PER_ROOM = 5;
+
+    private final List<MessageView> stored = new ArrayList<>(); // The messages of the room in the database, oldest first
+    private final MessageRepository messageRepo = mock(MessageRepository.class);
+    private final Chatroom room = new Chatroom();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private Duration reloadAfter = Duration.ofMinutes(5);
+
+    @Test
+    void firstPageIsLoadedOnceAndThenServedFromMemory() {
+        store(1, 3);
+        RecentMessageCache cache = cache();
+
+        assertEquals("[3, 2, 1] null false", ids(cache.getPage(room, null, 3)));
+        assertEquals("[3, 2] 2 true", ids(cache.getPage(room, null, 2)));
+        verify(messageRepo, times(1)).findLatestViewsByRoomId(anyLong(), any());
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    void persistedMessagesAreAppendedAndTheOldestDropped() {
+        store(1, 3);
+        RecentMessageCache cache = cache();
+        cache.getPage(room, null, 1);
+
+        cache.onMessagesPersisted(new MessagesPersistedEvent(List.of(message(4L), message(5L), message(6L), message(7L))));
+        assertEquals("[7, 6, 5, 4, 3] 3 true", ids(cache.getPage(room, null, 5)));
+        // Messages 1 and 2 were dropped, so a page reaching back to them is read from the database
+        assertNull(cache.getPage(room, 1L, 5));
+        assertEquals("[7, 6, 5, 4] null false", ids(cache.getPage(room, 3L, 5)));
+        verify(messageRepo, times(1)).findLatestViewsByRoomId(anyLong(), any());
+    }
+
+    @Test
+    void messagesWithoutIdsAreNotAppended() {
+        store(1, 2);
+        RecentMessageCache cache = cache();
+        cache.getPage(room, null, 1);
+
+        cache.onMessagesPersisted(new MessagesPersistedEvent(List.of(message(null))));
+        assertEquals("[2, 1] null false", ids(cache.getPage(room, null, 5)));
+    }
+
+    @Test
+    void pagesTheBufferCannotCoverAreMisses() {
+        store(1, 8);
+        RecentMessageCache cache = cache();
+
+        assertEquals("[8, 7, 6, 5, 4] 4 true", ids(cache.getPage(room, null, 5)));
+        assertNull(cache.getPage(room, null, PER_ROOM + 1));
+        assertNull(cache.getPage(room, 2L, 3));
+        assertEquals("[8, 7, 6] null false", ids(cache.getPage(room, 5L, 3)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0.5, meterRegistry.get("chat.recent-messages.hit.ratio").gauge().value());
+    }
+
+    @Test
+    void roomsAreLoadedAgainAfterReloadAfterEvenWhileAppendedTo() throws InterruptedException {
+        store(1, 2);
+        reloadAfter = Duration.ofMillis(200);
+        RecentMessageCache cache = cache();
+        cache.getPage(room, null, 1);
+
+        // Appended from another node's announcement, while message 4 was never announced here
+        store(3, 4);
+        cache.onMessagesPersisted(new MessagesPersistedEvent(List.of(message(3L)), false, true));
+        assertEquals("[3, 2, 1] null false", ids(cache.getPage(room, null, 5)));
+        Thread.sleep(300);
+
+        assertEquals("[4, 3, 2, 1] null false", ids(cache.getPage(room, null, 5)));
+        verify(messageRepo, times(2)).findLatestViewsByRoomId(anyLong(), any());
+    }
+
+    private RecentMessageCache cache() {
+        room.setId(7L);
+        when(messageRepo.findLatestViewsByRoomId(anyLong(), any())).thenAnswer(invocation -> {
+            int limit = invocation.<Pageable>getArgument(1).getPageSize();
+            List<MessageView> newestFirst = new ArrayList<>();
+            for (int i = stored.size() - 1; i >= 0 && newestFirst.size() < limit; i--) {
+                newestFirst.add(stored.get(i));
+            }
+            return newestFirst;
+        });
+        RecentMessageCache cache = new RecentMessageCache();
+        ReflectionTestUtils.setField(cache, "messageRepo", messageRepo);
+        ReflectionTestUtils.setField(cache, "perRoom", PER_ROOM);
+        ReflectionTestUtils.setField(cache, "maximumBytes", 1_000_000L);
+        ReflectionTestUtils.setField(cache, "reloadAfter", reloadAfter);
+        ReflectionTestUtils.setField(cache, "meterRegistry", meterRegistry);
+        cache.init();
+        return cache;
+    }
+
+    private void store(long firstId, long lastId) {
+        for (long id = firstId; id <= lastId; id++) {
+            stored.add(MessageView.of(message(id)));
+        }
+    }
+
+    private Message message(Long id) {
+        return new Message(id, room, "message " + id, LocalDateTime.now(), new UserDTO("sender", "Sender"));
+    }
+
+    private static String ids(MessagePage page) {
+        return page.getMessages().stream().map(MessageView::getId).toList() + " " + page.getNextCursor() + " " + page.isHasMore();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignedTokenServiceTests {
+    private static final String KEYS = "k1:" + Base64.getEncoder().encodeToString("first-secret-of-32-bytes-or-more".getBytes(StandardCharsets.UTF_8))
+            + ",k2:" + Base64.getEncoder().encodeToString("second-secret-of-32-bytes-or-mor".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    void tokenIsValidOnlyForItsUserAndUnmodified() {
+        SignedTokenService tokens = new SignedTokenService(KEYS, "", Duration.ofHours(1), 1 << 16);
+        String token = tokens.issue("alice");
+        assertTrue(tokens.verify("alice", token));
+        assertFalse(tokens.verify("bob", token));
+        assertFalse(tokens.verify("alice", token.substring(0, token.length() - 1) + (token.endsWith("A") ? "B" : "A")));
+        assertFalse(tokens.verify("alice", token.replaceFirst("\\.\\d", ".9")));
+        assertFalse(tokens.verify("alice", "not-a-token"));
+        assertFalse(tokens.verify("alice", null));
+
+        String unicode = tokens.issue("用户-1");
+        assertTrue(tokens.verify("用户-1", unicode));
+        assertFalse(tokens.verify("用户-2", unicode));
+    }
+
+    @Test
+    void nodesSharingKeysAcceptEachOthersTokens() {
+        String token = new SignedTokenService(KEYS, "", Duration.ofHours(1), 1 << 16).issue("alice");
+        assertTrue(new SignedTokenService(KEYS, "", Duration.ofHours(1), 1 << 16).verify("alice", token));
+        assertFalse(new SignedTokenService("", "", Duration.ofHours(1), 1 << 16).verify("alice", token));
+    }
+
+    @Test
+    void expiredTokenIsRejected() {
+        SignedTokenService tokens = new SignedTokenService(KEYS, "", Duration.ZERO, 1 << 16);
+        assertFalse(tokens.verify("alice", tokens.issue("alice")));
+    }
+
+    @Test
+    void rotatedKeyKeepsVerifyingUntilRemoved() {
+        SignedTokenService tokens = new SignedTokenService(KEYS, "k1", Duration.ofHours(1), 1 << 16);
+        String oldToken = tokens.issue("alice");
+        tokens.addKey("k3", "third-secret-of-32-bytes-or-more".getBytes(StandardCharsets.UTF_8), true);
+        String newToken = tokens.issue("alice");
+        assertTrue(newToken.startsWith("k3."));
+        assertTrue(tokens.verify("alice", oldToken));
+        assertTrue(tokens.removeKey("k1"));
+        assertFalse(tokens.verify("alice", oldToken));
+        assertTrue(tokens.verify("alice", newToken));
+        assertFalse(tokens.removeKey("k3"));
+    }
+
+    @Test
+    void revokedTokenIsRejectedButOthersAreNot() {
+        SignedTokenService tokens = new SignedTokenService(KEYS, "", Duration.ofHours(1), 1 << 16);
+        String phone = tokens.issue("alice");
+        assertTrue(tokens.revoke("alice", phone));
+        assertFalse(tokens.verify("alice", phone));
+        assertFalse(tokens.revoke("alice", phone));
+        // Issued in the same second, but still a different token
+        String laptop = tokens.issue("alice");
+        assertNotEquals(phone, laptop);
+        assertTrue(tokens.verify("alice", laptop));
+    }
+}
@@ -0,0 +1,157 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.service.FriendGraph;
+import com.example.demo.service.FriendshipChangedEvent;
+import com.example.demo.service.MessagesPersistedEvent;
+import com.example.demo.service.SignedTokenService;
+import com.example.demo.service.TokenRevokedEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class ClusterCacheSyncTests {
+    private static final String KEYS = "k1:" + Base64.getEncoder().encodeToString("first-secret-of-32-bytes-or-more".getBytes(StandardCharsets.UTF_8));
+
+    private final LinkedClusterBus busA = new LinkedClusterBus();
+    private final LinkedClusterBus busB = new LinkedClusterBus();
+    private final Node nodeA = new Node(busA);
+    private final Node nodeB = new Node(busB);
+
+    @BeforeEach
+    void link() {
+        busA.peer = busB;
+        busB.peer = busA;
+    }
+
+    @AfterEach
+    void stop() {
+        nodeA.sync.stop();
+        nodeB.sync.stop();
+    }
+
+    @Test
+    void messagesPersistedOnOneNodeAreReadBackAndAppliedOnTheOther() throws Exception {
+        Chatroom room = new Chatroom();
+        room.setId(1L);
+        when(nodeB.messageRepo.findAllByIdIn(any())).thenAnswer(invocation -> {
+            List<Message> stored = new ArrayList<>();
+            for (Long id : invocation.<Collection<Long>>getArgument(0)) {
+                stored.add(0, message(room, id));
+            }
+            return stored;
+        });
+
+        nodeA.sync.onMessagesPersisted(new MessagesPersistedEvent(List.of(message(room, 1L), message(room, 2L), message(room, null)), true));
+
+        MessagesPersistedEvent applied = nodeB.published.poll(5, TimeUnit.SECONDS);
+        assertNotNull(applied);
+        assertTrue(applied.isRemote());
+        assertFalse(applied.isQueued());
+        assertEquals(List.of(1L, 2L), applied.getMessages().stream().map(Message::getId).toList());
+        verify(nodeB.messageRepo).findAllByIdIn(List.of(1L, 2L));
+
+        // Remote messages are not announced again
+        nodeB.sync.onMessagesPersisted(applied);
+        assertNull(nodeA.published.poll(200, TimeUnit.MILLISECONDS));
+        verify(nodeA.messageRepo, never()).findAllByIdIn(any());
+    }
+
+    @Test
+    void friendshipChangesDropTheUsersFriendsOnTheOtherNode() {
+        nodeA.sync.onFriendshipChanged(new FriendshipChangedEvent("alice"));
+
+        verify(nodeB.friendGraph).invalidate("alice");
+        verify(nodeA.friendGraph, never()).invalidate(any());
+    }
+
+    @Test
+    void tokenRevokedOnOneNodeIsRejectedOnTheOther() {
+        String phone = nodeA.tokens.issue("alice");
+        String laptop = nodeA.tokens.issue("alice");
+        assertTrue(nodeB.tokens.verify("alice", phone));
+
+        assertTrue(nodeA.tokens.revoke("alice", phone));
+        assertFalse(nodeB.tokens.verify("alice", phone));
+        assertTrue(nodeB.tokens.verify("alice", laptop));
+
+        // And the other way round
+        assertTrue(nodeB.tokens.revoke("alice", laptop));
+        assertFalse(nodeA.tokens.verify("alice", laptop));
+    }
+
+    private static Message message(Chatroom room, Long id) {
+        return new Message(id, room, "message " + id, LocalDateTime.now(), new UserDTO("sender", "Sender"));
+    }
+
+    /**
+     * One node's ClusterCacheSync, with the events it publishes locally.
+     */
+    private static class Node {
+        private final MessageRepository messageRepo = mock(MessageRepository.class);
+        private final FriendGraph friendGraph = mock(FriendGraph.class);
+        private final SignedTokenService tokens = new SignedTokenService(KEYS, "", Duration.ofHours(1), 1 << 16);
+        private final BlockingQueue<MessagesPersistedEvent> published = new LinkedBlockingQueue<>();
+        private final ClusterCacheSync sync = new ClusterCacheSync();
+
+        private Node(ClusterBus clusterBus) {
+            ReflectionTestUtils.setField(sync, "clusterBus", clusterBus);
+            ReflectionTestUtils.setField(sync, "messageRepo", messageRepo);
+            ReflectionTestUtils.setField(sync, "friendGraph", friendGraph);
+            ApplicationEventPublisher eventPublisher = event -> {
+                if (event instanceof MessagesPersistedEvent persisted) {
+                    published.add(persisted);
+                } else if (event instanceof TokenRevokedEvent revoked) {
+                    sync.onTokenRevoked(revoked);
+                }
+            };
+            ReflectionTestUtils.setField(sync, "signedTokenService", tokens);
+            ReflectionTestUtils.setField(sync, "eventPublisher", eventPublisher);
+            ReflectionTestUtils.setField(tokens, "eventPublisher", eventPublisher);
+            sync.start();
+        }
+    }
+
+    /**
+     * A cluster bus that hands every broadcast straight to the handlers of one peer.
+     */
+    private static class LinkedClusterBus extends LocalClusterBus {
+        private final Map<String, EventHandler> handlers = new ConcurrentHashMap<>();
+        private LinkedClusterBus peer;
+
+        @Override
+        public void broadcast(String topic, byte[] payload) {
+            EventHandler handler = peer.handlers.get(topic);
+            if (handler != null) {
+                handler.onEvent(payload);
+            }
+        }
+
+        @Override
+        public void subscribe(String topic, EventHandler handler) {
+            handlers.put(topic, handler);
+        }
+    }
+}
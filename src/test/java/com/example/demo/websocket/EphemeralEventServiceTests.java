@@ -0,0 +1,139 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.UserDTO;
+import com.example.demo.repository.ParticipantRepository;
+import com.example.demo.service.RoomMembershipCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.*;
+
+class EphemeralEventServiceTests {
+    private static final UserDTO ALICE = new UserDTO("alice", "Alice");
+    private static final UserDTO BOB = new UserDTO("bob", "Bob");
+    private static final Long ROOM_ID = 10L;
+
+    private final ParticipantRepository participantRepo = mock(ParticipantRepository.class);
+    private final WebsocketSessionManager sessionManager = new WebsocketSessionManager();
+    private final RoomMembershipCache membershipCache = new RoomMembershipCache();
+    private final EphemeralEventService service = new EphemeralEventService();
+
+    @BeforeEach
+    void startService() {
+        when(participantRepo.findRoomIdsByUserId(any())).thenReturn(List.of(ROOM_ID));
+        when(participantRepo.findParticipantsByRoomId(anyLong())).thenReturn(List.of(ALICE, BOB));
+        when(participantRepo.findParticipantsByRoomIdIn(any())).thenAnswer(invocation -> {
+            List<Object[]> rows = new ArrayList<>();
+            for (Long roomId : invocation.<Collection<Long>>getArgument(0)) {
+                rows.add(new Object[]{roomId, ALICE});
+                rows.add(new Object[]{roomId, BOB});
+            }
+            return rows;
+        });
+        ReflectionTestUtils.setField(membershipCache, "participantRepo", participantRepo);
+        ReflectionTestUtils.setField(membershipCache, "maximumMembers", 1000L);
+        ReflectionTestUtils.setField(membershipCache, "maximumUsers", 1000L);
+        ReflectionTestUtils.setField(membershipCache, "expireAfterAccess", Duration.ofMinutes(30));
+        ReflectionTestUtils.setField(membershipCache, "expireAfterWrite", Duration.ofMinutes(10));
+        membershipCache.init();
+
+        ReflectionTestUtils.setField(service, "websocketSessionManager", sessionManager);
+        ReflectionTestUtils.setField(service, "membershipCache", membershipCache);
+        ReflectionTestUtils.setField(service, "notificationDispatcher", mock(NotificationDispatcher.class));
+        ReflectionTestUtils.setField(service, "windowMs", 1000L);
+        // Events stay buffered, so the tests can look at them
+        ReflectionTestUtils.setField(service, "flushIntervalMs", 60_000L);
+        ReflectionTestUtils.setField(service, "maxPendingPerUser", 100);
+        ReflectionTestUtils.setField(service, "debounceMs", 200L);
+        service.start();
+    }
+
+    @AfterEach
+    void stopService() {
+        service.stop();
+    }
+
+    @Test
+    void presenceAndTypingAreServedFromTheCacheOnceUsersConnected() throws InterruptedException {
+        sessionManager.addSession("bob-session", "bob");
+        service.connected("bob");
+        sessionManager.addSession("alice-session", "alice");
+        service.connected("alice");
+        await(() -> pendingFor("bob").size() == 1);
+
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            accepted += service.typing(ALICE, ROOM_ID) ? 1 : 0;
+        }
+        assertEquals(1, accepted);
+        sessionManager.deleteSession("alice-session");
+        service.disconnected("alice");
+        await(() -> pendingFor("bob").size() == 3);
+
+        List<EphemeralEventService.EphemeralEvent> events = pendingFor("bob");
+        assertEquals(List.of("presence", "typing", "presence"), events.stream().map(EphemeralEventService.EphemeralEvent::getType).toList());
+        assertEquals(true, events.get(0).getOnline());
+        assertEquals(false, events.get(2).getOnline());
+        // Each user's rooms and the room's members were read once, when they first connected
+        verify(participantRepo, times(1)).findRoomIdsByUserId("alice");
+        verify(participantRepo, times(1)).findRoomIdsByUserId("bob");
+        verify(participantRepo, times(1)).findParticipantsByRoomIdIn(any());
+        verify(participantRepo, never()).findParticipantsByRoomId(anyLong());
+    }
+
+    @Test
+    void typingInARoomWhoseMembersAreNotCachedIsDroppedWhileTheyLoad() throws InterruptedException {
+        ReflectionTestUtils.setField(service, "windowMs", 0L);
+        sessionManager.addSession("bob-session", "bob");
+
+        assertFalse(service.typing(ALICE, ROOM_ID));
+        await(() -> membershipCache.getIfPresent(ROOM_ID) != null);
+        assertTrue(service.typing(ALICE, ROOM_ID));
+
+        assertEquals(1, pendingFor("bob").size());
+        assertFalse(service.typing(new UserDTO("mallory", "Mallory"), ROOM_ID));
+        verify(participantRepo, times(1)).findParticipantsByRoomId(ROOM_ID);
+    }
+
+    @Test
+    void userWhoReconnectsWithinTheDebounceIsNotReportedOffline() throws InterruptedException {
+        sessionManager.addSession("bob-session", "bob");
+        sessionManager.addSession("alice-session", "alice");
+        service.connected("alice");
+        await(() -> pendingFor("bob").size() == 1);
+
+        sessionManager.deleteSession("alice-session");
+        service.disconnected("alice");
+        sessionManager.addSession("alice-session-2", "alice");
+        service.connected("alice");
+        Thread.sleep(400);
+
+        assertEquals(1, pendingFor("bob").size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<EphemeralEventService.EphemeralEvent> pendingFor(String userId) {
+        Map<String, List<EphemeralEventService.EphemeralEvent>> pending =
+                (Map<String, List<EphemeralEventService.EphemeralEvent>>) ReflectionTestUtils.getField(service, "pending");
+        return pending.getOrDefault(userId, List.of());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,238 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.User;
+import com.example.demo.model.UserDTO;
+import com.example.demo.service.AccountService;
+import com.example.demo.service.ChatService;
+import com.example.demo.service.MessageWriteBehindQueue;
+import com.example.demo.service.MessagesPersistedEvent;
+import com.example.demo.service.RoomCursorBuffer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.messaging.DefaultSimpUserRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class NotificationDispatcherTests {
+    private NotificationDispatcher dispatcher;
+
+    @AfterEach
+    void stop() throws InterruptedException {
+        dispatcher.stop();
+    }
+
+    @Test
+    void batchMessagesStayInOrderWithTheirRoomsWhileAnotherStripeIsBusy() throws Exception {
+        User sender = new User("sender", "Sender", "secret1", "sender@example.com", null);
+        UserDTO recipient = new UserDTO("recipient", "Recipient");
+        // Rooms 1 and 2 are handled by different stripes
+        Chatroom busy = room(1L);
+        Chatroom quiet = room(2L);
+        CountDownLatch release = new CountDownLatch(1);
+        ChatService chatService = mock(ChatService.class);
+        when(chatService.getAllParticipantExceptSender(any(), any())).thenAnswer(invocation -> {
+            if (invocation.<Chatroom>getArgument(0) == busy) {
+                release.await(10, TimeUnit.SECONDS);
+            }
+            return List.of(recipient);
+        });
+        List<String> frames = new CopyOnWriteArrayList<>();
+        dispatcher = dispatcher(chatService, new LocalClusterBus(), frames, recipient.getId());
+
+        dispatcher.publish(busy, sender, message(busy, 10L, "busy-1"));
+        dispatcher.publishAll(sender, List.of(message(busy, 11L, "busy-2"), message(quiet, 12L, "quiet-1")));
+        dispatcher.publish(quiet, sender, message(quiet, 13L, "quiet-2"));
+        // The quiet room's notifications must not wait for the busy room
+        awaitFrames(frames, 2);
+        assertTrue(frames.get(0).contains("quiet-1"), frames.toString());
+        assertTrue(frames.get(1).contains("quiet-2"), frames.toString());
+
+        release.countDown();
+        awaitFrames(frames, 4);
+        assertTrue(frames.get(2).contains("busy-1"), frames.toString());
+        assertTrue(frames.get(3).contains("busy-2"), frames.toString());
+    }
+
+    @Test
+    void recipientWithSessionsOnTwoNodesGetsTheNotificationOnBoth() throws Exception {
+        User sender = new User("sender", "Sender", "secret1", "sender@example.com", null);
+        UserDTO recipient = new UserDTO("recipient", "Recipient");
+        Chatroom room = room(1L);
+        ChatService chatService = mock(ChatService.class);
+        when(chatService.getAllParticipantExceptSender(any(), any())).thenReturn(List.of(recipient));
+        RoomCursorBuffer roomCursorBuffer = mock(RoomCursorBuffer.class);
+        List<String> frames = new CopyOnWriteArrayList<>();
+        RecordingClusterBus clusterBus = new RecordingClusterBus(Map.of(recipient.getId(), Set.of("node-b")));
+        dispatcher = dispatcher(chatService, clusterBus, frames, recipient.getId());
+        ReflectionTestUtils.setField(dispatcher, "roomCursorBuffer", roomCursorBuffer);
+
+        Message message = message(room, 10L, "hello");
+        dispatcher.publish(room, sender, message);
+        awaitFrames(frames, 1);
+        assertTrue(frames.get(0).contains("hello"));
+        awaitFrames(clusterBus.forwarded, 1);
+        assertEquals("node-b:[recipient]", clusterBus.forwarded.get(0));
+
+        dispatcher.publishAll(sender, List.of(message(room, 11L, "batch")));
+        awaitFrames(frames, 2);
+        assertTrue(frames.get(1).contains("batch"));
+        awaitFrames(clusterBus.forwarded, 2);
+        assertEquals("node-b:[recipient]", clusterBus.forwarded.get(1));
+        verify(roomCursorBuffer, never()).missed(any(), any());
+    }
+
+    @Test
+    void queuedMessagesArePublishedOnceWrittenWithTheirIds() throws Exception {
+        User sender = new User("sender", "Sender", "secret1", "sender@example.com", null);
+        UserDTO recipient = new UserDTO("recipient", "Recipient");
+        Chatroom room = room(1L);
+        ChatService chatService = mock(ChatService.class);
+        when(chatService.getAllParticipantExceptSender(any(), any())).thenReturn(List.of(recipient));
+        RoomCursorBuffer roomCursorBuffer = mock(RoomCursorBuffer.class);
+        List<String> frames = new CopyOnWriteArrayList<>();
+        dispatcher = dispatcher(chatService, new LocalClusterBus(), frames, recipient.getId());
+        ReflectionTestUtils.setField(dispatcher, "roomCursorBuffer", roomCursorBuffer);
+        MessageWriteBehindQueue writeBehindQueue = new MessageWriteBehindQueue();
+        ReflectionTestUtils.setField(writeBehindQueue, "enabled", true);
+        ReflectionTestUtils.setField(dispatcher, "writeBehindQueue", writeBehindQueue);
+
+        Message queued = message(room, null, "queued");
+        dispatcher.publish(room, sender, queued);
+        queued.setId(10L);
+        dispatcher.onMessagesPersisted(new MessagesPersistedEvent(List.of(message(room, 9L, "sent directly"))));
+        dispatcher.onMessagesPersisted(new MessagesPersistedEvent(List.of(queued), true));
+
+        awaitFrames(frames, 1);
+        assertTrue(frames.get(0).contains("\"messageId\":10"), frames.get(0));
+        assertTrue(frames.get(0).contains("\"senderName\":\"Sender\""), frames.get(0));
+        verify(roomCursorBuffer, timeout(5000)).delivered(recipient.getId(), room.getId(), 10L);
+    }
+
+    @Test
+    void onlyTheNodeThatDeliversANotificationRecordsItInTheRoomCursor() throws Exception {
+        User sender = new User("sender", "Sender", "secret1", "sender@example.com", null);
+        UserDTO local = new UserDTO("recipient", "Recipient");
+        UserDTO remote = new UserDTO("remote", "Remote");
+        Chatroom room = room(1L);
+        ChatService chatService = mock(ChatService.class);
+        when(chatService.getAllParticipantExceptSender(any(), any())).thenReturn(List.of(local, remote));
+        RoomCursorBuffer roomCursorBuffer = mock(RoomCursorBuffer.class);
+        List<String> frames = new CopyOnWriteArrayList<>();
+        RecordingClusterBus clusterBus = new RecordingClusterBus(Map.of(remote.getId(), Set.of("node-b")));
+        dispatcher = dispatcher(chatService, clusterBus, frames, local.getId());
+        ReflectionTestUtils.setField(dispatcher, "roomCursorBuffer", roomCursorBuffer);
+
+        dispatcher.publish(room, sender, message(room, 10L, "hello"));
+        awaitFrames(clusterBus.forwarded, 1);
+        assertEquals("node-b:[remote]", clusterBus.forwarded.get(0));
+        verify(roomCursorBuffer, timeout(5000)).delivered(local.getId(), room.getId(), 10L);
+        verify(roomCursorBuffer, never()).delivered(eq(remote.getId()), any(), any());
+        verify(roomCursorBuffer, never()).missed(eq(remote.getId()), any());
+
+        // A frame forwarded to this node is recorded here, as delivered or, for a user with no session left, as missed
+        byte[] payload = ("[{\"roomId\":1,\"senderName\":\"Sender\",\"content\":\"a\",\"messageId\":20},"
+                + "{\"roomId\":2,\"senderName\":\"Sender\",\"content\":\"b\",\"messageId\":21}]").getBytes(StandardCharsets.UTF_8);
+        clusterBus.forwardHandler.onForward(List.of(local.getId(), "gone"), NotificationDispatcher.USER_NOTIFICATION_DESTINATION, payload);
+        awaitFrames(frames, 2);
+        verify(roomCursorBuffer).delivered(local.getId(), 1L, 20L);
+        verify(roomCursorBuffer).delivered(local.getId(), 2L, 21L);
+        verify(roomCursorBuffer).missed(eq("gone"), argThat(message -> message.getId() == 20L && message.getRoom().getId() == 1L));
+        verify(roomCursorBuffer).missed(eq("gone"), argThat(message -> message.getId() == 21L && message.getRoom().getId() == 2L));
+    }
+
+    private static NotificationDispatcher dispatcher(ChatService chatService, ClusterBus clusterBus, List<String> frames, String onlineUserId) {
+        SimpMessagingTemplate messagingTemplate = new SimpMessagingTemplate((message, timeout) -> {
+            frames.add(new String((byte[]) message.getPayload(), StandardCharsets.UTF_8));
+            return true;
+        });
+        messagingTemplate.setMessageConverter(new MappingJackson2MessageConverter());
+        AccountService accountService = new AccountService();
+        accountService.login(onlineUserId);
+        WebsocketSessionManager sessionManager = new WebsocketSessionManager();
+        sessionManager.addSession("session", onlineUserId);
+
+        NotificationDispatcher dispatcher = new NotificationDispatcher();
+        ReflectionTestUtils.setField(dispatcher, "accountService", accountService);
+        ReflectionTestUtils.setField(dispatcher, "chatService", chatService);
+        ReflectionTestUtils.setField(dispatcher, "websocketSessionManager", sessionManager);
+        ReflectionTestUtils.setField(dispatcher, "roomCursorBuffer", mock(RoomCursorBuffer.class));
+        ReflectionTestUtils.setField(dispatcher, "writeBehindQueue", new MessageWriteBehindQueue());
+        ReflectionTestUtils.setField(dispatcher, "clusterBus", clusterBus);
+        ReflectionTestUtils.setField(dispatcher, "messagingTemplate", messagingTemplate);
+        ReflectionTestUtils.setField(dispatcher, "simpUserRegistry", new DefaultSimpUserRegistry());
+        ReflectionTestUtils.setField(dispatcher, "stripeCount", 4);
+        ReflectionTestUtils.setField(dispatcher, "queueCapacity", 100);
+        dispatcher.start();
+        return dispatcher;
+    }
+
+    private static Chatroom room(Long id) {
+        Chatroom room = new Chatroom();
+        room.setId(id);
+        room.setGroup(true);
+        return room;
+    }
+
+    private static Message message(Chatroom room, Long id, String content) {
+        return new Message(id, room, content, LocalDateTime.now(), new UserDTO("sender", "Sender"));
+    }
+
+    private static void awaitFrames(List<String> frames, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (frames.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, frames.size(), frames.toString());
+    }
+
+    /**
+     * A cluster bus with fixed remote sessions that records every forward as "node:users", and keeps the forward handler.
+     */
+    private static class RecordingClusterBus extends LocalClusterBus {
+        private final Map<String, Set<String>> remoteNodes;
+        private final List<String> forwarded = new CopyOnWriteArrayList<>();
+        private volatile ForwardHandler forwardHandler;
+
+        private RecordingClusterBus(Map<String, Set<String>> remoteNodes) {
+            this.remoteNodes = remoteNodes;
+        }
+
+        @Override
+        public Set<String> getRemoteNodes(String userId) {
+            return remoteNodes.getOrDefault(userId, Set.of());
+        }
+
+        @Override
+        public void forward(String nodeId, Collection<String> userIds, String destination, byte[] payload) {
+            forwarded.add(nodeId + ":" + userIds);
+        }
+
+        @Override
+        public void setForwardHandler(ForwardHandler handler) {
+            forwardHandler = handler;
+        }
+    }
+}
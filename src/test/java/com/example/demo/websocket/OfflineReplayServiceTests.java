@@ -0,0 +1,115 @@
+package com.example.demo.websocket;
+
+import com.example.demo.model.Chatroom;
+import com.example.demo.model.Message;
+import com.example.demo.model.Participant;
+import com.example.demo.model.RoomCursor;
+import com.example.demo.model.User;
+import com.example.demo.repository.ChatroomRepository;
+import com.example.demo.repository.ParticipantRepository;
+import com.example.demo.repository.RoomCursorRepository;
+import com.example.demo.service.AccountService;
+import com.example.demo.service.ChatService;
+import com.example.demo.service.RoomCursorBuffer;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest(properties = {
+        "spring.datasource.url=jdbc:h2:mem:replay;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,VALUE;DB_CLOSE_DELAY=-1;DB_CLOSE_ON_EXIT=FALSE",
+        "chat.write-behind.enabled=true",
+        "chat.room-cursor.flush-interval-ms=60000"})
+class OfflineReplayServiceTests {
+    @Autowired
+    private AccountService accountService;
+
+    @Autowired
+    private ChatService chatService;
+
+    @Autowired
+    private NotificationDispatcher notificationDispatcher;
+
+    @Autowired
+    private OfflineReplayService offlineReplayService;
+
+    @Autowired
+    private WebsocketSessionManager websocketSessionManager;
+
+    @Autowired
+    private RoomCursorBuffer roomCursorBuffer;
+
+    @Autowired
+    private RoomCursorRepository roomCursorRepo;
+
+    @Autowired
+    private ChatroomRepository chatroomRepo;
+
+    @Autowired
+    private ParticipantRepository participantRepo;
+
+    @Test
+    void messagesMissedBeforeALiveDeliveryAreReplayed() throws Exception {
+        User sender = new User("replay-sender", "Sender", "secret1", "sender@example.com", null);
+        User reader = new User("replay-reader", "Reader", "secret1", "reader@example.com", null);
+        accountService.createUser(sender);
+        accountService.createUser(reader);
+        Chatroom room = new Chatroom();
+        room.setGroup(true);
+        room.setRoomName("replay");
+        room.setLastModified(LocalDateTime.now());
+        chatroomRepo.save(room);
+        participantRepo.save(new Participant(null, room, sender.toDTO()));
+        participantRepo.save(new Participant(null, room, reader.toDTO()));
+
+        // The reader is offline; with write-behind the messages are fanned out once written
+        List<Message> missed = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Message message = chatService.sendMessage(sender, room, "missed " + i);
+            notificationDispatcher.publish(room, sender, message);
+            missed.add(message);
+        }
+        await(() -> missed.stream().allMatch(message -> message.getId() != null));
+        await(() -> cursor(reader, room).getMissedFromMessageId() != null);
+        assertTrue(cursor(reader, room).getMissedFromMessageId() < missed.get(0).getId());
+
+        // Nothing is recorded while the reader has nowhere to receive the replay
+        assertEquals(0, offlineReplayService.replayNow(reader.getId()));
+        assertNotNull(cursor(reader, room).getMissedFromMessageId());
+
+        // A live message reaches the reader before the replay runs
+        accountService.login(reader.getId());
+        websocketSessionManager.addSession("replay-session", reader.getId());
+        Message live = chatService.sendMessage(sender, room, "live");
+        notificationDispatcher.publish(room, sender, live);
+        await(() -> live.getId() != null);
+        await(() -> live.getId().equals(cursor(reader, room).getLastDeliveredMessageId()));
+
+        // The missed messages are replayed, and the live one again
+        assertEquals(4, offlineReplayService.replayNow(reader.getId()));
+        assertNull(cursor(reader, room).getMissedFromMessageId());
+        assertEquals(0, offlineReplayService.replayNow(reader.getId()));
+        websocketSessionManager.deleteSession("replay-session");
+    }
+
+    private RoomCursor cursor(User user, Chatroom room) {
+        roomCursorBuffer.flushUser(user.getId());
+        RoomCursor cursor = roomCursorRepo.findByUserIdAndRoomId(user.getId(), room.getId());
+        return cursor != null ? cursor : new RoomCursor();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out");
+            Thread.sleep(20);
+        }
+    }
+}
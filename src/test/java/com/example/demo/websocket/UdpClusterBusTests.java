@@ -0,0 +1,170 @@
+package com.example.demo.websocket;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UdpClusterBusTests {
+    private static final byte[] SECRET = "cluster-secret".getBytes(StandardCharsets.UTF_8);
+
+    private final List<UdpClusterBus> nodes = new ArrayList<>();
+    private UdpClusterBus nodeA;
+    private UdpClusterBus nodeB;
+
+    @BeforeEach
+    void start() throws Exception {
+        nodeA = node("a", SECRET, List.of());
+        nodeB = node("b", SECRET, List.of(nodeA.getLocalAddress()));
+        nodeA.addPeer(nodeB.getLocalAddress());
+    }
+
+    @AfterEach
+    void stop() {
+        nodes.forEach(UdpClusterBus::close);
+    }
+
+    @Test
+    void frameSentOnOneNodeReachesUserOnAnother() throws Exception {
+        BlockingQueue<String> received = new ArrayBlockingQueue<>(1);
+        nodeB.setForwardHandler((userIds, destination, payload) ->
+                received.add(userIds + " " + destination + " " + new String(payload, StandardCharsets.UTF_8)));
+        nodeB.announce("alice", true);
+        awaitTrue(() -> nodeA.getRemoteNodes("alice").equals(Set.of("b")));
+
+        nodeA.forward("b", List.of("alice"), "/user/queue/notifications", "{\"content\":\"hi\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("[alice] /user/queue/notifications {\"content\":\"hi\"}", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void eventsReachTheHandlerOfTheirTopicOnOtherNodes() throws Exception {
+        BlockingQueue<String> received = new ArrayBlockingQueue<>(2);
+        nodeB.subscribe("greeting", payload -> received.add(new String(payload, StandardCharsets.UTF_8)));
+
+        nodeA.broadcast("unknown", "ignored".getBytes(StandardCharsets.UTF_8));
+        nodeA.broadcast("greeting", "hello".getBytes(StandardCharsets.UTF_8));
+        assertEquals("hello", received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void lastSessionClosingRemovesOwnership() throws Exception {
+        nodeB.announce("alice", true);
+        awaitTrue(() -> !nodeA.getRemoteNodes("alice").isEmpty());
+        nodeB.announce("alice", false);
+        awaitTrue(() -> nodeA.getRemoteNodes("alice").isEmpty());
+        assertTrue(nodeB.getRemoteNodes("alice").isEmpty());
+    }
+
+    @Test
+    void datagramsFromHostsThatAreNotPeersAreDropped() throws Exception {
+        // Knows the secret and sends to node a, but node a does not list it as a peer
+        UdpClusterBus stranger = node("stranger", SECRET, List.of(nodeA.getLocalAddress()));
+        stranger.announce("mallory", true);
+        nodeB.announce("alice", true);
+        awaitTrue(() -> !nodeA.getRemoteNodes("alice").isEmpty());
+        Thread.sleep(200);
+        assertTrue(nodeA.getRemoteNodes("mallory").isEmpty());
+    }
+
+    @Test
+    void datagramsWithABadSignatureAreDropped() throws Exception {
+        // A listed peer that signs with another secret
+        UdpClusterBus impostor = node("impostor", "another-secret".getBytes(StandardCharsets.UTF_8), List.of(nodeA.getLocalAddress()));
+        nodeA.addPeer(impostor.getLocalAddress());
+        impostor.announce("mallory", true);
+        nodeB.announce("alice", true);
+        awaitTrue(() -> !nodeA.getRemoteNodes("alice").isEmpty());
+        Thread.sleep(200);
+        assertTrue(nodeA.getRemoteNodes("mallory").isEmpty());
+    }
+
+    @Test
+    void replayedDatagramsAreDropped() throws Exception {
+        BlockingQueue<String> received = new ArrayBlockingQueue<>(10);
+        nodeA.setForwardHandler((userIds, destination, payload) -> received.add(new String(payload, StandardCharsets.UTF_8)));
+        try (DatagramSocket peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+            nodeA.addPeer((InetSocketAddress) peer.getLocalSocketAddress());
+            byte[] captured = forwardDatagram(System.currentTimeMillis(), 7, "first");
+            send(peer, captured);
+            send(peer, captured);
+            send(peer, forwardDatagram(System.currentTimeMillis(), 8, "second"));
+
+            assertEquals("first", received.poll(5, TimeUnit.SECONDS));
+            assertEquals("second", received.poll(5, TimeUnit.SECONDS));
+            assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    @Test
+    void datagramsSentTooLongAgoAreDropped() throws Exception {
+        BlockingQueue<String> received = new ArrayBlockingQueue<>(10);
+        nodeA.setForwardHandler((userIds, destination, payload) -> received.add(new String(payload, StandardCharsets.UTF_8)));
+        try (DatagramSocket peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0))) {
+            nodeA.addPeer((InetSocketAddress) peer.getLocalSocketAddress());
+            send(peer, forwardDatagram(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(10), 1, "stale"));
+            send(peer, forwardDatagram(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(10), 2, "ahead"));
+            send(peer, forwardDatagram(System.currentTimeMillis(), 3, "fresh"));
+
+            assertEquals("fresh", received.poll(5, TimeUnit.SECONDS));
+            assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Builds a signed frame forward from node c, as UdpClusterBus lays it out.
+     */
+    private static byte[] forwardDatagram(long sentAt, long nonce, String payload) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(2);
+        out.writeUTF("c");
+        out.writeLong(sentAt);
+        out.writeLong(nonce);
+        out.writeUTF("/user/queue/notifications");
+        byte[] content = payload.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(content.length);
+        out.write(content);
+        out.writeInt(1);
+        out.writeUTF("alice");
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+        out.write(mac.doFinal(bytes.toByteArray()));
+        return bytes.toByteArray();
+    }
+
+    private void send(DatagramSocket socket, byte[] datagram) throws Exception {
+        socket.send(new DatagramPacket(datagram, datagram.length, nodeA.getLocalAddress()));
+    }
+
+    private UdpClusterBus node(String nodeId, byte[] secret, List<InetSocketAddress> peers) throws SocketException {
+        UdpClusterBus node = new UdpClusterBus(nodeId, new InetSocketAddress("127.0.0.1", 0), peers, 200, secret);
+        nodes.add(node);
+        return node;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the cluster");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.demo.websocket;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebsocketSessionManagerTests {
+    private static final int THREADS = 16;
+    private static final int USERS = 500;
+
+    @Test
+    void userStaysOnlineUntilLastSessionCloses() {
+        WebsocketSessionManager sessionManager = new WebsocketSessionManager();
+        sessionManager.addSession("phone", "alice");
+        sessionManager.addSession("laptop", "alice");
+        assertNull(sessionManager.deleteSession("phone"));
+        assertTrue(sessionManager.sessionExistsByUserId("alice"));
+        assertEquals("alice", sessionManager.deleteSession("laptop"));
+        assertFalse(sessionManager.sessionExistsByUserId("alice"));
+    }
+
+    @Test
+    void sessionCountCountsEveryLoggedInSession() {
+        WebsocketSessionManager sessionManager = new WebsocketSessionManager();
+        sessionManager.addSession("phone", "alice");
+        sessionManager.addSession("laptop", "alice");
+        sessionManager.addSession("desktop", "bob");
+        assertEquals(3, sessionManager.getSessionCount());
+        assertEquals(2, sessionManager.getOnlineUserCount());
+        sessionManager.deleteSession("phone");
+        sessionManager.deleteSession("never-logged-in");
+        assertEquals(2, sessionManager.getSessionCount());
+    }
+
+    @Test
+    void concurrentSessionChurnLosesNoUpdates() throws Exception {
+        WebsocketSessionManager sessionManager = new WebsocketSessionManager();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                barrier.await();
+                // Each thread is one device of every user; odd threads disconnect again afterwards
+                for (int round = 0; round < 20; round++) {
+                    for (int i = 0; i < USERS; i++) {
+                        String sessionId = "session-" + thread + "-" + i;
+                        sessionManager.addSession(sessionId, "user-" + i);
+                        if (thread % 2 == 1) {
+                            sessionManager.deleteSession(sessionId);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        for (int i = 0; i < USERS; i++) {
+            assertTrue(sessionManager.sessionExistsByUserId("user-" + i));
+        }
+        // Closing the remaining even-thread sessions must take every user offline
+        for (int t = 0; t < THREADS; t += 2) {
+            for (int i = 0; i < USERS; i++) {
+                sessionManager.deleteSession("session-" + t + "-" + i);
+            }
+        }
+        for (int i = 0; i < USERS; i++) {
+            assertFalse(sessionManager.sessionExistsByUserId("user-" + i));
+        }
+    }
+}